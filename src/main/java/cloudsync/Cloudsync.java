@@ -123,19 +123,20 @@ public class Cloudsync
 			}
 
 			handler = new Handler(name, localConnection, remoteConnector, options.getNoEncryption() ? null : new Crypt(options), options.getExistingBehavior(), options.getFollowLinks(),
-					options.getPermissionType(),options.getFileErrorBehavior());
+					options.getPermissionType(),options.getFileErrorBehavior(), options.getThreads(), options.getReadThreads(),
+					options.getChunking(), options.getDelta(), options.getPackSize(), options.getOffheap());
 			handler.init(type, options.getCacheFile(), options.getLockFile(), options.getPIDFile(), options.getNoCache(), options.getForceStart());
 
 			switch ( type )
 			{
 				case BACKUP:
-					handler.backup(options.isDryRun(), includePatterns, excludePatterns);
+					handler.backup(options.isDryRun(), options.getPathMatcher());
 					break;
 				case RESTORE:
-					handler.restore(options.isDryRun(), includePatterns, excludePatterns);
+					handler.restore(options.isDryRun(), options.getPathMatcher());
 					break;
 				case LIST:
-					handler.list(includePatterns, excludePatterns);
+					handler.list(options.getPathMatcher());
 					break;
 				case CLEAN:
 					handler.clean();
@@ -30,6 +30,7 @@ import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.attribute.UserPrincipalNotFoundException;
+import java.security.DigestOutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -41,16 +42,20 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import cloudsync.exceptions.FileIOException;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.StringUtils;
 
 import cloudsync.exceptions.CloudsyncException;
+import cloudsync.helper.ChecksumIndex;
 import cloudsync.helper.CmdOptions;
 import cloudsync.helper.Handler;
 import cloudsync.helper.Helper;
 import cloudsync.model.options.ExistingType;
+import cloudsync.model.ChecksumInputStream;
+import cloudsync.model.ChecksumType;
 import cloudsync.model.Item;
 import cloudsync.model.ItemType;
 import cloudsync.model.options.FollowLinkType;
@@ -85,11 +90,16 @@ public class LocalFilesystemConnector
 
 	private final String								localPath;
 	private final boolean								showProgress;
+	private final ChecksumType							checksumType;
+	private final boolean								verify;
+	private ChecksumIndex								checksumIndex;
 
 	public LocalFilesystemConnector(final CmdOptions options)
 	{
 		String path = options.getPath();
 		showProgress = options.showProgress();
+		checksumType = options.getChecksumType();
+		verify = options.getVerify();
 
 		if (path != null)
 		{
@@ -114,6 +124,11 @@ public class LocalFilesystemConnector
 		}
 	}
 
+	public void setChecksumIndex(final ChecksumIndex checksumIndex)
+	{
+		this.checksumIndex = checksumIndex;
+	}
+
 	public void prepareUpload(final Handler handler, final Item item, final ExistingType duplicateFlag)
 	{
 		if (!duplicateFlag.equals(ExistingType.RENAME))
@@ -158,16 +173,30 @@ public class LocalFilesystemConnector
 
 	public void upload(final Handler handler, final Item item, final ExistingType duplicateFlag, final PermissionType permissionType)
 			throws CloudsyncException
+	{
+		if (upload(handler, item, duplicateFlag))
+		{
+			uploadAttributes(item, permissionType);
+		}
+	}
+
+	/**
+	 * Restores the data of an item. Returns 'false' if an existing item was
+	 * skipped. Times and permissions are restored by 'uploadAttributes'.
+	 */
+	public boolean upload(final Handler handler, final Item item, final ExistingType duplicateFlag) throws CloudsyncException
 	{
 		final String _path = localPath + Item.SEPARATOR + item.getPath();
 
 		final Path path = Paths.get(_path);
 
+		boolean isUnchanged = false;
+
 		if (exists(path))
 		{
 			if (duplicateFlag.equals(ExistingType.SKIP))
 			{
-				return;
+				return false;
 			}
 
 			if (!duplicateFlag.equals(ExistingType.UPDATE))
@@ -175,7 +204,9 @@ public class LocalFilesystemConnector
 				throw new CloudsyncException("Item '" + item.getPath() + "' already exists. Try to specify another '--duplicate' behavior.");
 			}
 
-			if ((!item.isType(ItemType.FOLDER) || !isDir(path)))
+			isUnchanged = item.isType(ItemType.FILE) && isDataUnchanged(path, item);
+
+			if (!isUnchanged && (!item.isType(ItemType.FOLDER) || !isDir(path)))
 			{
 				try
 				{
@@ -237,6 +268,10 @@ public class LocalFilesystemConnector
 					if (remoteStreamData != null) remoteStreamData.close();
 				}
 			}
+			else if (isUnchanged)
+			{
+				LOGGER.log(Level.FINE, "  keep unchanged data of '" + item.getPath() + "'");
+			}
 			else if (item.isType(ItemType.FILE))
 			{
 				RemoteStreamData remoteStreamData = null;
@@ -246,7 +281,9 @@ public class LocalFilesystemConnector
 				try
 				{
 					remoteStreamData = handler.getRemoteProcessedBinary(item);
-					outputStream = Files.newOutputStream(path);
+					final CountingOutputStream countingStream = new CountingOutputStream(Files.newOutputStream(path));
+					final DigestOutputStream digestStream = new DigestOutputStream(countingStream, item.getChecksumType().getDigest());
+					outputStream = digestStream;
 
 					final long length = item.getFilesize();
 					double current = 0;
@@ -293,17 +330,32 @@ public class LocalFilesystemConnector
 						}
 					}
 
-					localChecksumStream = Files.newInputStream(path);
+					outputStream.close();
 
-					if (!createChecksum(localChecksumStream).equals(item.getChecksum()))
+					// the checksum is calculated while the data is written
+					if (!Hex.encodeHexString(digestStream.getMessageDigest().digest()).equals(item.getChecksum()))
 					{
 						throw new CloudsyncException("restored filechecksum differs from the original filechecksum");
 					}
-					if (item.getFilesize() != Files.size(path))
+					if (item.getFilesize() != countingStream.getByteCount())
 					{
 						throw new CloudsyncException("restored filesize differs from the original filesize");
 					}
 
+					if (verify)
+					{
+						localChecksumStream = Files.newInputStream(path);
+
+						if (!item.getChecksumType().digestHex(localChecksumStream).equals(item.getChecksum()))
+						{
+							throw new CloudsyncException("restored filechecksum differs from the original filechecksum");
+						}
+						if (item.getFilesize() != Files.size(path))
+						{
+							throw new CloudsyncException("restored filesize differs from the original filesize");
+						}
+					}
+
 				}
 				catch (final IOException e)
 				{
@@ -324,6 +376,14 @@ public class LocalFilesystemConnector
 			}
 		}
 
+		return true;
+	}
+
+	// writes into a folder change its modify time, so folders are finished after their children
+	public void uploadAttributes(final Item item, final PermissionType permissionType) throws CloudsyncException
+	{
+		final Path path = Paths.get(localPath + Item.SEPARATOR + item.getPath());
+
 		try
 		{
 			if (item.isType(ItemType.LINK))
@@ -334,6 +394,11 @@ public class LocalFilesystemConnector
 			{
 				Files.getFileAttributeView(path, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).setTimes(item.getModifyTime(), item.getAccessTime(),
 						item.getCreationTime());
+				if (item.isType(ItemType.FILE) && checksumIndex != null)
+				{
+					checksumIndex.put(path, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS), item.getChecksumType(),
+							item.getChecksum());
+				}
 			}
 		}
 		catch (final IOException e)
@@ -469,7 +534,12 @@ public class LocalFilesystemConnector
 	{
 		final String currentPath = localPath + (StringUtils.isEmpty(item.getPath()) ? "" : Item.SEPARATOR + item.getPath());
 
-		final File folder = new File(currentPath);
+		return readFolder(new File(currentPath));
+	}
+
+	public File[] readFolder(final File folder) throws CloudsyncException
+	{
+		final String currentPath = folder.getPath();
 
 		if (!Files.exists(folder.toPath(), LinkOption.NOFOLLOW_LINKS))
 		{
@@ -737,9 +807,32 @@ public class LocalFilesystemConnector
 		return permissions;
 	}
 
-	private static String createChecksum(final InputStream data) throws IOException
+	public void createFileChecksum(final Item item) throws FileIOException
 	{
-		return DigestUtils.md5Hex(data);
+		File file = new File(localPath + Item.SEPARATOR + item.getPath());
+
+		InputStream checksumInputStream = null;
+
+		try
+		{
+			if (item.isType(ItemType.LINK))
+			{
+				checksumInputStream = new ByteArrayInputStream(Files.readSymbolicLink(file.toPath()).toString().getBytes());
+				item.setChecksum(checksumType, checksumType.digestHex(checksumInputStream));
+			}
+			else if (item.isType(ItemType.FILE))
+			{
+				item.setChecksum(checksumType, getChecksum(file.toPath(), checksumType));
+			}
+		}
+		catch (final IOException e)
+		{
+			throw new FileIOException("Can't read data of '" + file.getAbsolutePath() + "'", e);
+		}
+		finally
+		{
+			if (checksumInputStream != null) IOUtils.closeQuietly(checksumInputStream);
+		}
 	}
 
 	public LocalStreamData getFileBinary(final Item item) throws FileIOException
@@ -754,17 +847,17 @@ public class LocalFilesystemConnector
 			{
 				byte[] data = Files.readSymbolicLink(file.toPath()).toString().getBytes();
 				checksumInputStream = new ByteArrayInputStream(data);
-				item.setChecksum(createChecksum(checksumInputStream));
+				item.setChecksum(checksumType, checksumType.digestHex(checksumInputStream));
 
 				return new LocalStreamData(new ByteArrayInputStream(data), data.length);
 
 			}
 			else if (item.isType(ItemType.FILE))
 			{
-				checksumInputStream = Files.newInputStream(file.toPath());
-				item.setChecksum(createChecksum(checksumInputStream));
-
-				return new LocalStreamData(Files.newInputStream(file.toPath()), Files.size(file.toPath()));
+				// the checksum is calculated while the stream is consumed
+				final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				final long length = attributes.size();
+				return new LocalStreamData(new ChecksumInputStream(Files.newInputStream(file.toPath()), length, item, checksumType, attributes), length);
 			}
 			return null;
 
@@ -780,6 +873,46 @@ public class LocalFilesystemConnector
 		}
 	}
 
+	// checksums of uploaded files are calculated while their data is read
+	public void storeChecksum(final Item item)
+	{
+		final BasicFileAttributes attributes = item.getChecksumAttributes();
+		item.setChecksumAttributes(null);
+		if (checksumIndex == null || attributes == null || !item.isType(ItemType.FILE) || item.getChecksum() == null) return;
+
+		checksumIndex.put(Paths.get(localPath + Item.SEPARATOR + item.getPath()), attributes, item.getChecksumType(), item.getChecksum());
+	}
+
+	// known checksums of unchanged files are taken from the checksum index
+	private String getChecksum(final Path path, final ChecksumType checksumType) throws IOException
+	{
+		final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		String checksum = checksumIndex != null ? checksumIndex.get(path, attributes, checksumType) : null;
+		if (checksum == null)
+		{
+			try (InputStream in = Files.newInputStream(path))
+			{
+				checksum = checksumType.digestHex(in);
+			}
+			if (checksumIndex != null) checksumIndex.put(path, attributes, checksumType, checksum);
+		}
+		return checksum;
+	}
+
+	// reading a local file is much cheaper than downloading it again
+	private boolean isDataUnchanged(final Path path, final Item item)
+	{
+		try
+		{
+			return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) && item.getFilesize() != null && Files.size(path) == item.getFilesize()
+					&& getChecksum(path, item.getChecksumType()).equals(item.getChecksum());
+		}
+		catch (final IOException e)
+		{
+			return false;
+		}
+	}
+
 	private long convertToKB(double size)
 	{
 		return (long) Math.ceil(size / 1024);
@@ -2,6 +2,7 @@ package cloudsync.connector;
 
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 import cloudsync.exceptions.CloudsyncException;
 import cloudsync.exceptions.FileIOException;
@@ -16,13 +17,24 @@ public interface RemoteConnector
 
 	List<RemoteItem> readFolder(Handler handler, Item parentItem) throws CloudsyncException;
 
+	// optional. returns the children of all folders below 'parentItem' mapped by
+	// the remote identifier of their folder or 'null' if it is not supported
+	Map<String, List<RemoteItem>> readFolders(Handler handler, Item parentItem) throws CloudsyncException;
+
 	void upload(Handler handler, Item item) throws CloudsyncException, FileIOException;
 
 	void update(Handler handler, Item item, boolean with_filedata) throws CloudsyncException, FileIOException;
 
+	// optional. updates only the metadata of several items together and returns
+	// the updated items. the other items are updated one by one afterwards
+	List<Item> updateMetadata(Handler handler, List<Item> items) throws CloudsyncException;
+
 	void remove(Handler handler, Item item) throws CloudsyncException;
 
 	InputStream get(Handler handler, Item item) throws CloudsyncException;
 
+	// returns 'length' bytes of the remote object starting at 'offset'
+	InputStream get(Handler handler, Item item, long offset, long length) throws CloudsyncException;
+
 	void cleanHistory(Handler handler) throws CloudsyncException;
 }
@@ -13,6 +13,7 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -20,17 +21,21 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import cloudsync.exceptions.FileIOException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang3.StringUtils;
 
 import cloudsync.exceptions.CloudsyncException;
 import cloudsync.helper.CmdOptions;
 import cloudsync.helper.Handler;
 import cloudsync.helper.Helper;
+import cloudsync.helper.WorkerPool;
 import cloudsync.model.Item;
 import cloudsync.model.ItemType;
 import cloudsync.model.RemoteItem;
@@ -39,6 +44,7 @@ import cloudsync.model.LocalStreamData;
 import com.dropbox.core.DbxAppInfo;
 import com.dropbox.core.DbxAuthFinish;
 import com.dropbox.core.DbxClient;
+import com.dropbox.core.DbxDelta;
 import com.dropbox.core.DbxEntry;
 import com.dropbox.core.DbxEntry.File;
 import com.dropbox.core.DbxException;
@@ -57,6 +63,7 @@ public class RemoteDropboxConnector implements RemoteConnector
 	private final static int		MIN_SEARCH_RETRIES	= 12;
 	private final static int		MIN_RETRY_BREAK		= 10000;
 	private final static int		RETRY_COUNT			= 6;														// =>
+	private final static int		CHUNK_SIZE			= 4 * 1024 * 1024;
 
 	private String					backupRootPath;
 	private String					backupHistoryPath;
@@ -76,6 +83,8 @@ public class RemoteDropboxConnector implements RemoteConnector
 
 	private Charset                 charset;
 
+	private int						readThreads;
+
 	public RemoteDropboxConnector()
 	{
 	}
@@ -86,12 +95,13 @@ public class RemoteDropboxConnector implements RemoteConnector
 		RemoteDropboxOptions dropboxOptions = new RemoteDropboxOptions(options, backupName);
 		Integer history = options.getHistory();
 
-		cacheFiles = new HashMap<>();
+		cacheFiles = new ConcurrentHashMap<>();
 
 		this.basePath = Helper.trim(dropboxOptions.getBasePath(), SEPARATOR);
 		this.backupName = backupName;
 		this.historyCount = history;
 		this.tokenPath = Paths.get(dropboxOptions.getTokenPath());
+		this.readThreads = options.getReadThreads();
 
 		this.backupRootPath = basePath + SEPARATOR + backupName;
 		this.backupHistoryPath = history > 0 ? this.backupRootPath + " " + new SimpleDateFormat("yyyy.MM.dd_HH.mm.ss").format(new Date()) : null;
@@ -157,12 +167,13 @@ public class RemoteDropboxConnector implements RemoteConnector
 				{
 					LocalStreamData data = handler.getLocalProcessedBinary(item);
 					if (data == null) data = new LocalStreamData(new ByteArrayInputStream("".getBytes()), 0);
-					entry = client.uploadFile(path, DbxWriteMode.add(), data.getLength(), data.getStream());
+					entry = _uploadFile(path, DbxWriteMode.add(), data, item);
 				}
 
 				String metadata = handler.getLocalProcessedMetadata(item);
 
-				client.uploadFile(path + METADATA_SUFFIX, DbxWriteMode.add(), metadata.length(), new ByteArrayInputStream(metadata.getBytes("ASCII")));
+				DbxEntry.File metadataEntry = client.uploadFile(path + METADATA_SUFFIX, DbxWriteMode.add(), metadata.length(), new ByteArrayInputStream(metadata.getBytes("ASCII")));
+				_updateManifest(parentPath, entry.name, metadataEntry.rev, metadata);
 				_addToCache(entry);
 				item.setRemoteIdentifier(entry.name);
 				return;
@@ -197,11 +208,12 @@ public class RemoteDropboxConnector implements RemoteConnector
 					LocalStreamData data = handler.getLocalProcessedBinary(item);
 					if (data != null)
 					{
-						client.uploadFile(path, DbxWriteMode.force(), data.getLength(), data.getStream());
+						_uploadFile(path, DbxWriteMode.force(), data, item);
 					}
 				}
 				String metadata = handler.getLocalProcessedMetadata(item);
-				client.uploadFile(path + METADATA_SUFFIX, DbxWriteMode.force(), metadata.length(), new ByteArrayInputStream(metadata.getBytes("ASCII")));
+				DbxEntry.File metadataEntry = client.uploadFile(path + METADATA_SUFFIX, DbxWriteMode.force(), metadata.length(), new ByteArrayInputStream(metadata.getBytes("ASCII")));
+				_updateManifest(buildPath(item.getParent()), item.getRemoteIdentifier(), metadataEntry.rev, metadata);
 				return;
 			}
 			catch (final IOException e)
@@ -216,6 +228,12 @@ public class RemoteDropboxConnector implements RemoteConnector
 		while (true);
 	}
 
+	@Override
+	public List<Item> updateMetadata(final Handler handler, final List<Item> items) throws CloudsyncException
+	{
+		return Collections.emptyList();
+	}
+
 	@Override
 	public void remove(final Handler handler, final Item item) throws CloudsyncException
 	{
@@ -236,6 +254,7 @@ public class RemoteDropboxConnector implements RemoteConnector
 				{
 					client.delete(path);
 				}
+				_updateManifest(buildPath(item.getParent()), item.getRemoteIdentifier(), null, null);
 				_removeFromCache(path);
 				return;
 			}
@@ -275,6 +294,49 @@ public class RemoteDropboxConnector implements RemoteConnector
 		while (true);
 	}
 
+	// the api has no ranged download. so the download stops after the
+	// requested range
+	@Override
+	public InputStream get(final Handler handler, final Item item, final long offset, final long length) throws CloudsyncException
+	{
+		initService(handler);
+
+		int retryCount = 0;
+		do
+		{
+			try
+			{
+				final DbxClient.Downloader downloader = client.startGetFile(buildPath(item), null);
+				try
+				{
+					IOUtils.skipFully(downloader.body, offset);
+				}
+				catch (final IOException e)
+				{
+					downloader.close();
+					throw e;
+				}
+				return new BoundedInputStream(downloader.body, length)
+				{
+					@Override
+					public void close()
+					{
+						downloader.close();
+					}
+				};
+			}
+			catch (final DbxException e)
+			{
+				retryCount = validateException("remote get", item, e, retryCount);
+			}
+			catch (final IOException e)
+			{
+				retryCount = validateException("remote get", item, e, retryCount);
+			}
+		}
+		while (true);
+	}
+
 	@Override
 	public List<RemoteItem> readFolder(final Handler handler, final Item parentItem) throws CloudsyncException
 	{
@@ -288,24 +350,23 @@ public class RemoteDropboxConnector implements RemoteConnector
 				// refreshCredential();
 
 				final List<RemoteItem> child_items = new ArrayList<>();
-				Map<String, DbxEntry[]> childContainer = new HashMap<>();
-				DbxEntry.WithChildren listing = client.getMetadataWithChildren(buildPath(parentItem));
-				for (DbxEntry child : listing.children)
+				final String path = buildPath(parentItem);
+				DbxEntry.WithChildren listing = client.getMetadataWithChildren(path);
+				RemoteFolderManifest manifest = new RemoteFolderManifest();
+				for (final DbxEntry child : listing.children)
 				{
-					String[] nameParts = child.name.split("\\.");
-
-					DbxEntry[] entries = childContainer.get(nameParts[0]);
-					if (entries == null) entries = new DbxEntry[2];
-					if (nameParts.length == 2) entries[1] = child;
-					else entries[0] = child;
-
-					childContainer.put(nameParts[0], entries);
-
+					if (child.name.equals(RemoteFolderManifest.NAME)) manifest = _readManifest(child.path);
 				}
-
-				for (final DbxEntry[] childData : childContainer.values())
+				for (final DbxEntry[] childData : _groupEntries(listing.children))
 				{
-					child_items.add(_prepareBackupItem(childData, handler));
+					String metadata = null;
+					if (childData[1] != null)
+					{
+						final String stamp = childData[1].asFile().rev;
+						metadata = manifest.get(childData[0].name, stamp);
+						if (metadata == null) metadata = _readMetadata(childData[1]);
+					}
+					child_items.add(_prepareBackupItem(childData, metadata, handler));
 				}
 				return child_items;
 			}
@@ -317,6 +378,168 @@ public class RemoteDropboxConnector implements RemoteConnector
 		while (true);
 	}
 
+	@Override
+	public Map<String, List<RemoteItem>> readFolders(final Handler handler, final Item parentItem) throws CloudsyncException
+	{
+		initService(handler);
+
+		int retryCount = 0;
+		do
+		{
+			try
+			{
+				return _readFolders(parentItem, handler);
+			}
+			catch (final DbxException e)
+			{
+				retryCount = validateException("remote fetch", parentItem, e, retryCount);
+			}
+		}
+		while (true);
+	}
+
+	// lists the whole tree below 'parentItem' with a recursive delta cursor.
+	// the metadata files are fetched in parallel afterwards
+	private Map<String, List<RemoteItem>> _readFolders(final Item parentItem, final Handler handler) throws DbxException, CloudsyncException
+	{
+		final String parentPath = buildPath(parentItem);
+
+		final Map<String, List<DbxDelta.Entry<DbxEntry>>> childEntries = new HashMap<>();
+		// 'lcPath' always starts with a separator
+		final String lcPath = (parentPath.startsWith(SEPARATOR) ? parentPath : SEPARATOR + parentPath).toLowerCase(Locale.ROOT);
+		String cursor = null;
+		int count = 0;
+		DbxDelta<DbxEntry> delta;
+		do
+		{
+			delta = client.getDeltaWithPathPrefix(cursor, parentPath);
+			for (final DbxDelta.Entry<DbxEntry> entry : delta.entries)
+			{
+				// a listing without cursor contains no deleted entries
+				if (entry.metadata == null) continue;
+
+				final String lcParentPath = entry.lcPath.substring(0, entry.lcPath.lastIndexOf(SEPARATOR));
+				List<DbxDelta.Entry<DbxEntry>> entries = childEntries.get(lcParentPath);
+				if (entries == null)
+				{
+					entries = new ArrayList<>();
+					childEntries.put(lcParentPath, entries);
+				}
+				entries.add(entry);
+			}
+			cursor = delta.cursor;
+			count += delta.entries.size();
+			LOGGER.log(Level.INFO, "\r  listed " + count + " remote items", true);
+		}
+		while (delta.hasMore);
+
+		// the manifests are read first. afterwards only metadata files which are
+		// missing or outdated in the manifest of their folder are fetched
+		final Map<String, RemoteFolderManifest> manifests = new ConcurrentHashMap<>();
+		final Map<String, String> metadata = new ConcurrentHashMap<>();
+		final WorkerPool pool = new WorkerPool("dropbox", readThreads, readThreads * 2);
+		try
+		{
+			for (final Map.Entry<String, List<DbxDelta.Entry<DbxEntry>>> folder : childEntries.entrySet())
+			{
+				String manifestPath = null;
+				for (final DbxDelta.Entry<DbxEntry> entry : folder.getValue())
+				{
+					if (entry.metadata.name.equals(RemoteFolderManifest.NAME)) manifestPath = entry.metadata.path;
+				}
+				if (manifestPath == null)
+				{
+					manifests.put(folder.getKey(), new RemoteFolderManifest());
+					continue;
+				}
+				final String _manifestPath = manifestPath;
+				pool.submit(new WorkerPool.Task()
+				{
+					@Override
+					public void run() throws CloudsyncException
+					{
+						manifests.put(folder.getKey(), _readManifest(_manifestPath));
+					}
+				});
+			}
+			pool.await();
+
+			for (final Map.Entry<String, List<DbxDelta.Entry<DbxEntry>>> folder : childEntries.entrySet())
+			{
+				final RemoteFolderManifest manifest = manifests.get(folder.getKey());
+				for (final DbxDelta.Entry<DbxEntry> entry : folder.getValue())
+				{
+					if (!entry.metadata.name.endsWith(METADATA_SUFFIX)) continue;
+
+					final String name = StringUtils.removeEnd(entry.metadata.name, METADATA_SUFFIX);
+					final String stamp = entry.metadata.asFile().rev;
+					final String cachedMetadata = manifest.get(name, stamp);
+					if (cachedMetadata != null)
+					{
+						metadata.put(entry.metadata.path, cachedMetadata);
+						continue;
+					}
+
+					pool.submit(new WorkerPool.Task()
+					{
+						@Override
+						public void run() throws CloudsyncException
+						{
+							metadata.put(entry.metadata.path, _readMetadata(entry.metadata));
+						}
+					});
+				}
+			}
+			pool.await();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		final Map<String, List<RemoteItem>> child_items = new HashMap<>();
+		if (!_prepareBackupItems(parentItem.getRemoteIdentifier(), lcPath, childEntries, metadata, child_items, handler))
+		{
+			LOGGER.log(Level.INFO, "found folders with the same name. read each folder separately");
+			return null;
+		}
+		return child_items;
+	}
+
+	// the result is mapped by folder names. they are unique only if the titles
+	// are encrypted. so 'false' is returned for a name which is used twice
+	private boolean _prepareBackupItems(final String name, final String lcPath, final Map<String, List<DbxDelta.Entry<DbxEntry>>> childEntries,
+			final Map<String, String> metadata, final Map<String, List<RemoteItem>> child_items, final Handler handler) throws CloudsyncException
+	{
+		if (child_items.containsKey(name)) return false;
+
+		final List<RemoteItem> items = new ArrayList<>();
+		child_items.put(name, items);
+
+		final List<DbxDelta.Entry<DbxEntry>> entries = childEntries.get(lcPath);
+		if (entries == null) return true;
+
+		final Map<String, String> lcPaths = new HashMap<>();
+		final List<DbxEntry> children = new ArrayList<>();
+		for (final DbxDelta.Entry<DbxEntry> entry : entries)
+		{
+			children.add(entry.metadata);
+			lcPaths.put(entry.metadata.name, entry.lcPath);
+		}
+
+		for (final DbxEntry[] childData : _groupEntries(children))
+		{
+			items.add(_prepareBackupItem(childData, childData[1] != null ? metadata.get(childData[1].path) : null, handler));
+
+			if (childData[0].isFolder()
+					&& !_prepareBackupItems(childData[0].name, lcPaths.get(childData[0].name), childEntries, metadata, child_items, handler))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public void cleanHistory(final Handler handler) throws CloudsyncException
 	{
@@ -355,35 +578,173 @@ public class RemoteDropboxConnector implements RemoteConnector
 		}
 	}
 
-	private RemoteItem _prepareBackupItem(final DbxEntry[] childData, final Handler handler) throws CloudsyncException
+	// pairs each item with its metadata file
+	private Collection<DbxEntry[]> _groupEntries(final List<DbxEntry> children)
 	{
-		String encryptedMetadata = null;
-		if (childData[1] != null)
+		Map<String, DbxEntry[]> childContainer = new HashMap<>();
+		for (DbxEntry child : children)
+		{
+			if (child.name.equals(RemoteFolderManifest.NAME)) continue;
+
+			String[] nameParts = child.name.split("\\.");
+
+			DbxEntry[] entries = childContainer.get(nameParts[0]);
+			if (entries == null) entries = new DbxEntry[2];
+			if (nameParts.length == 2) entries[1] = child;
+			else entries[0] = child;
+
+			childContainer.put(nameParts[0], entries);
+
+		}
+		return childContainer.values();
+	}
+
+	// the manifest is only a shortcut to the metadata files. so a missing or
+	// unreadable manifest just means that the metadata files are fetched
+	private RemoteFolderManifest _readManifest(final String path)
+	{
+		final RemoteFolderManifest manifest = new RemoteFolderManifest();
+		try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream())
+		{
+			client.getFile(path, null, outputStream);
+			manifest.load(new ByteArrayInputStream(outputStream.toByteArray()));
+			return manifest;
+		}
+		catch (DbxException | IOException | IllegalArgumentException e)
+		{
+			LOGGER.log(Level.FINE, "can't read manifest '" + path + "'", e);
+			return new RemoteFolderManifest();
+		}
+	}
+
+	// the entry of a changed metadata file is replaced together with the file.
+	// 'metadata' is null for a removed item. a missing manifest is created
+	private synchronized void _updateManifest(final String folderPath, final String name, final String rev, final String metadata)
+	{
+		final RemoteFolderManifest manifest = _readManifest(folderPath + SEPARATOR + RemoteFolderManifest.NAME);
+		if (metadata == null)
+		{
+			manifest.remove(name);
+		}
+		else
+		{
+			manifest.put(name, rev, metadata);
+		}
+		_writeManifest(folderPath, manifest);
+	}
+
+	private void _writeManifest(final String folderPath, final RemoteFolderManifest manifest)
+	{
+		try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream())
+		{
+			manifest.store(outputStream);
+			final byte[] data = outputStream.toByteArray();
+			client.uploadFile(folderPath + SEPARATOR + RemoteFolderManifest.NAME, DbxWriteMode.force(), data.length, new ByteArrayInputStream(data));
+		}
+		catch (DbxException | IOException e)
 		{
+			LOGGER.log(Level.FINE, "can't write manifest of '" + folderPath + "'", e);
+		}
+	}
+
+	private String _readMetadata(final DbxEntry entry) throws CloudsyncException
+	{
+		int retryCount = 0;
+		do
+		{
+			try
+			{
+				try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream())
+				{
+					client.getFile(entry.path, null, outputStream);
+					return outputStream.toString("ASCII");
+				}
+			}
+			catch (final DbxException e)
+			{
+				retryCount = validateException("fetch metadata", null, e, retryCount);
+			}
+			catch (final IOException e)
+			{
+				retryCount = validateException("fetch metadata", null, e, retryCount);
+			}
+		}
+		while (true);
+	}
+
+	// the stream is closed on every path. a streamed encryption waits until then
+	private DbxEntry.File _uploadFile(final String path, final DbxWriteMode writeMode, final LocalStreamData data, final Item item) throws CloudsyncException,
+			DbxException, IOException
+	{
+		try
+		{
+			return _uploadData(path, writeMode, data, item);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(data.getStream());
+		}
+	}
+
+	// larger files and data with an unknown length are sent in a chunked upload
+	// session. a failed chunk is sent again from memory, starting at the offset
+	// which dropbox has already stored
+	private DbxEntry.File _uploadData(final String path, final DbxWriteMode writeMode, final LocalStreamData data, final Item item) throws CloudsyncException,
+			DbxException, IOException
+	{
+		if (data.getLength() >= 0 && data.getLength() <= CHUNK_SIZE)
+		{
+			return client.uploadFile(path, writeMode, data.getLength(), data.getStream());
+		}
+
+		final InputStream stream = data.getStream();
+		final byte[] buffer = new byte[CHUNK_SIZE];
+		String uploadId = null;
+		long offset = 0;
+		int len;
+		while ((len = IOUtils.read(stream, buffer)) > 0 || uploadId == null)
+		{
+			int stored = 0;
 			int retryCount = 0;
-			do
+			while (stored < len || uploadId == null)
 			{
 				try
 				{
-					try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream())
+					if (uploadId == null)
 					{
-						client.getFile(childData[1].path, null, outputStream);
-						encryptedMetadata = outputStream.toString("ASCII");
-						break;
+						uploadId = client.chunkedUploadFirst(buffer, 0, len);
+						stored = len;
+					}
+					else
+					{
+						final long correctOffset = client.chunkedUploadAppend(uploadId, offset + stored, buffer, stored, len - stored);
+						if (correctOffset == -1)
+						{
+							stored = len;
+						}
+						else if (correctOffset >= offset && correctOffset <= offset + len)
+						{
+							stored = (int) (correctOffset - offset);
+						}
+						else
+						{
+							throw new CloudsyncException("Unexpected offset " + correctOffset + " during chunked upload of '" + item.getPath() + "'");
+						}
 					}
 				}
 				catch (final DbxException e)
 				{
-					retryCount = validateException("fetch metadata", null, e, retryCount);
-				}
-				catch (final IOException e)
-				{
-					retryCount = validateException("fetch metadata", null, e, retryCount);
+					retryCount = validateException("remote chunk upload", item, e, retryCount);
 				}
 			}
-			while (true);
+			offset += len;
 		}
 
+		return client.chunkedUploadFinish(path, writeMode, uploadId);
+	}
+
+	private RemoteItem _prepareBackupItem(final DbxEntry[] childData, final String encryptedMetadata, final Handler handler) throws CloudsyncException
+	{
 		Long size;
 		long time;
 
@@ -429,7 +790,7 @@ public class RemoteDropboxConnector implements RemoteConnector
 		}
 	}
 
-	private int validateException(String name, Item item, Exception e, int count) throws CloudsyncException
+	private synchronized int validateException(String name, Item item, Exception e, int count) throws CloudsyncException
 	{
 		if (count < RETRY_COUNT)
 		{
@@ -459,7 +820,7 @@ public class RemoteDropboxConnector implements RemoteConnector
 		return "ioexception: '" + msg + "' - ";
 	}
 
-	private void initService(Handler handler)
+	private synchronized void initService(Handler handler)
 	{
 		if (isInitialized) return;
 
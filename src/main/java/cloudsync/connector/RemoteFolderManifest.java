@@ -0,0 +1,61 @@
+package cloudsync.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Encrypted metadata of all children of a remote folder, so a folder can be
+ * read without fetching a metadata sidecar per child.
+ *
+ * The sidecars stay the primary copy. Every entry keeps a stamp of the
+ * sidecar it was written with (e.g. size and modify time or a revision). An
+ * entry with another stamp is outdated and the sidecar is read again.
+ *
+ * The manifest is only updated together with the sidecar of an uploaded,
+ * updated or removed child. Reading a folder never writes it.
+ *
+ * <pre>
+ * child name = stamp, encrypted metadata
+ * </pre>
+ */
+class RemoteFolderManifest
+{
+	final static String			NAME		= ".cloudsync-manifest";
+
+	private final static char	SEPARATOR	= ' ';
+
+	private final Properties	entries		= new Properties();
+
+	public void load(final InputStream in) throws IOException
+	{
+		entries.load(in);
+	}
+
+	public void store(final OutputStream out) throws IOException
+	{
+		entries.store(out, null);
+	}
+
+	public String get(final String name, final String stamp)
+	{
+		final String value = entries.getProperty(name);
+		if (value == null) return null;
+
+		final int index = value.indexOf(SEPARATOR);
+		if (index == -1 || !value.substring(0, index).equals(stamp)) return null;
+
+		return value.substring(index + 1);
+	}
+
+	public void put(final String name, final String stamp, final String metadata)
+	{
+		entries.setProperty(name, stamp + SEPARATOR + metadata);
+	}
+
+	public void remove(final String name)
+	{
+		entries.remove(name);
+	}
+}
@@ -0,0 +1,194 @@
+package cloudsync.connector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+
+/**
+ * Sends metadata only requests as Drive batch requests.
+ *
+ * A caller with several requests at hand sends them together with
+ * 'executeAll'. Single requests of concurrent callers go through 'execute'.
+ * Every caller blocks until its own request was executed. While a batch is in
+ * flight, new requests are queued and sent together with the next batch, so a
+ * single caller never waits for other requests.
+ */
+class RemoteGoogleDriveBatch
+{
+	private final static GenericUrl	BATCH_URL		= new GenericUrl("https://www.googleapis.com/batch/drive/v2");
+	private final static int		MAX_BATCH_SIZE	= 100;
+
+	private final Drive				service;
+	private final Object			lock			= new Object();
+	private final List<Entry<?>>	queue			= new ArrayList<>();
+	private boolean					executing;
+
+	public RemoteGoogleDriveBatch(final Drive service)
+	{
+		this.service = service;
+	}
+
+	public <T> T execute(final DriveRequest<T> request) throws IOException
+	{
+		final Entry<T> entry = new Entry<>(request);
+
+		synchronized (lock)
+		{
+			queue.add(entry);
+		}
+
+		while (true)
+		{
+			final List<Entry<?>> entries;
+
+			synchronized (lock)
+			{
+				while (!entry.done && executing)
+				{
+					try
+					{
+						lock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException("Interrupted while waiting for a batch request");
+					}
+				}
+
+				if (entry.done) return entry.get();
+
+				executing = true;
+				final List<Entry<?>> head = queue.subList(0, Math.min(queue.size(), MAX_BATCH_SIZE));
+				entries = new ArrayList<>(head);
+				head.clear();
+			}
+
+			try
+			{
+				execute(entries);
+			}
+			finally
+			{
+				synchronized (lock)
+				{
+					executing = false;
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	// returns the results in the order of the requests. the result of a failed
+	// request is 'null'
+	public <T> List<T> executeAll(final List<? extends DriveRequest<T>> requests)
+	{
+		final List<T> results = new ArrayList<>(requests.size());
+		for (int i = 0; i < requests.size(); i += MAX_BATCH_SIZE)
+		{
+			final List<Entry<T>> entries = new ArrayList<>();
+			for (final DriveRequest<T> request : requests.subList(i, Math.min(requests.size(), i + MAX_BATCH_SIZE)))
+			{
+				entries.add(new Entry<>(request));
+			}
+			execute(entries);
+			for (final Entry<T> entry : entries)
+			{
+				results.add(entry.failure == null ? entry.result : null);
+			}
+		}
+		return results;
+	}
+
+	private void execute(final List<? extends Entry<?>> entries)
+	{
+		try
+		{
+			if (entries.size() == 1)
+			{
+				entries.get(0).execute();
+			}
+			else
+			{
+				final BatchRequest batch = service.batch();
+				batch.setBatchUrl(BATCH_URL);
+				for (final Entry<?> entry : entries)
+				{
+					entry.queue(batch);
+				}
+				batch.execute();
+			}
+		}
+		catch (IOException e)
+		{
+			for (final Entry<?> entry : entries)
+			{
+				if (!entry.done) entry.fail(e);
+			}
+		}
+
+		for (final Entry<?> entry : entries)
+		{
+			if (!entry.done) entry.fail(new IOException("Missing response in batch request"));
+		}
+	}
+
+	private static class Entry<T> extends JsonBatchCallback<T>
+	{
+		private final DriveRequest<T>	request;
+		private T						result;
+		private IOException				failure;
+		private boolean					done;
+
+		public Entry(final DriveRequest<T> request)
+		{
+			this.request = request;
+		}
+
+		public void queue(final BatchRequest batch) throws IOException
+		{
+			request.queue(batch, this);
+		}
+
+		public void execute() throws IOException
+		{
+			result = request.execute();
+			done = true;
+		}
+
+		public void fail(final IOException e)
+		{
+			failure = e;
+			done = true;
+		}
+
+		public T get() throws IOException
+		{
+			if (failure != null) throw failure;
+			return result;
+		}
+
+		@Override
+		public void onSuccess(final T t, final HttpHeaders responseHeaders)
+		{
+			result = t;
+			done = true;
+		}
+
+		@Override
+		public void onFailure(final GoogleJsonError error, final HttpHeaders responseHeaders)
+		{
+			fail(new GoogleJsonResponseException(new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders), error));
+		}
+	}
+}
@@ -12,7 +12,6 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.security.GeneralSecurityException;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -21,12 +20,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import cloudsync.exceptions.FileIOException;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import cloudsync.exceptions.CloudsyncException;
@@ -43,9 +44,8 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
 import com.google.api.client.googleapis.media.MediaHttpUploader;
-import com.google.api.client.googleapis.media.MediaHttpUploader.UploadState;
-import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
@@ -58,6 +58,8 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.Drive.Files.Insert;
 import com.google.api.services.drive.Drive.Files.Update;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.DriveRequestInitializer;
 import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
@@ -76,14 +78,24 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 
 	private final static int	MIN_SEARCH_BREAK			= 5000;
 	private final static int	MIN_SEARCH_RETRIES			= 12;
-	private final static int	CHUNK_COUNT					= 4;															// *
 	// 256kb
 	private final static int	MAX_RESULTS					= 1000;
+	private final static String	BULK_QUERY					= "'me' in owners and trashed = false";
+
+	// partial response projections. requests without an explicit projection get
+	// ITEM_FIELDS or LIST_FIELDS from the FieldsRequestInitializer
+	final static String			ITEM_FIELDS					= "id,title,mimeType,labels/trashed,downloadUrl";
+	final static String			LIST_FIELDS					= "nextPageToken,items(id,title,mimeType,fileSize,createdDate,properties(key,value))";
+	final static String			BULK_FIELDS					= "nextPageToken,items(id,title,mimeType,fileSize,createdDate,parents/id,properties(key,value))";
+	final static String			ID_FIELDS					= "id";
 	private final static long	MIN_TOKEN_REFRESH_TIMEOUT	= 600;
 
 	private GoogleTokenResponse	clientToken;
 	private GoogleCredential	credential;
 	private Drive				service;
+	private RemoteGoogleDriveBatch	batch;
+	private RemoteGoogleDriveUpload	resumableUpload;
+	private RemoteGoogleDriveSessions	sessions;
 
 	private Path				clientTokenPath;
 
@@ -100,6 +112,8 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 	private int					retries;
 	private int					waitretry;
 	private Charset             charset;
+	private boolean				bulkListing;
+	private boolean				reproducibleUploads;
 
 	public RemoteGoogleDriveConnector()
 	{
@@ -117,10 +131,19 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		networkErrorBehavior = options.getNetworkErrorBehavior();
 		charset = options.getCharset();
 
-		cacheFiles = new HashMap<>();
-		cacheParents = new HashMap<>();
+		cacheFiles = new ConcurrentHashMap<>();
+		cacheParents = new ConcurrentHashMap<>();
 
 		this.basePath = Helper.trim(googleDriveOptions.getClientBasePath(), SEPARATOR);
+		this.bulkListing = googleDriveOptions.isBulkListing();
+		// only unencrypted data is the same on every read. encrypted data
+		// gets a new session key each time
+		this.reproducibleUploads = options.getNoEncryption();
+		if (options.getCacheFile() != null)
+		{
+			final Path cacheFilePath = Paths.get(options.getCacheFile());
+			this.sessions = new RemoteGoogleDriveSessions(cacheFilePath.resolveSibling(cacheFilePath.getFileName() + ".uploads"));
+		}
 		this.backupName = backupName;
 		this.historyCount = history;
 		this.historyName = history > 0 ? backupName + " " + new SimpleDateFormat("yyyy.MM.dd_HH.mm.ss").format(new Date()) : null;
@@ -201,9 +224,11 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		String title = handler.getLocalProcessedTitle(item);
 		File parentDriveItem = null;
 		File driveItem;
+		boolean resumable = false;
 		int retryCount = 0;
 		do
 		{
+			LocalStreamData data = null;
 			try
 			{
 				refreshCredential();
@@ -213,10 +238,16 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 				driveItem = new File();
 				driveItem.setTitle(title);
 				driveItem.setParents(Collections.singletonList(parentReference));
-				final LocalStreamData data = _prepareDriveItem(driveItem, item, handler, true);
+				data = _prepareDriveItem(driveItem, item, handler, true);
+				final String checksum = item.getChecksum();
 				if (data == null)
 				{
-					driveItem = service.files().insert(driveItem).execute();
+					driveItem = batch.execute(service.files().insert(driveItem));
+				}
+				else if (RemoteGoogleDriveUpload.isResumable(data.getLength()))
+				{
+					resumable = true;
+					driveItem = resumableUpload.upload(_getSessionKey(item), _getSessionFingerprint(item, parentDriveItem.getId()), null, driveItem, data);
 				}
 				else
 				{
@@ -224,20 +255,23 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 					params.setLength(data.getLength());
 					Insert inserter = service.files().insert(driveItem, params);
 					MediaHttpUploader uploader = inserter.getMediaHttpUploader();
-					prepareUploader(uploader, data.getLength());
+					prepareUploader(uploader);
 					driveItem = inserter.execute();
 				}
 				if (driveItem == null)
 				{
 					throw new CloudsyncException("Couldn't create item '" + item.getPath() + "'");
 				}
+				driveItem = _patchChecksum(driveItem, item, handler, checksum);
 				_addToCache(driveItem, null);
 				item.setRemoteIdentifier(driveItem.getId());
 				return;
 			}
 			catch (final IOException e)
 			{
-				if (parentDriveItem != null)
+				// a resumable upload already asked Drive for the state of its
+				// session
+				if (parentDriveItem != null && !resumable)
 				{
 					for (int i = 0; i < MIN_SEARCH_RETRIES; i++)
 					{
@@ -259,6 +293,11 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 				if( retryCount == -1 ) // ignore a failing item (workaround for now)
 					return;
 			}
+			finally
+			{
+				// a streamed encryption waits until its stream is closed
+				if (data != null) IOUtils.closeQuietly(data.getStream());
+			}
 		}
 		while (true);
 	}
@@ -271,6 +310,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		int retryCount = 0;
 		do
 		{
+			LocalStreamData data = null;
 			try
 			{
 				refreshCredential();
@@ -287,7 +327,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 						// copyOfdriveItem.setTitle(driveItem.getTitle());
 						// copyOfdriveItem.setMimeType(driveItem.getMimeType());
 						// copyOfdriveItem.setProperties(driveItem.getProperties());
-						final File _copyOfDriveItem = service.files().copy(item.getRemoteIdentifier(), copyOfdriveItem).execute();
+						final File _copyOfDriveItem = batch.execute(service.files().copy(item.getRemoteIdentifier(), copyOfdriveItem).setFields(ID_FIELDS));
 						if (_copyOfDriveItem == null)
 						{
 							throw new CloudsyncException("Couldn't make a history snapshot of item '" + item.getPath() + "'");
@@ -295,10 +335,16 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 					}
 				}
 				File driveItem = new File();
-				final LocalStreamData data = _prepareDriveItem(driveItem, item, handler, with_filedata);
+				data = _prepareDriveItem(driveItem, item, handler, with_filedata);
+				final String checksum = item.getChecksum();
 				if (data == null)
 				{
-					driveItem = service.files().update(item.getRemoteIdentifier(), driveItem).execute();
+					driveItem = batch.execute(service.files().update(item.getRemoteIdentifier(), driveItem));
+				}
+				else if (RemoteGoogleDriveUpload.isResumable(data.getLength()))
+				{
+					driveItem = resumableUpload.upload(_getSessionKey(item), _getSessionFingerprint(item, item.getRemoteIdentifier()), item.getRemoteIdentifier(),
+							driveItem, data);
 				}
 				else
 				{
@@ -306,7 +352,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 					params.setLength(data.getLength());
 					Update updater = service.files().update(item.getRemoteIdentifier(), driveItem, params);
 					MediaHttpUploader uploader = updater.getMediaHttpUploader();
-					prepareUploader(uploader, data.getLength());
+					prepareUploader(uploader);
 					driveItem = updater.execute();
 				}
 				if (driveItem == null)
@@ -317,6 +363,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 				{
 					throw new CloudsyncException("Remote item '" + item.getPath() + "' [" + driveItem.getId() + "] is trashed\ntry to run with --nocache");
 				}
+				driveItem = _patchChecksum(driveItem, item, handler, checksum);
 				_addToCache(driveItem, null);
 				return;
 			}
@@ -326,10 +373,63 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 				if(retryCount < 0) // TODO workaround - fix this later
 					retryCount = 0;
 			}
+			finally
+			{
+				if (data != null) IOUtils.closeQuietly(data.getStream());
+			}
 		}
 		while (true);
 	}
 
+	// the updates are sent as batch requests. items with a history snapshot,
+	// failed and trashed items are left to the single update
+	@Override
+	public List<Item> updateMetadata(final Handler handler, final List<Item> items) throws CloudsyncException
+	{
+		initService(handler);
+
+		final List<Item> batchItems = new ArrayList<>();
+		final List<Update> requests = new ArrayList<>();
+		try
+		{
+			refreshCredential();
+
+			for (final Item item : items)
+			{
+				if (historyName != null && item.isType(ItemType.FILE)) continue;
+
+				final File driveItem = new File();
+				try
+				{
+					_prepareDriveItem(driveItem, item, handler, false);
+				}
+				catch (final FileIOException e)
+				{
+					continue;
+				}
+				batchItems.add(item);
+				requests.add(service.files().update(item.getRemoteIdentifier(), driveItem));
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.FINE, "can't prepare batch update", e);
+			return Collections.emptyList();
+		}
+
+		final List<Item> updatedItems = new ArrayList<>();
+		final List<File> driveItems = batch.executeAll(requests);
+		for (int i = 0; i < driveItems.size(); i++)
+		{
+			final File driveItem = driveItems.get(i);
+			if (driveItem == null || driveItem.getLabels().getTrashed()) continue;
+
+			_addToCache(driveItem, null);
+			updatedItems.add(batchItems.get(i));
+		}
+		return updatedItems;
+	}
+
 	@Override
 	public void remove(final Handler handler, final Item item) throws CloudsyncException
 	{
@@ -349,7 +449,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 					parentReference.setId(_parentDriveItem.getId());
 					File driveItem = new File();
 					driveItem.setParents(Collections.singletonList(parentReference));
-					driveItem = service.files().patch(item.getRemoteIdentifier(), driveItem).execute();
+					driveItem = batch.execute(service.files().patch(item.getRemoteIdentifier(), driveItem).setFields(ID_FIELDS));
 					if (driveItem == null)
 					{
 						throw new CloudsyncException("Couldn't make a history snapshot of item '" + item.getPath() + "'");
@@ -357,7 +457,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 				}
 				else
 				{
-					service.files().delete(item.getRemoteIdentifier()).execute();
+					batch.execute(service.files().delete(item.getRemoteIdentifier()));
 				}
 				_removeFromCache(item.getRemoteIdentifier());
 				return;
@@ -399,6 +499,31 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		while (true);
 	}
 
+	@Override
+	public InputStream get(final Handler handler, final Item item, final long offset, final long length) throws CloudsyncException
+	{
+		initService(handler);
+
+		int retryCount = 0;
+		do
+		{
+			try
+			{
+				refreshCredential();
+
+				final File driveItem = _getDriveItem(item);
+				final HttpRequest request = service.getRequestFactory().buildGetRequest(new GenericUrl(driveItem.getDownloadUrl()));
+				request.getHeaders().setRange("bytes=" + offset + "-" + (offset + length - 1));
+				return request.execute().getContent();
+			}
+			catch (final IOException e)
+			{
+				retryCount = validateException("remote get", item, e, retryCount);
+			}
+		}
+		while (true);
+	}
+
 	@Override
 	public List<RemoteItem> readFolder(final Handler handler, final Item parentItem) throws CloudsyncException
 	{
@@ -429,6 +554,34 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		while (true);
 	}
 
+	@Override
+	public Map<String, List<RemoteItem>> readFolders(final Handler handler, final Item parentItem) throws CloudsyncException
+	{
+		if (!bulkListing) return null;
+
+		initService(handler);
+
+		int retryCount = 0;
+		do
+		{
+			try
+			{
+				refreshCredential();
+
+				final Map<String, List<RemoteItem>> child_items = new HashMap<>();
+				_prepareBackupItems(parentItem, _readFolders(), child_items, handler);
+				return child_items;
+			}
+			catch (final IOException e)
+			{
+				retryCount = validateException("remote fetch", parentItem, e, retryCount);
+				if(retryCount < 0) // TODO workaround - fix this later
+					retryCount = 0;
+			}
+		}
+		while (true);
+	}
+
 	@Override
 	public void cleanHistory(final Handler handler) throws CloudsyncException
 	{
@@ -506,6 +659,68 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		return child_items;
 	}
 
+	// pages once through all files and groups them by their parent folders
+	private Map<String, List<File>> _readFolders() throws IOException
+	{
+		final Map<String, List<File>> child_items = new HashMap<>();
+
+		final Drive.Files.List request = service.files().list();
+		request.setQ(BULK_QUERY);
+		request.setMaxResults(MAX_RESULTS);
+		request.setFields(BULK_FIELDS);
+
+		int count = 0;
+		do
+		{
+			FileList files = request.execute();
+
+			final List<File> result = files.getItems();
+			for (final File file : result)
+			{
+				if (file.getParents() == null) continue;
+				for (final ParentReference parent : file.getParents())
+				{
+					List<File> parent_items = child_items.get(parent.getId());
+					if (parent_items == null)
+					{
+						parent_items = new ArrayList<>();
+						child_items.put(parent.getId(), parent_items);
+					}
+					parent_items.add(file);
+				}
+			}
+			count += result.size();
+			LOGGER.log(Level.INFO, "\r  listed " + count + " remote items", true);
+			request.setPageToken(files.getNextPageToken());
+
+		}
+		while (request.getPageToken() != null && request.getPageToken().length() > 0);
+
+		return child_items;
+	}
+
+	// everything outside of 'parentItem' is ignored
+	private void _prepareBackupItems(final Item parentItem, final Map<String, List<File>> driveItems, final Map<String, List<RemoteItem>> items,
+			final Handler handler) throws CloudsyncException
+	{
+		final List<RemoteItem> child_items = new ArrayList<>();
+		items.put(parentItem.getRemoteIdentifier(), child_items);
+
+		final List<File> childDriveItems = driveItems.get(parentItem.getRemoteIdentifier());
+		if (childDriveItems == null) return;
+
+		for (final File child : childDriveItems)
+		{
+			final RemoteItem childItem = _prepareBackupItem(parentItem, child, handler);
+			child_items.add(childItem);
+			if (childItem.isType(ItemType.FOLDER) && !items.containsKey(childItem.getRemoteIdentifier()))
+			{
+				childItem.setParent(parentItem);
+				_prepareBackupItems(childItem, driveItems, items, handler);
+			}
+		}
+	}
+
 	private LocalStreamData _prepareDriveItem(final File driveItem, final Item item, final Handler handler, final boolean with_filedata) throws FileIOException
 	{
 		LocalStreamData data = null;
@@ -516,7 +731,16 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 			data = handler.getLocalProcessedBinary(item);
 		}
 
-		final String metadata = handler.getLocalProcessedMetadata(item);
+		final String metadata;
+		try
+		{
+			metadata = handler.getLocalProcessedMetadata(item);
+		}
+		catch (FileIOException | RuntimeException e)
+		{
+			if (data != null) IOUtils.closeQuietly(data.getStream());
+			throw e;
+		}
 
 		final List<Property> properties = new ArrayList<>();
 
@@ -546,6 +770,17 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		return data;
 	}
 
+	// unencrypted data is checksummed while it is uploaded. so the metadata
+	// has to be patched if the checksum was not final before the upload.
+	private File _patchChecksum(final File driveItem, final Item item, final Handler handler, final String checksum) throws FileIOException, IOException
+	{
+		if (StringUtils.equals(checksum, item.getChecksum())) return driveItem;
+
+		final File patchedDriveItem = new File();
+		_prepareDriveItem(patchedDriveItem, item, handler, false);
+		return service.files().patch(driveItem.getId(), patchedDriveItem).execute();
+	}
+
 	private RemoteItem _prepareBackupItem(final Item parentItem, final File driveItem, final Handler handler) throws CloudsyncException
 	{
 		final List<Property> properties = driveItem.getProperties();
@@ -703,14 +938,14 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		return _getDriveFolder(basePath + SEPARATOR + backupName);
 	}
 
-	private File _getDriveFolder(final String path) throws CloudsyncException
+	private synchronized File _getDriveFolder(final String path) throws CloudsyncException
 	{
 		int retryCount = 0;
 		do
 		{
 			try
 			{
-				File parentItem = service.files().get("root").execute();
+				File parentItem = service.files().get("root").setFields(ID_FIELDS).execute();
 
 				final String[] folderNames = StringUtils.split(path, SEPARATOR);
 
@@ -815,7 +1050,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		}
 	}
 
-	private int validateException(String name, Item item, IOException e, int count) throws CloudsyncException
+	private synchronized int validateException(String name, Item item, IOException e, int count) throws CloudsyncException
 	{
 		if( e instanceof GoogleJsonResponseException)
 		{
@@ -905,7 +1140,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		return "'" + msg + "'";
 	}
 
-	public void initService(Handler handler) throws CloudsyncException
+	public synchronized void initService(Handler handler) throws CloudsyncException
 	{
 
 		if (service != null) return;
@@ -915,7 +1150,10 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		service = new Drive.Builder(httpTransport, jsonFactory, null)
 			.setApplicationName("Backup")
 			.setHttpRequestInitializer(credential)
+			.setGoogleClientRequestInitializer(new FieldsRequestInitializer())
 			.build();
+		batch = new RemoteGoogleDriveBatch(service);
+		resumableUpload = new RemoteGoogleDriveUpload(service, sessions, ITEM_FIELDS, retries, waitretry, showProgress);
 		if (StringUtils.isEmpty(credential.getServiceAccountId())) {
 			credential.setExpiresInSeconds(MIN_TOKEN_REFRESH_TIMEOUT);
 		}
@@ -930,7 +1168,7 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		handler.getRootItem().setRemoteIdentifier(_getBackupFolder().getId());
 	}
 
-	private void refreshCredential() throws IOException
+	private synchronized void refreshCredential() throws IOException
 	{
 		if (StringUtils.isNotEmpty(credential.getServiceAccountId())) return;
 		
@@ -948,83 +1186,33 @@ public class RemoteGoogleDriveConnector implements RemoteConnector
 		}
 	}
 
-	private void prepareUploader(MediaHttpUploader uploader, long length)
+	// small files are sent in a single request. larger ones use a
+	// RemoteGoogleDriveUpload
+	private void prepareUploader(MediaHttpUploader uploader)
 	{
-		int chunkSize = MediaHttpUploader.MINIMUM_CHUNK_SIZE * CHUNK_COUNT;
-		int chunkCount = (int) Math.ceil(length / (double) chunkSize);
-
-		if (showProgress && chunkCount > 1)
-		{
-			uploader.setDirectUploadEnabled(false);
-			uploader.setChunkSize(chunkSize);
-			uploader.setProgressListener(new RemoteGoogleDriveProgress(this, length));
-		}
-		else
-		{
-
-			uploader.setDirectUploadEnabled(true);
-		}
+		uploader.setDirectUploadEnabled(true);
 	}
 
-	private class RemoteGoogleDriveProgress implements MediaHttpUploaderProgressListener
+	private String _getSessionKey(final Item item)
 	{
-		private final long					length;
-		private final DecimalFormat			df;
-		private long						lastBytes;
-		private long						lastTime;
-		private final RemoteGoogleDriveConnector	connector;
+		return reproducibleUploads && sessions != null ? item.getPath() : null;
+	}
 
-		public RemoteGoogleDriveProgress(RemoteGoogleDriveConnector connector, long length)
-		{
-			this.length = length;
-			this.connector = connector;
-			df = new DecimalFormat("00");
-			lastBytes = 0;
-			lastTime = System.currentTimeMillis();
-		}
+	// the stored data of a session is only reused for the same target and
+	// unchanged local data
+	private String _getSessionFingerprint(final Item item, final String targetId)
+	{
+		return targetId + ":" + item.getFilesize() + ":" + item.getModifyTimeSeconds();
+	}
 
+	// the connector only reads a few attributes. so no request should fetch full file resources
+	static class FieldsRequestInitializer extends DriveRequestInitializer
+	{
 		@Override
-		public void progressChanged(MediaHttpUploader mediaHttpUploader) throws IOException
-		{
-			if (mediaHttpUploader == null) return;
-
-			switch ( mediaHttpUploader.getUploadState() )
-			{
-				case INITIATION_COMPLETE:
-					break;
-				case INITIATION_STARTED:
-				case MEDIA_IN_PROGRESS:
-
-					this.connector.refreshCredential();
-
-					double percent = mediaHttpUploader.getProgress() * 100;
-
-					long currentTime = System.currentTimeMillis();
-
-					String msg = "\r  " + df.format(Math.ceil(percent)) + "% (" + convertToKB(mediaHttpUploader.getNumBytesUploaded()) + " of "
-							+ convertToKB(length) + " kb)";
-
-					if (mediaHttpUploader.getUploadState().equals(UploadState.MEDIA_IN_PROGRESS))
-					{
-						long speed = convertToKB((mediaHttpUploader.getNumBytesUploaded() - lastBytes) / ((currentTime - lastTime) / 1000.0));
-						msg += " - " + speed + " kb/s";
-					}
-
-					LOGGER.log(Level.FINEST, msg, true);
-
-					lastTime = currentTime;
-					lastBytes = mediaHttpUploader.getNumBytesUploaded();
-					break;
-				case MEDIA_COMPLETE:
-					// System.out.println("Upload is complete!");
-				default:
-					break;
-			}
-		}
-
-		private long convertToKB(double size)
+		protected void initializeDriveRequest(final DriveRequest<?> request) throws IOException
 		{
-			return (long) Math.ceil(size / 1024);
+			if (request.getFields() != null) return;
+			request.setFields(request instanceof Drive.Files.List ? LIST_FIELDS : ITEM_FIELDS);
 		}
 	}
 }
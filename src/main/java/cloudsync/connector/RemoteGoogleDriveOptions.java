@@ -15,6 +15,7 @@ public class RemoteGoogleDriveOptions
 	private String	serviceAccountEmail				= null;
 	private String	serviceAccountUser				= null;
 	private String	serviceAccountPrivateKeyP12Path	= null;
+	private boolean	bulkListing						= false;
 	
 	public RemoteGoogleDriveOptions(CmdOptions options, String name) throws CloudsyncException
 	{
@@ -24,6 +25,8 @@ public class RemoteGoogleDriveOptions
 			throw new CloudsyncException(prepareMessage("GOOGLE_DRIVE_DIR"));
 		}
 
+		bulkListing = Boolean.parseBoolean(options.getProperty("GOOGLE_DRIVE_BULK_LISTING"));
+
 		clientID = options.getProperty("GOOGLE_DRIVE_CLIENT_ID");
 		clientSecret = options.getProperty("GOOGLE_DRIVE_CLIENT_SECRET");
 		clientTokenPath = Helper.preparePath(options.getProperty("GOOGLE_DRIVE_CLIENT_TOKEN_PATH"), name);
@@ -92,4 +95,8 @@ public class RemoteGoogleDriveOptions
 	public String getServiceAccountPrivateKeyP12Path() {
 		return serviceAccountPrivateKeyP12Path;
 	}
+
+	public boolean isBulkListing() {
+		return bulkListing;
+	}
 }
@@ -0,0 +1,162 @@
+package cloudsync.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumable upload sessions which are stored next to the structure cache. A
+ * session is kept until its upload is complete, so a restarted backup can
+ * continue the upload. Drive drops unfinished sessions after a week.
+ *
+ * <pre>
+ * item path = created, committed offset, fingerprint, session uri
+ * </pre>
+ */
+class RemoteGoogleDriveSessions
+{
+	private final static Logger	LOGGER		= Logger.getLogger(RemoteGoogleDriveSessions.class.getName());
+
+	private final static long	MAX_AGE		= 7 * 24 * 60 * 60 * 1000L;
+	private final static char	SEPARATOR	= ' ';
+
+	private final Path			path;
+	private final Properties	sessions	= new Properties();
+
+	public static class Session
+	{
+		private final long		created;
+		private final long		offset;
+		private final String	fingerprint;
+		private final String	uri;
+
+		private Session(final long created, final long offset, final String fingerprint, final String uri)
+		{
+			this.created = created;
+			this.offset = offset;
+			this.fingerprint = fingerprint;
+			this.uri = uri;
+		}
+
+		public long getOffset()
+		{
+			return offset;
+		}
+
+		public String getFingerprint()
+		{
+			return fingerprint;
+		}
+
+		public String getUri()
+		{
+			return uri;
+		}
+	}
+
+	public RemoteGoogleDriveSessions(final Path path)
+	{
+		this.path = path;
+
+		if (!Files.exists(path)) return;
+
+		try (InputStream in = Files.newInputStream(path))
+		{
+			sessions.load(in);
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "can't read upload sessions from '" + path + "'", e);
+			sessions.clear();
+		}
+
+		final long now = System.currentTimeMillis();
+		for (final String key : sessions.stringPropertyNames())
+		{
+			final Session session = get(key);
+			if (session == null || now - session.created > MAX_AGE) sessions.remove(key);
+		}
+	}
+
+	public synchronized Session get(final String key)
+	{
+		final String value = sessions.getProperty(key);
+		if (value == null) return null;
+
+		final String[] parts = value.split(String.valueOf(SEPARATOR), 4);
+		if (parts.length != 4) return null;
+
+		try
+		{
+			return new Session(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2], parts[3]);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	public synchronized void put(final String key, final String fingerprint, final String uri)
+	{
+		store(key, new Session(System.currentTimeMillis(), 0, fingerprint, uri));
+	}
+
+	public synchronized void commit(final String key, final long offset)
+	{
+		final Session session = get(key);
+		if (session == null) return;
+
+		store(key, new Session(session.created, offset, session.fingerprint, session.uri));
+	}
+
+	public synchronized void remove(final String key)
+	{
+		if (sessions.remove(key) != null) write();
+	}
+
+	private void store(final String key, final Session session)
+	{
+		sessions.setProperty(key, Long.toString(session.created) + SEPARATOR + session.offset + SEPARATOR + session.fingerprint + SEPARATOR + session.uri);
+		write();
+	}
+
+	// a lost update only costs a restarted upload. so errors are logged and
+	// not thrown
+	private void write()
+	{
+		try
+		{
+			if (sessions.isEmpty())
+			{
+				Files.deleteIfExists(path);
+				return;
+			}
+
+			final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(tmpPath))
+			{
+				sessions.store(out, null);
+			}
+
+			try
+			{
+				Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "can't write upload sessions to '" + path + "'", e);
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package cloudsync.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import cloudsync.model.LocalStreamData;
+
+/**
+ * Uploads file data in a resumable upload session.
+ *
+ * The data is sent in chunks. After a network error the upload continues at
+ * the last offset acknowledged by Drive. Only the unacknowledged part of the
+ * current chunk is kept in memory. The chunk size follows the measured
+ * throughput, so a chunk takes about TARGET_CHUNK_TIME.
+ *
+ * If a session key is given, the session is stored in the session file.
+ * Another upload of the same key and fingerprint, e.g. after a restart,
+ * skips the data already stored by Drive. This requires that the uploaded
+ * data is the same on every read.
+ */
+class RemoteGoogleDriveUpload
+{
+	private final static Logger				LOGGER				= Logger.getLogger(RemoteGoogleDriveUpload.class.getName());
+
+	// Drive recommends a resumable upload for files larger than 5 MB
+	private final static long				RESUMABLE_SIZE		= 5 * 1024 * 1024;
+	private final static int				MIN_CHUNK_SIZE		= MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+	private final static int				MAX_CHUNK_SIZE		= MIN_CHUNK_SIZE * 128;
+	private final static long				TARGET_CHUNK_TIME	= 5000;
+	private final static int				STATUS_INCOMPLETE	= 308;
+
+	private final Drive						service;
+	private final RemoteGoogleDriveSessions	sessions;
+	private final String					fields;
+	private final int						retries;
+	private final int						waitretry;
+	private final boolean					showProgress;
+
+	// learned from previous uploads
+	private volatile int					chunkSize			= MIN_CHUNK_SIZE * 4;
+
+	private static class Status
+	{
+		private final long	offset;
+		private final File	file;
+
+		public Status(final long offset, final File file)
+		{
+			this.offset = offset;
+			this.file = file;
+		}
+	}
+
+	public RemoteGoogleDriveUpload(final Drive service, final RemoteGoogleDriveSessions sessions, final String fields, final int retries, final int waitretry,
+			final boolean showProgress)
+	{
+		this.service = service;
+		this.sessions = sessions;
+		this.fields = fields;
+		this.retries = retries;
+		this.waitretry = waitretry;
+		this.showProgress = showProgress;
+	}
+
+	public static boolean isResumable(final long length)
+	{
+		return length < 0 || length > RESUMABLE_SIZE;
+	}
+
+	/**
+	 * @param key
+	 *            session key or null, if the session should not be stored
+	 * @param fileId
+	 *            id of the updated file or null, if a new file is created
+	 */
+	public File upload(final String key, final String fingerprint, final String fileId, final File metadata, final LocalStreamData data) throws IOException
+	{
+		final InputStream stream = data.getStream();
+		final long length = data.getLength();
+
+		String uri = null;
+		long offset = 0;
+
+		if (key != null)
+		{
+			final RemoteGoogleDriveSessions.Session session = sessions.get(key);
+			if (session != null && session.getFingerprint().equals(fingerprint))
+			{
+				try
+				{
+					final Status status = query(session.getUri(), length);
+					if (status.file != null)
+					{
+						skip(stream, Long.MAX_VALUE);
+						sessions.remove(key);
+						return status.file;
+					}
+					uri = session.getUri();
+					offset = skip(stream, status.offset);
+					LOGGER.log(Level.INFO, "  resume upload at " + convertToKB(offset) + " kb");
+				}
+				catch (HttpResponseException e)
+				{
+					if (!isExpired(e)) throw e;
+				}
+			}
+			if (uri == null && session != null)
+			{
+				sessions.remove(key);
+			}
+		}
+
+		if (uri == null)
+		{
+			uri = start(fileId, metadata, length);
+			if (key != null) sessions.put(key, fingerprint, uri);
+		}
+
+		final long startTime = System.currentTimeMillis();
+		final long startOffset = offset;
+		byte[] buffer = new byte[chunkSize];
+		int buffered = 0;
+		boolean eof = false;
+		long total = length;
+
+		while (true)
+		{
+			final int size = chunkSize;
+			if (buffer.length < size) buffer = Arrays.copyOf(buffer, size);
+
+			while (buffered < size && !eof)
+			{
+				final int len = stream.read(buffer, buffered, size - buffered);
+				if (len == -1) eof = true;
+				else buffered += len;
+			}
+			if (eof && total < 0) total = offset + buffered;
+
+			final int len = eof && buffered <= size ? buffered : size;
+
+			final long chunkTime = System.currentTimeMillis();
+			final Status status;
+			try
+			{
+				status = send(uri, buffer, len, offset, eof ? total : -1);
+			}
+			catch (HttpResponseException e)
+			{
+				if (key != null && isExpired(e)) sessions.remove(key);
+				throw e;
+			}
+
+			if (status.file != null)
+			{
+				if (key != null) sessions.remove(key);
+				return status.file;
+			}
+			if (status.offset < offset || status.offset > offset + len)
+			{
+				throw new IOException("unexpected upload offset " + status.offset + " after sending " + offset + "-" + (offset + len));
+			}
+
+			final int acknowledged = (int) (status.offset - offset);
+			System.arraycopy(buffer, acknowledged, buffer, 0, buffered - acknowledged);
+			buffered -= acknowledged;
+			offset = status.offset;
+			if (key != null) sessions.commit(key, offset);
+
+			adaptChunkSize(acknowledged, System.currentTimeMillis() - chunkTime);
+
+			if (showProgress) logProgress(offset, length, offset - startOffset, System.currentTimeMillis() - startTime);
+		}
+	}
+
+	private void adaptChunkSize(final int bytes, final long time)
+	{
+		if (bytes <= 0) return;
+
+		// grow at most by factor 2 to avoid a too large chunk after a single
+		// fast one
+		final long target = Math.min(bytes * TARGET_CHUNK_TIME / Math.max(time, 1), chunkSize * 2L);
+		final long size = target / MIN_CHUNK_SIZE * MIN_CHUNK_SIZE;
+		chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size));
+	}
+
+	private String start(final String fileId, final File metadata, final long length) throws IOException
+	{
+		final GenericUrl url = new GenericUrl(service.getRootUrl() + "upload/" + service.getServicePath() + "files" + (fileId == null ? "" : "/" + fileId));
+		url.put("uploadType", "resumable");
+		url.put("fields", fields);
+
+		final JsonHttpContent content = new JsonHttpContent(service.getJsonFactory(), metadata);
+		final HttpRequest request = fileId == null ? service.getRequestFactory().buildPostRequest(url, content) : service.getRequestFactory().buildPutRequest(
+				url, content);
+		request.getHeaders().set("X-Upload-Content-Type", metadata.getMimeType());
+		if (length >= 0) request.getHeaders().set("X-Upload-Content-Length", length);
+		request.setThrowExceptionOnExecuteError(false);
+
+		final HttpResponse response = request.execute();
+		try
+		{
+			if (!response.isSuccessStatusCode()) throw GoogleJsonResponseException.from(service.getJsonFactory(), response);
+
+			final String location = response.getHeaders().getLocation();
+			if (location == null) throw new IOException("missing upload session uri");
+			return location;
+		}
+		finally
+		{
+			response.disconnect();
+		}
+	}
+
+	private Status send(final String uri, final byte[] buffer, final int len, final long offset, final long total) throws IOException
+	{
+		int retryCount = 0;
+		while (true)
+		{
+			try
+			{
+				final HttpRequest request = service.getRequestFactory().buildPutRequest(new GenericUrl(uri), new ByteArrayContent(null, buffer, 0, len));
+				request.getHeaders().setContentRange(
+						len == 0 ? "bytes */" + toRange(total) : "bytes " + offset + "-" + (offset + len - 1) + "/" + toRange(total));
+				return execute(request);
+			}
+			catch (IOException e)
+			{
+				if ((e instanceof HttpResponseException && !isRetryable((HttpResponseException) e)) || retryCount++ >= retries) throw e;
+
+				LOGGER.log(Level.WARNING, "Google Drive IOException: '" + e.getMessage() + "' - resume upload at last acknowledged offset - retry " + retryCount + "/"
+						+ retries + " - wait " + waitretry + " ms");
+				sleep(waitretry);
+			}
+
+			try
+			{
+				final Status status = query(uri, total);
+				if (status.file != null || status.offset > offset) return status;
+			}
+			catch (IOException e)
+			{
+				if (e instanceof HttpResponseException && !isRetryable((HttpResponseException) e)) throw e;
+			}
+		}
+	}
+
+	private Status query(final String uri, final long total) throws IOException
+	{
+		final HttpRequest request = service.getRequestFactory().buildPutRequest(new GenericUrl(uri), new ByteArrayContent(null, new byte[0]));
+		request.getHeaders().setContentRange("bytes */" + toRange(total));
+		return execute(request);
+	}
+
+	private Status execute(final HttpRequest request) throws IOException
+	{
+		request.setThrowExceptionOnExecuteError(false);
+		request.setFollowRedirects(false);
+		request.setParser(service.getObjectParser());
+
+		final HttpResponse response = request.execute();
+		try
+		{
+			if (response.isSuccessStatusCode())
+			{
+				return new Status(-1, response.parseAs(File.class));
+			}
+			if (response.getStatusCode() == STATUS_INCOMPLETE)
+			{
+				// "bytes=0-<last stored byte>"
+				final String range = response.getHeaders().getRange();
+				return new Status(range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1, null);
+			}
+			throw GoogleJsonResponseException.from(service.getJsonFactory(), response);
+		}
+		finally
+		{
+			response.disconnect();
+		}
+	}
+
+	// reads and drops the data which is already stored by Drive. the data is
+	// still read, because the checksum is calculated while the stream is
+	// consumed
+	private static long skip(final InputStream stream, final long count) throws IOException
+	{
+		final byte[] buffer = new byte[MIN_CHUNK_SIZE];
+		long skipped = 0;
+		while (skipped < count)
+		{
+			final int len = stream.read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+			if (len == -1) break;
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	private static boolean isExpired(final HttpResponseException e)
+	{
+		return e.getStatusCode() == 404 || e.getStatusCode() == 410;
+	}
+
+	private static boolean isRetryable(final HttpResponseException e)
+	{
+		return e.getStatusCode() >= 500 || e.getStatusCode() == 408 || e.getStatusCode() == 429;
+	}
+
+	private static String toRange(final long total)
+	{
+		return total < 0 ? "*" : Long.toString(total);
+	}
+
+	private void logProgress(final long offset, final long length, final long bytes, final long time)
+	{
+		String msg = "\r  ";
+		if (length > 0)
+		{
+			msg += new DecimalFormat("00").format(Math.ceil(offset * 100.0 / length)) + "% (" + convertToKB(offset) + " of " + convertToKB(length) + " kb)";
+		}
+		else
+		{
+			msg += "(" + convertToKB(offset) + " kb)";
+		}
+		msg += " - " + convertToKB(bytes / Math.max(time / 1000.0, 0.001)) + " kb/s";
+		LOGGER.log(Level.FINEST, msg, true);
+	}
+
+	private static long convertToKB(final double size)
+	{
+		return (long) Math.ceil(size / 1024);
+	}
+
+	private static void sleep(final long duration)
+	{
+		try
+		{
+			Thread.sleep(duration);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
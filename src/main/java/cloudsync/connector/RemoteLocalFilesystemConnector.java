@@ -7,6 +7,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,12 +23,16 @@ import cloudsync.model.LocalStreamData;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.Comparator;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 public class RemoteLocalFilesystemConnector implements RemoteConnector {
 
@@ -96,15 +101,19 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
                     data = handler.getLocalProcessedBinary(item);
                 }
 
+                // upload file data. the checksum is final after the stream is consumed
+                if( data != null ) {
+                    try {
+                        java.nio.file.Files.copy(data.getStream(),remoteFile.toPath());
+                    } finally {
+                        IOUtils.closeQuietly(data.getStream());
+                    }
+                }
+
                 final String metadata = handler.getLocalProcessedMetadata(item);
 
                 // upload metadata
                 java.nio.file.Files.write(remoteMetadataFile.toPath(), metadata.getBytes("UTF-8"),StandardOpenOption.CREATE_NEW);
-
-                // upload file data
-                if( data != null ) {
-                    java.nio.file.Files.copy(data.getStream(),remoteFile.toPath());
-                }
                 
                 // verifiy
                 if (!remoteFile.exists()) {
@@ -114,6 +123,7 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
                 if(!remoteMetadataFile.exists()) {
                     throw new CloudsyncException("Couldn't create metadata for item '" + item.getPath() + "'");
                 }
+                _updateManifest(remoteFile.getParentFile(), remoteFile.getName(), remoteMetadataFile, metadata);
                 
                 //_addToCache(driveItem, null);
                 item.setRemoteIdentifier(remoteFile.getName());
@@ -148,7 +158,11 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
                         _moveToHistory(item);
                     }
                     LocalStreamData data = handler.getLocalProcessedBinary(item);
-                    java.nio.file.Files.copy(data.getStream(), remoteFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    try {
+                        java.nio.file.Files.copy(data.getStream(), remoteFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    } finally {
+                        IOUtils.closeQuietly(data.getStream());
+                    }
                 }
                 final String metadata = handler.getLocalProcessedMetadata(item);
                 java.nio.file.Files.write(remoteMetadataFile.toPath(), metadata.getBytes("UTF-8"),StandardOpenOption.TRUNCATE_EXISTING);                
@@ -156,6 +170,7 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
                 if (!remoteFile.exists() && ! remoteMetadataFile.exists()) {
                     throw new CloudsyncException("Couldn't update item '" + item.getPath() + "'");
                 }
+                _updateManifest(remoteFile.getParentFile(), remoteFile.getName(), remoteMetadataFile, metadata);
                 //_addToCache(driveItem, null);
                 return;
             } catch (final IOException e) {
@@ -164,6 +179,11 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
         } while (true);
     }
     
+    @Override
+    public List<Item> updateMetadata(final Handler handler, final List<Item> items) throws CloudsyncException {
+        return Collections.emptyList();
+    }
+
     private void _moveToHistory(final Item item) throws IOException,CloudsyncException {
         if (remoteBackupHistoryFolder != null) {
             final File remoteFile = _getRemoteFile(item);
@@ -192,14 +212,19 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
         do {
             try {
                 final File remoteFile = _getRemoteFile(item);
-                final File remoteFileMetadata = new File(remoteFile.getParent(),remoteFile.getParent()+".metadata");
+                final File remoteFileMetadata = new File(remoteFile.getParent(),remoteFile.getName()+".metadata");
             
                 if (remoteBackupHistoryFolder != null) {
                     _moveToHistory(item);
                 }
                 
-                remoteFile.delete();
+                if (remoteFile.isDirectory()) {
+                    FileUtils.deleteDirectory(remoteFile);
+                } else {
+                    remoteFile.delete();
+                }
                 remoteFileMetadata.delete();
+                _updateManifest(remoteFile.getParentFile(), remoteFile.getName(), null, null);
                 //_removeFromCache(item.getRemoteIdentifier());
                 return;
             } 
@@ -222,6 +247,25 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
         } while (true);
     }
 
+    @Override
+    public InputStream get(final Handler handler, final Item item, final long offset, final long length) throws CloudsyncException {
+        int retryCount = 0;
+        do {
+            try {
+                final FileInputStream stream = new FileInputStream(_getRemoteFile(item));
+                try {
+                    stream.getChannel().position(offset);
+                } catch (final IOException e) {
+                    IOUtils.closeQuietly(stream);
+                    throw e;
+                }
+                return new BoundedInputStream(stream, length);
+            } catch (final IOException e) {
+                retryCount = validateException("remote get", item, e, retryCount);
+            }
+        } while (true);
+    }
+
     @Override
     public List<RemoteItem> readFolder(final Handler handler, final Item parentItem) throws CloudsyncException {
         int retryCount = 0;
@@ -229,6 +273,7 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
             try {
                 final List<RemoteItem> child_items = new ArrayList<>();
                 File remoteFolder = _getRemoteFile(parentItem);
+                final RemoteFolderManifest manifest = _readManifest(remoteFolder);
                 for (final File child : remoteFolder.listFiles(new FileFilter() {
                     @Override
                     public boolean accept(File pathname) {
@@ -238,7 +283,7 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
                         return true;
                     }
                 })) {
-                    child_items.add(_prepareBackupItem(child, handler));
+                    child_items.add(_prepareBackupItem(child, manifest, handler));
                 }
                 return child_items;
             } 
@@ -248,6 +293,11 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
         } while (true);
     }
 
+    @Override
+    public Map<String, List<RemoteItem>> readFolders(final Handler handler, final Item parentItem) throws CloudsyncException {
+        return null;
+    }
+
     @Override
     public void cleanHistory(final Handler handler) throws CloudsyncException {
         File rootTarget = remoteBackupFolder.getParentFile();
@@ -315,10 +365,16 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
     }
     
 
-    private RemoteItem _prepareBackupItem(final File remoteFile, final Handler handler) throws CloudsyncException {
+    private RemoteItem _prepareBackupItem(final File remoteFile, final RemoteFolderManifest manifest, final Handler handler) throws CloudsyncException {
         try {
             File remoteMetadataFile = new File(remoteFile.getParent(),remoteFile.getName() + ".metadata");
-            String encryptedMetadata = remoteMetadataFile.exists() ? new String(Files.readAllBytes(remoteMetadataFile.toPath()),"UTF-8") : "";
+            String encryptedMetadata = "";
+            if (remoteMetadataFile.exists()) {
+                encryptedMetadata = manifest.get(remoteFile.getName(), _getManifestStamp(remoteMetadataFile));
+                if (encryptedMetadata == null) {
+                    encryptedMetadata = new String(Files.readAllBytes(remoteMetadataFile.toPath()),"UTF-8");
+                }
+            }
             String metadata = encryptedMetadata.isEmpty() ? "" : handler.getProcessedText(encryptedMetadata);
             String title = handler.getProcessedText(remoteFile.getName());
             return handler.initRemoteItem(remoteFile.getName(), remoteFile.isDirectory(), title, metadata, remoteFile.length(),FileTime.fromMillis(remoteFile.lastModified()));
@@ -332,6 +388,55 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
 
 
 
+    // the manifest is only a shortcut to the metadata files. so a missing or
+    // unreadable manifest just means that the metadata files are read
+    private RemoteFolderManifest _readManifest(final File remoteFolder) {
+        final RemoteFolderManifest manifest = new RemoteFolderManifest();
+        final File manifestFile = new File(remoteFolder, RemoteFolderManifest.NAME + ".metadata");
+        if (manifestFile.exists()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.log(Level.FINE, "can't read manifest of '" + remoteFolder + "'", e);
+                return new RemoteFolderManifest();
+            }
+        }
+        return manifest;
+    }
+
+    // the entry of a changed metadata file is replaced together with the file.
+    // 'metadata' is null for a removed item
+    private synchronized void _updateManifest(final File remoteFolder, final String name, final File remoteMetadataFile, final String metadata) {
+        final RemoteFolderManifest manifest = _readManifest(remoteFolder);
+        if (metadata == null) {
+            manifest.remove(name);
+        } else {
+            manifest.put(name, _getManifestStamp(remoteMetadataFile), metadata);
+        }
+        _writeManifest(remoteFolder, manifest);
+    }
+
+    private String _getManifestStamp(final File remoteMetadataFile) {
+        return remoteMetadataFile.length() + ":" + remoteMetadataFile.lastModified();
+    }
+
+    private void _writeManifest(final File remoteFolder, final RemoteFolderManifest manifest) {
+        final File manifestFile = new File(remoteFolder, RemoteFolderManifest.NAME + ".metadata");
+        final File tmpFile = new File(remoteFolder, RemoteFolderManifest.NAME + ".tmp.metadata");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+                manifest.store(out);
+            }
+            try {
+                Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "can't write manifest of '" + remoteFolder + "'", e);
+        }
+    }
+
     /*private void _removeFromCache(final String id) {
         cacheFiles.remove(id);
     }
@@ -352,7 +457,7 @@ public class RemoteLocalFilesystemConnector implements RemoteConnector {
         }
     }
 
-    private int validateException(String name, Item item, IOException e, int count) throws CloudsyncException {
+    private synchronized int validateException(String name, Item item, IOException e, int count) throws CloudsyncException {
         if (count < retries) {
             long currentValidate = System.currentTimeMillis();
             long current_retry_break = (currentValidate - lastValidate);
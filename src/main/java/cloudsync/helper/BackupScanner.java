@@ -0,0 +1,225 @@
+package cloudsync.helper;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import cloudsync.connector.LocalFilesystemConnector;
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.exceptions.FileIOException;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+import cloudsync.model.options.FollowLinkType;
+
+/**
+ * Walks the local tree in the same order as the former recursive backup and
+ * emits one entry per child plus an end marker per folder (including the root).
+ * If a queue size is given the walk runs in its own thread.
+ */
+public class BackupScanner
+{
+	public static class Entry
+	{
+		private final File				file;
+		private final String			path;
+		private final Item				item;
+		private final FileIOException	error;
+		private final boolean			hasChildren;
+
+		private Entry(final File file, final String path, final Item item, final FileIOException error, final boolean hasChildren)
+		{
+			this.file = file;
+			this.path = path;
+			this.item = item;
+			this.error = error;
+			this.hasChildren = hasChildren;
+		}
+
+		public boolean isEnd()
+		{
+			return file == null;
+		}
+
+		public File getFile()
+		{
+			return file;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public Item getItem() throws FileIOException
+		{
+			if (error != null) throw error;
+			return item;
+		}
+
+		public boolean hasChildren()
+		{
+			return hasChildren;
+		}
+	}
+
+	private final static Entry					END			= new Entry(null, null, null, null, false);
+	private final static Entry					FINISHED	= new Entry(null, null, null, null, false);
+	private final static File[]					NO_FILES	= new File[0];
+
+	private final LocalFilesystemConnector		localConnection;
+	private final FollowLinkType				followlinks;
+	private final List<String>					followedLinkPaths;
+	private final PathMatcher					pathMatcher;
+
+	private final Deque<Frame>					stack		= new ArrayDeque<>();
+	private final BlockingQueue<Object>			queue;
+	private Thread								thread;
+	private volatile boolean					closed;
+
+	private static class Frame
+	{
+		private final File[]	files;
+		private int				index;
+
+		public Frame(final File[] files)
+		{
+			this.files = files;
+		}
+	}
+
+	public BackupScanner(final LocalFilesystemConnector localConnection, final FollowLinkType followlinks, final List<String> followedLinkPaths,
+			final PathMatcher pathMatcher, final int queueSize)
+	{
+		this.localConnection = localConnection;
+		this.followlinks = followlinks;
+		this.followedLinkPaths = followedLinkPaths;
+		this.pathMatcher = pathMatcher;
+		this.queue = queueSize > 0 ? new ArrayBlockingQueue<Object>(queueSize) : null;
+	}
+
+	public void start(final Item root) throws CloudsyncException
+	{
+		stack.push(new Frame(localConnection.readFolder(root)));
+
+		if (queue == null) return;
+
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Entry entry;
+					do
+					{
+						entry = produce();
+						queue.put(entry);
+					}
+					while (entry != FINISHED);
+				}
+				catch (CloudsyncException e)
+				{
+					fail(e);
+				}
+				catch (RuntimeException e)
+				{
+					fail(new CloudsyncException("Unexpected error while scanning local files", e));
+				}
+				catch (Error e)
+				{
+					fail(e);
+				}
+				catch (InterruptedException e)
+				{
+					if (!closed) fail(new CloudsyncException("Interrupted while scanning local files", e));
+				}
+			}
+		}, "cloudsync-scanner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// returns null after the end marker of the root folder
+	public Entry next() throws CloudsyncException
+	{
+		Object next;
+		if (queue == null)
+		{
+			next = produce();
+		}
+		else
+		{
+			try
+			{
+				next = queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				throw new CloudsyncException("Interrupted while scanning local files", e);
+			}
+		}
+
+		if (next instanceof CloudsyncException) throw (CloudsyncException) next;
+		if (next instanceof Error) throw (Error) next;
+
+		return next == FINISHED ? null : (Entry) next;
+	}
+
+	public void close()
+	{
+		closed = true;
+		if (thread != null) thread.interrupt();
+	}
+
+	// the queue is usually full. so the failure has to wait for the consumer
+	// like every other entry, it is only dropped after close()
+	private void fail(final Object failure)
+	{
+		try
+		{
+			queue.put(failure);
+		}
+		catch (InterruptedException e)
+		{
+		}
+	}
+
+	private Entry produce() throws CloudsyncException
+	{
+		while (true)
+		{
+			final Frame frame = stack.peek();
+			if (frame == null) return FINISHED;
+
+			if (frame.index >= frame.files.length)
+			{
+				stack.pop();
+				return END;
+			}
+
+			final File file = frame.files[frame.index++];
+			final String filePath = file.getAbsolutePath();
+			if (!pathMatcher.matches(filePath)) continue;
+
+			try
+			{
+				final Item item = localConnection.getItem(file, followlinks, followedLinkPaths);
+				if (item.isType(ItemType.FOLDER))
+				{
+					// a folder whose whole content is excluded is not read
+					stack.push(new Frame(pathMatcher.matchesBelow(filePath) ? localConnection.readFolder(file) : NO_FILES));
+					return new Entry(file, filePath, item, null, true);
+				}
+				return new Entry(file, filePath, item, null, false);
+			}
+			catch (FileIOException e)
+			{
+				return new Entry(file, filePath, null, e, false);
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package cloudsync.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import cloudsync.model.ChecksumType;
+
+/**
+ * Persistent index of the checksums of local files.
+ *
+ * A checksum stays valid as long as the file key (device and inode), the size
+ * and the modify time of the file are unchanged. So a known checksum is reused
+ * without reading the file again. New entries are appended. The file is
+ * rewritten once most of its entries are outdated.
+ *
+ * <pre>
+ * header    magic, format version
+ * entries   [file key, size, modify time, checksum type, checksum]*
+ * </pre>
+ */
+public class ChecksumIndex
+{
+	private final static Logger			LOGGER			= Logger.getLogger(ChecksumIndex.class.getName());
+
+	private final static byte[]			MAGIC			= { 'C', 'S', 'Y', 'N', 'C', 'C', 'H', 'K' };
+	private final static int			VERSION			= 2;
+	private final static int			MIN_COMPACT		= 10000;
+
+	private final Path					path;
+	private final Map<String, Entry>	entries			= new HashMap<>();
+	private DataOutputStream			out;
+	private int							records;
+	private boolean						loaded;
+
+	private static class Entry
+	{
+		private final long			size;
+		private final long			modifytime;
+		private final ChecksumType	checksumType;
+		private final String		checksum;
+
+		public Entry(final long size, final long modifytime, final ChecksumType checksumType, final String checksum)
+		{
+			this.size = size;
+			this.modifytime = modifytime;
+			this.checksumType = checksumType;
+			this.checksum = checksum;
+		}
+
+		public boolean matches(final BasicFileAttributes attributes, final ChecksumType checksumType)
+		{
+			return size == attributes.size() && modifytime == getModifytime(attributes) && this.checksumType == checksumType;
+		}
+	}
+
+	public ChecksumIndex(final Path path)
+	{
+		this.path = path;
+	}
+
+	public static Path getPath(final Path cacheFilePath)
+	{
+		return cacheFilePath.resolveSibling(cacheFilePath.getFileName() + ".checksums");
+	}
+
+	// 'attributes' are the current attributes of the file
+	public synchronized String get(final Path file, final BasicFileAttributes attributes, final ChecksumType checksumType)
+	{
+		if (!attributes.isRegularFile()) return null;
+
+		load();
+		final Entry entry = entries.get(getKey(file, attributes));
+		return entry != null && entry.matches(attributes, checksumType) ? entry.checksum : null;
+	}
+
+	/**
+	 * Adds the checksum of a file. 'attributes' must be read before the
+	 * checksum was calculated. The checksum is ignored if the file was changed
+	 * in the meantime.
+	 */
+	public synchronized void put(final Path file, final BasicFileAttributes attributes, final ChecksumType checksumType, final String checksum)
+	{
+		if (checksum == null || !attributes.isRegularFile()) return;
+
+		try
+		{
+			final BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			final String key = getKey(file, attributes);
+			if (!key.equals(getKey(file, current)) || current.size() != attributes.size() || getModifytime(current) != getModifytime(attributes))
+			{
+				return;
+			}
+
+			load();
+			final Entry entry = new Entry(attributes.size(), getModifytime(attributes), checksumType, checksum);
+			final Entry existingEntry = entries.put(key, entry);
+			if (existingEntry != null && existingEntry.matches(attributes, checksumType) && existingEntry.checksum.equals(checksum)) return;
+
+			if (out == null)
+			{
+				final boolean isNew = !Files.exists(path, LinkOption.NOFOLLOW_LINKS) || Files.size(path) == 0;
+				out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+				if (isNew)
+				{
+					out.write(MAGIC);
+					out.writeInt(VERSION);
+				}
+			}
+			write(out, key, entry);
+			records++;
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Can't write checksum index '" + path.toString() + "'. " + e.getMessage());
+			closeQuietly();
+		}
+	}
+
+	public synchronized void close()
+	{
+		closeQuietly();
+
+		if (records <= Math.max(MIN_COMPACT, entries.size() * 2)) return;
+
+		final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath))))
+		{
+			tmp.write(MAGIC);
+			tmp.writeInt(VERSION);
+			for (final Map.Entry<String, Entry> entry : entries.entrySet())
+			{
+				write(tmp, entry.getKey(), entry.getValue());
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Can't write checksum index '" + path.toString() + "'. " + e.getMessage());
+			return;
+		}
+
+		try
+		{
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			records = entries.size();
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Can't write checksum index '" + path.toString() + "'. " + e.getMessage());
+		}
+	}
+
+	// a broken or unsupported index is only a cache and starts again empty
+	private void load()
+	{
+		if (loaded) return;
+		loaded = true;
+
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) return;
+
+		long position;
+		try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path))))
+		{
+			final DataInputStream in = new DataInputStream(counter);
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION)
+			{
+				throw new IOException("unsupported format");
+			}
+
+			while (true)
+			{
+				position = counter.getByteCount();
+				final String key;
+				final Entry entry;
+				try
+				{
+					key = in.readUTF();
+					entry = new Entry(in.readLong(), in.readLong(), ChecksumType.fromStringIgnoreCase(in.readUTF()), in.readUTF());
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				if (entry.checksumType != null) entries.put(key, entry);
+				records++;
+			}
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Discard checksum index '" + path.toString() + "'. " + e.getMessage());
+			entries.clear();
+			records = 0;
+			try
+			{
+				Files.delete(path);
+			}
+			catch (final IOException ex)
+			{
+				LOGGER.log(Level.WARNING, "Can't remove checksum index '" + path.toString() + "'. " + ex.getMessage());
+			}
+			return;
+		}
+
+		// new entries are appended after the last complete entry
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+		{
+			if (channel.size() > position) channel.truncate(position);
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Can't write checksum index '" + path.toString() + "'. " + e.getMessage());
+		}
+	}
+
+	private void closeQuietly()
+	{
+		if (out == null) return;
+
+		try
+		{
+			out.close();
+		}
+		catch (final IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Can't write checksum index '" + path.toString() + "'. " + e.getMessage());
+		}
+		out = null;
+	}
+
+	private static void write(final DataOutputStream out, final String key, final Entry entry) throws IOException
+	{
+		out.writeUTF(key);
+		out.writeLong(entry.size);
+		out.writeLong(entry.modifytime);
+		out.writeUTF(entry.checksumType.getName());
+		out.writeUTF(entry.checksum);
+	}
+
+	// the file key contains the device and inode on unix systems
+	private static String getKey(final Path file, final BasicFileAttributes attributes)
+	{
+		final Object fileKey = attributes.fileKey();
+		return fileKey != null ? fileKey.toString() : file.toAbsolutePath().toString();
+	}
+
+	private static long getModifytime(final BasicFileAttributes attributes)
+	{
+		return attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,469 @@
+package cloudsync.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import cloudsync.connector.LocalFilesystemConnector;
+import cloudsync.connector.RemoteConnector;
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.exceptions.FileIOException;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+import cloudsync.model.LocalStreamData;
+import cloudsync.model.RemoteStreamData;
+
+/**
+ * Content-addressed store for the data of larger files.
+ *
+ * A file is cut into chunks at content-defined boundaries, so inserted or
+ * removed data only changes the chunks around it. Every chunk is stored once
+ * as an item of the hidden chunk folder, named by a keyed hash of its data.
+ * The remote object of the file only contains its recipe, the ordered list
+ * of its chunks.
+ *
+ * <pre>
+ * recipe    header, [chunk name, length]*
+ * </pre>
+ *
+ * Chunks are never removed, because a recipe in a history folder can still
+ * refer to them. The hash key is derived from the passphrase and the random
+ * salt object of the chunk folder.
+ */
+class ChunkStore
+{
+	private final static Logger		LOGGER			= Logger.getLogger(ChunkStore.class.getName());
+
+	final static String				STORAGE			= "chunks";
+
+	private final static String		FOLDER_NAME		= "chunks";
+	private final static String		SALT_NAME		= "salt";
+	private final static int		SALT_LENGTH		= 16;
+	private final static String		HEADER			= "cloudsync-chunks 1";
+	private final static String		HASH_ALGORITHM	= "HmacSHA256";
+	private final static Charset	UTF8			= Charset.forName("UTF-8");
+
+	// unencrypted backups don't need a secret hash key
+	private final static byte[]		NO_KEY			= new byte[32];
+
+	// a gear hash cuts a chunk if its upper bits are 0. the mask is smaller
+	// after the normal size, so most chunks are between 512 KB and 2 MB
+	final static int				MIN_SIZE		= 256 * 1024;
+	final static int				NORMAL_SIZE		= 1024 * 1024;
+	final static int				MAX_SIZE		= 8 * 1024 * 1024;
+	private final static long		MASK_SMALL		= mask(21);
+	private final static long		MASK_LARGE		= mask(19);
+	private final static long[]		GEAR			= createGear();
+
+	private final Handler			handler;
+	private final RemoteConnector	remoteConnection;
+	private final StructureJournal	journal;
+	private final Crypt				crypt;
+	private final boolean			enabled;
+
+	// recipes and chunks which are uploaded right now
+	private final Map<Item, byte[]>	uploads			= new ConcurrentHashMap<>();
+	private final Set<String>		pending			= new HashSet<>();
+	private Item					folder;
+	private SecretKeySpec			hashKey;
+
+	public ChunkStore(final Handler handler, final RemoteConnector remoteConnection, final StructureJournal journal, final Crypt crypt,
+			final boolean enabled)
+	{
+		this.handler = handler;
+		this.remoteConnection = remoteConnection;
+		this.journal = journal;
+		this.crypt = crypt;
+		this.enabled = enabled;
+	}
+
+	// must be called before the backup tasks are started, because the chunk
+	// folder is created below the root folder
+	public void open() throws CloudsyncException
+	{
+		if (!enabled) return;
+
+		folder = handler.getStoreFolder(FOLDER_NAME, true);
+		hashKey = new SecretKeySpec(crypt != null ? crypt.getHashKey(getSalt()) : NO_KEY, HASH_ALGORITHM);
+	}
+
+	// the salt is created with the chunk folder. a folder of a former version
+	// gets one with its next backup, so its chunks are stored once more
+	private byte[] getSalt() throws CloudsyncException
+	{
+		final Item saltItem = folder.getChildByName(SALT_NAME);
+		if (saltItem != null)
+		{
+			final RemoteStreamData data = handler.getRemoteObject(saltItem);
+			try
+			{
+				final byte[] salt = IOUtils.toByteArray(data.getDecryptedStream());
+				if (salt.length != SALT_LENGTH) throw new CloudsyncException("Invalid chunk salt '" + saltItem.getPath() + "'");
+				return salt;
+			}
+			catch (IOException e)
+			{
+				throw new CloudsyncException("Can't read chunk salt '" + saltItem.getPath() + "'", e);
+			}
+			finally
+			{
+				data.close();
+			}
+		}
+
+		final byte[] salt = new byte[SALT_LENGTH];
+		new SecureRandom().nextBytes(salt);
+		try
+		{
+			store(SALT_NAME, salt);
+		}
+		catch (FileIOException e)
+		{
+			throw new CloudsyncException("Can't store chunk salt", e);
+		}
+		return salt;
+	}
+
+	public static boolean isChunked(final Item item)
+	{
+		return STORAGE.equals(item.getStorage());
+	}
+
+	/**
+	 * Uploads all chunks of the local file which are not stored yet. Until
+	 * 'release' is called, 'getData' returns the recipe as data of the item.
+	 * Smaller files are still stored as a single object.
+	 */
+	public void prepare(final Item item, final LocalFilesystemConnector localConnection) throws CloudsyncException, FileIOException
+	{
+		if (folder == null || !item.isType(ItemType.FILE) || item.getFilesize() == null || item.getFilesize() < NORMAL_SIZE)
+		{
+			item.setStorage(null);
+			return;
+		}
+
+		final Mac mac = createMac();
+		final StringBuilder recipe = new StringBuilder(HEADER).append('\n');
+		int count = 0;
+		int stored = 0;
+
+		try (InputStream stream = localConnection.getFileBinary(item).getStream())
+		{
+			final Chunker chunker = new Chunker(stream);
+			int length;
+			while ((length = chunker.next()) > 0)
+			{
+				mac.update(chunker.getBuffer(), chunker.getOffset(), length);
+				final String name = Hex.encodeHexString(mac.doFinal());
+				if (put(name, chunker.getBuffer(), chunker.getOffset(), length)) stored++;
+				recipe.append(name).append(' ').append(length).append('\n');
+				count++;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new FileIOException("Can't read data of '" + item.getPath() + "'", e);
+		}
+
+		LOGGER.log(Level.FINE, "  stored " + stored + " of " + count + " chunks");
+
+		uploads.put(item, recipe.toString().getBytes(UTF8));
+		item.setStorage(STORAGE);
+	}
+
+	public LocalStreamData getData(final Item item)
+	{
+		final byte[] bytes = uploads.get(item);
+		return bytes != null ? new LocalStreamData(new ByteArrayInputStream(bytes), bytes.length) : null;
+	}
+
+	public void release(final Item item)
+	{
+		uploads.remove(item);
+	}
+
+	public InputStream read(final Item item) throws CloudsyncException
+	{
+		final List<String> names = new ArrayList<>();
+
+		final RemoteStreamData recipe = handler.getRemoteObject(item);
+		try
+		{
+			final List<String> lines = IOUtils.readLines(recipe.getDecryptedStream(), UTF8);
+			if (lines.isEmpty() || !HEADER.equals(lines.get(0)))
+			{
+				throw new CloudsyncException("Unsupported chunk recipe of " + item.getTypeName() + " '" + item.getPath() + "'");
+			}
+			for (int i = 1; i < lines.size(); i++)
+			{
+				names.add(StringUtils.substringBefore(lines.get(i), " "));
+			}
+		}
+		catch (IOException e)
+		{
+			throw new CloudsyncException("Can't read chunk recipe of " + item.getTypeName() + " '" + item.getPath() + "'", e);
+		}
+		finally
+		{
+			recipe.close();
+		}
+
+		final Item chunkFolder = handler.getStoreFolder(FOLDER_NAME, false);
+		if (chunkFolder == null && !names.isEmpty())
+		{
+			throw new CloudsyncException("Missing chunk folder of " + item.getTypeName() + " '" + item.getPath() + "'");
+		}
+
+		return new ChunkInputStream(chunkFolder, names.iterator());
+	}
+
+	private boolean put(final String name, final byte[] buffer, final int offset, final int length) throws CloudsyncException, FileIOException
+	{
+		synchronized (this)
+		{
+			// the same chunk can be part of another file which is uploaded by
+			// another thread
+			while (pending.contains(name))
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new CloudsyncException("Interrupted while waiting for chunk '" + name + "'", e);
+				}
+			}
+			if (folder.getChildByName(name) != null) return false;
+			pending.add(name);
+		}
+
+		store(name, Arrays.copyOfRange(buffer, offset, offset + length));
+		return true;
+	}
+
+	private void store(final String name, final byte[] bytes) throws CloudsyncException, FileIOException
+	{
+		final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		final Item item = Item.fromLocalData(name, ItemType.FILE, (long) bytes.length, now, now, now, new HashMap<String, String[]>());
+		item.setChecksum(DigestUtils.md5Hex(bytes));
+		item.setParent(folder);
+
+		boolean stored = false;
+		uploads.put(item, bytes);
+		try
+		{
+			journal.pending(item);
+			remoteConnection.upload(handler, item);
+			journal.put(item);
+			stored = true;
+		}
+		finally
+		{
+			uploads.remove(item);
+			synchronized (this)
+			{
+				pending.remove(name);
+				if (stored) folder.addChild(item);
+				notifyAll();
+			}
+		}
+	}
+
+	private Mac createMac() throws CloudsyncException
+	{
+		try
+		{
+			final Mac mac = Mac.getInstance(HASH_ALGORITHM);
+			mac.init(hashKey);
+			return mac;
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new CloudsyncException("can't initialize chunk hash", e);
+		}
+	}
+
+	// returns the length of the next chunk at 'offset'
+	static int cut(final byte[] data, final int offset, final int length)
+	{
+		if (length <= MIN_SIZE) return length;
+
+		final int max = Math.min(length, MAX_SIZE);
+		final int normal = Math.min(max, NORMAL_SIZE);
+
+		long hash = 0;
+		int i = MIN_SIZE;
+		for (; i < normal; i++)
+		{
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & MASK_SMALL) == 0) return i + 1;
+		}
+		for (; i < max; i++)
+		{
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & MASK_LARGE) == 0) return i + 1;
+		}
+		return max;
+	}
+
+	private static long mask(final int bits)
+	{
+		return -1L << (64 - bits);
+	}
+
+	// the table must never change. otherwise every chunk is uploaded again
+	private static long[] createGear()
+	{
+		final long[] gear = new long[256];
+		long seed = 0x636c6f756473796eL;
+		for (int i = 0; i < gear.length; i++)
+		{
+			// splitmix64
+			long z = (seed += 0x9e3779b97f4a7c15L);
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+			gear[i] = z ^ (z >>> 31);
+		}
+		return gear;
+	}
+
+	static class Chunker
+	{
+		private final InputStream	stream;
+		private final byte[]		buffer	= new byte[MAX_SIZE * 2];
+		private int					offset;
+		private int					length;
+		private int					end;
+		private boolean				eof;
+
+		public Chunker(final InputStream stream)
+		{
+			this.stream = stream;
+		}
+
+		// returns the length of the next chunk or 0 at the end of the stream
+		public int next() throws IOException
+		{
+			offset += length;
+
+			// keep at least a whole chunk in the buffer
+			if (!eof && end - offset < MAX_SIZE)
+			{
+				System.arraycopy(buffer, offset, buffer, 0, end - offset);
+				end -= offset;
+				offset = 0;
+
+				while (end < buffer.length)
+				{
+					final int len = stream.read(buffer, end, buffer.length - end);
+					if (len == -1)
+					{
+						eof = true;
+						break;
+					}
+					end += len;
+				}
+			}
+
+			length = cut(buffer, offset, end - offset);
+			return length;
+		}
+
+		public byte[] getBuffer()
+		{
+			return buffer;
+		}
+
+		public int getOffset()
+		{
+			return offset;
+		}
+	}
+
+	private class ChunkInputStream extends InputStream
+	{
+		private final Item				chunkFolder;
+		private final Iterator<String>	names;
+		private RemoteStreamData		current;
+
+		public ChunkInputStream(final Item chunkFolder, final Iterator<String> names)
+		{
+			this.chunkFolder = chunkFolder;
+			this.names = names;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0) return 0;
+
+			while (true)
+			{
+				if (current == null)
+				{
+					if (!names.hasNext()) return -1;
+					current = open(names.next());
+				}
+
+				final int n = current.getDecryptedStream().read(b, off, len);
+				if (n != -1) return n;
+
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (current != null) current.close();
+			current = null;
+		}
+
+		private RemoteStreamData open(final String name) throws IOException
+		{
+			final Item item = chunkFolder.getChildByName(name);
+			if (item == null) throw new IOException("missing chunk '" + name + "'");
+
+			try
+			{
+				return handler.getRemoteObject(item);
+			}
+			catch (CloudsyncException e)
+			{
+				throw new IOException("can't read chunk '" + name + "'", e);
+			}
+		}
+	}
+}
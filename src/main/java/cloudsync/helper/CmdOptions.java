@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
+import java.util.regex.PatternSyntaxException;
 
 import cloudsync.exceptions.InfoException;
 import org.apache.commons.cli.CommandLine;
@@ -23,6 +24,7 @@ import cloudsync.exceptions.CloudsyncException;
 import cloudsync.exceptions.UsageException;
 import cloudsync.model.options.NetworkErrorType;
 import cloudsync.model.options.FileErrorType;
+import cloudsync.model.ChecksumType;
 import cloudsync.model.options.ExistingType;
 import cloudsync.model.Item;
 import cloudsync.model.options.FollowLinkType;
@@ -44,24 +46,34 @@ public class CmdOptions
 	private Integer					history;
 	private String[]				includePatterns;
 	private String[]				excludePatterns;
+	private PathMatcher				pathMatcher;
 	private String					logfilePath;
 	private String					cachefilePath;
 	private String					lockfilePath;
 	private String					pidfilePath;
 	private PermissionType permissions;
 	private boolean					nocache;
+	private boolean					offheap;
 	private boolean					forcestart;
 	private boolean					dryrun;
 	private boolean					showProgress;
 	private NetworkErrorType networkErrorBehavior;
 	private FileErrorType fileErrorBehavior;
 	private boolean					noencryption;
+	private boolean					streaming;
+	private boolean					chunking;
+	private boolean					delta;
+	private long					packSize;
+	private ChecksumType			checksumType;
+	private boolean					verify;
 	private FollowLinkType followlinks;
 	private ExistingType existingBehavior;
 	private String					remoteConnector;
 
 	private int						retries;
 	private int						waitretry;
+	private int						threads;
+	private int						readThreads;
 
 	private long 					minTmpFileSize;
 
@@ -201,6 +213,13 @@ public class CmdOptions
 		options.addOption(option);
 		positions.add(option);
 
+		option = Option.builder()
+			.desc("Load the folders of the 'cloudsync*.cache' file only while they are used. For backups with more items than fit into the heap.")
+			.longOpt("offheap")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
 		option = Option.builder()
 			.desc("Ignore a existing pid file. Should only be used after a previous crashed job.")
 			.longOpt("forcestart")
@@ -215,6 +234,55 @@ public class CmdOptions
 		options.addOption(option);
 		positions.add(option);
 
+		option = Option.builder()
+			.desc("Encrypt data while it is uploaded instead of buffering it in memory or tmp files.")
+			.longOpt("streaming")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		option = Option.builder()
+			.desc("Split files larger than 1 MB into content-defined chunks. Every chunk is only uploaded once, also if it is part of other files.")
+			.longOpt("chunking")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		option = Option.builder()
+			.desc("Upload only the changed blocks of modified files larger than 4 MB. Is ignored for chunked files.")
+			.longOpt("delta")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		option = Option.builder()
+			.hasArg()
+			.argName("size")
+			.desc("Pack files up to 64 KB of a folder into encrypted pack objects of up to <size> bytes.")
+			.longOpt("packing")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		description = "Checksum of new and changed files. Existing files keep their checksum until they are changed.\n";
+		description += "<md5> - (default)\n";
+		description += "<sha256> - faster on cpus with sha extensions\n";
+		option = Option.builder()
+			.hasArg()
+			.argName("md5|sha256")
+			.desc(description)
+			.longOpt("checksum")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		option = Option.builder()
+			.desc("Read restored files again to verify their checksum. The checksum is always verified while the data is written.")
+			.longOpt("verify")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
 		option = Option.builder()
 			.desc("Perform a trial run of --backup or --restore with no changes made.")
 			.longOpt("dry-run")
@@ -247,6 +315,24 @@ public class CmdOptions
 		options.addOption(option);
 		positions.add(option);
 
+		option = Option.builder()
+			.hasArg()
+			.argName("number")
+			.desc("Number of parallel transfers during backup and restore (default: 1).")
+			.longOpt("threads")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
+		option = Option.builder()
+			.hasArg()
+			.argName("number")
+			.desc("Number of parallel folder listings while reading the remote structure (default: value of --threads).")
+			.longOpt("read_threads")
+			.build();
+		options.addOption(option);
+		positions.add(option);
+
 		description = "How to continue on network problems\n";
 		description += "<exception> - Throw an exception - (default)\n";
 		description += "<ask> - Show a command prompt (Y/n) to continue\n";
@@ -373,6 +459,8 @@ public class CmdOptions
 		existingBehavior = ExistingType.fromStringIgnoreCase(value);
 		value = getOptionValue(cmd, "permissions", PermissionType.SET.getName());
 		permissions = PermissionType.fromStringIgnoreCase(value);
+		value = getOptionValue(cmd, "checksum", ChecksumType.MD5.getName());
+		checksumType = ChecksumType.fromStringIgnoreCase(value);
 
 		history = SyncType.BACKUP.equals(type) ? Integer.parseInt(getOptionValue(cmd, "history", "0")) : 0;
 
@@ -394,6 +482,24 @@ public class CmdOptions
 			waitretry = 0;
 		}
 
+		try
+		{
+			threads = Integer.parseInt(getOptionValue(cmd, "threads", "1"));
+		}
+		catch (NumberFormatException e)
+		{
+			threads = 0;
+		}
+
+		try
+		{
+			readThreads = Integer.parseInt(getOptionValue(cmd, "read_threads", Integer.toString(threads)));
+		}
+		catch (NumberFormatException e)
+		{
+			readThreads = 0;
+		}
+
 		try
 		{
 			minTmpFileSize = Long.parseLong( getOptionValue(cmd, "min_tmp_file_size", "134217728" ) );
@@ -404,6 +510,15 @@ public class CmdOptions
 			minTmpFileSize = 134217728;
 		}
 
+		try
+		{
+			packSize = Long.parseLong(getOptionValue(cmd, "packing", "0"));
+		}
+		catch (NumberFormatException e)
+		{
+			packSize = -1;
+		}
+
 		value = getOptionValue(cmd, "network-error", "exception");
 		networkErrorBehavior = NetworkErrorType.fromStringIgnoreCase( value);
 
@@ -411,15 +526,28 @@ public class CmdOptions
 		fileErrorBehavior = FileErrorType.fromStringIgnoreCase( value);
 
 		nocache = cmd.hasOption("nocache") || SyncType.CLEAN.equals(type);
+		offheap = cmd.hasOption("offheap");
 		forcestart = cmd.hasOption("forcestart");
 		dryrun = cmd.hasOption("dry-run");
 		showProgress = cmd.hasOption("progress");
 		noencryption = cmd.hasOption("noencryption");
+		streaming = cmd.hasOption("streaming");
+		chunking = cmd.hasOption("chunking");
+		delta = cmd.hasOption("delta");
+		verify = cmd.hasOption("verify");
 
 		String pattern = getOptionValue(cmd, "include", null);
 		if (pattern != null) includePatterns = pattern.contains("|") ? pattern.split("\\|") : new String[] { pattern };
 		pattern = getOptionValue(cmd, "exclude", null);
 		if (pattern != null) excludePatterns = pattern.contains("|") ? pattern.split("\\|") : new String[] { pattern };
+		try
+		{
+			pathMatcher = new PathMatcher(includePatterns, excludePatterns);
+		}
+		catch (PatternSyntaxException e)
+		{
+			pathMatcher = null;
+		}
 
 		if (!StringUtils.isEmpty(name))
 		{
@@ -441,7 +569,7 @@ public class CmdOptions
 			throw new InfoException("cloudsync " + getClass().getPackage().getImplementationVersion());
 		}
 		else if (cmd.hasOption("help") || type == null || name == null || followlinks == null || existingBehavior == null || retries == 0 || waitretry == 0
-				|| permissions == null || !baseValid || !configValid || !logfileValid || !cachefileValid)
+				|| threads <= 0 || readThreads <= 0 || packSize < 0 || checksumType == null || permissions == null || pathMatcher == null || !baseValid || !configValid || !logfileValid || !cachefileValid)
 		{
 			int possibleWrongOptions = cmd.getOptions().length;
 			if (cmd.hasOption("help")) possibleWrongOptions--;
@@ -478,10 +606,30 @@ public class CmdOptions
 				{
 					messages.add(" Wrong --waitretry <seconds> set");
 				}
+				if (threads <= 0)
+				{
+					messages.add(" Wrong --threads <number> set");
+				}
+				if (readThreads <= 0)
+				{
+					messages.add(" Wrong --read_threads <number> set");
+				}
+				if (packSize < 0)
+				{
+					messages.add(" Wrong --packing <size> set");
+				}
+				if (checksumType == null)
+				{
+					messages.add(" Wrong --checksum <type> set");
+				}
 				if (permissions == null)
 				{
 					messages.add(" Wrong --permissions <behavior> set");
 				}
+				if (pathMatcher == null)
+				{
+					messages.add(" Wrong --include or --exclude <pattern> set");
+				}
 				if (!configValid)
 				{
 					messages.add(" --config <path> not valid");
@@ -562,6 +710,11 @@ public class CmdOptions
 		return excludePatterns;
 	}
 
+	public PathMatcher getPathMatcher()
+	{
+		return pathMatcher;
+	}
+
 	public Integer getHistory()
 	{
 		return history;
@@ -582,11 +735,46 @@ public class CmdOptions
 		return nocache;
 	}
 
+	public boolean getOffheap()
+	{
+		return offheap;
+	}
+
 	public boolean getNoEncryption()
 	{
 		return noencryption;
 	}
 
+	public boolean getStreaming()
+	{
+		return streaming;
+	}
+
+	public boolean getChunking()
+	{
+		return chunking;
+	}
+
+	public boolean getDelta()
+	{
+		return delta;
+	}
+
+	public long getPackSize()
+	{
+		return packSize;
+	}
+
+	public ChecksumType getChecksumType()
+	{
+		return checksumType;
+	}
+
+	public boolean getVerify()
+	{
+		return verify;
+	}
+
 	public boolean getForceStart()
 	{
 		return forcestart;
@@ -622,6 +810,16 @@ public class CmdOptions
 		return waitretry;
 	}
 
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public int getReadThreads()
+	{
+		return readThreads;
+	}
+
 	public long getMinTmpFileSise()
 	{
 		return minTmpFileSize;
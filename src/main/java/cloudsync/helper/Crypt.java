@@ -7,11 +7,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.text.DecimalFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,13 +25,22 @@ import javax.crypto.Cipher;
 import cloudsync.exceptions.FileIOException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPObjectFactory;
@@ -44,6 +58,8 @@ import cloudsync.model.Item;
 import cloudsync.model.LocalStreamData;
 import cloudsync.model.TempInputStream;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcPBEKeyEncryptionMethodGenerator;
@@ -58,20 +74,29 @@ public class Crypt
 	private final static Logger	LOGGER				= Logger.getLogger(Crypt.class.getName());
 
 	private final static int	BUFFER_SIZE			= 1 << 16;
+	private final static int	PIPE_SIZE			= BUFFER_SIZE * 4;
 
 	private final static int	 ENCRYPT_ALGORITHM	= PGPEncryptedDataGenerator.AES_256;
 	private final static boolean ENCRYPT_ARMOR		= false;
+	private final static int	KEY_CACHE_SIZE		= 64;
+	private final static int	HASH_KEY_ITERATIONS	= 100000;
 
 	private final String		passphrase;
 	private final boolean				showProgress;
 	private final long				minTmpFileSize;
+	private final boolean			streaming;
 	private final boolean 			useJCE;
 
-	public Crypt(final CmdOptions options)
+	private final PGPDataEncryptorBuilder			dataEncryptorBuilder;
+	private final PGPKeyEncryptionMethodGenerator	keyEncryptionMethod;
+	private final PBEDataDecryptorFactory			dataDecryptorFactory;
+
+	public Crypt(final CmdOptions options) throws CloudsyncException
 	{
 		passphrase = options.getPassphrase();
 		showProgress = options.showProgress();
 		minTmpFileSize = options.getMinTmpFileSise();
+		streaming = options.getStreaming();
 
 		int allowedKeyLength = 0;
 		try
@@ -93,6 +118,32 @@ public class Crypt
 		}
 
 		Security.addProvider(new BouncyCastleProvider());
+
+		// the derived key is cached for the lifetime of this instance. every
+		// message still gets its own random session key and iv. the session
+		// key is stored in a symmetric key encrypted session key packet.
+		try
+		{
+			final PBEDataDecryptorFactory decryptorFactory;
+			if (useJCE)
+			{
+				dataEncryptorBuilder = new JcePGPDataEncryptorBuilder(ENCRYPT_ALGORITHM).setSecureRandom(new SecureRandom()).setProvider("BC");
+				keyEncryptionMethod = new SessionKeyEncryptionMethodGenerator(new JceCachedKeyEncryptionMethodGenerator(passphrase.toCharArray()));
+				decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(new JcaPGPDigestCalculatorProviderBuilder().setProvider("BC").build()).setProvider("BC").build(
+						passphrase.toCharArray());
+			}
+			else
+			{
+				dataEncryptorBuilder = new BcPGPDataEncryptorBuilder(ENCRYPT_ALGORITHM).setSecureRandom(new SecureRandom());
+				keyEncryptionMethod = new SessionKeyEncryptionMethodGenerator(new BcCachedKeyEncryptionMethodGenerator(passphrase.toCharArray()));
+				decryptorFactory = new BcPBEDataDecryptorFactory(passphrase.toCharArray(), new BcPGPDigestCalculatorProvider());
+			}
+			dataDecryptorFactory = new CachedDataDecryptorFactory(passphrase.toCharArray(), decryptorFactory);
+		}
+		catch (PGPException e)
+		{
+			throw new CloudsyncException("can't initialize encryption", e);
+		}
 	}
 
 	public String decryptText(String text) throws CloudsyncException
@@ -134,17 +185,7 @@ public class Crypt
 
 			final PGPPBEEncryptedData pbe = (PGPPBEEncryptedData) enc.get(0);
 
-            PBEDataDecryptorFactory pbeDataDecryptorFactory;
-            if(useJCE)
-            {
-	            pbeDataDecryptorFactory = new JcePBEDataDecryptorFactoryBuilder(new JcaPGPDigestCalculatorProviderBuilder().setProvider("BC").build()).setProvider("BC").build(passphrase.toCharArray());
-            }
-            else
-            {
-                BcPGPDigestCalculatorProvider pgpDigestCalculatorProvider = new BcPGPDigestCalculatorProvider();
-                pbeDataDecryptorFactory = new BcPBEDataDecryptorFactory(passphrase.toCharArray(), pgpDigestCalculatorProvider);
-            }
-			final InputStream clear = pbe.getDataStream(pbeDataDecryptorFactory);
+			final InputStream clear = pbe.getDataStream(dataDecryptorFactory);
 
 			PGPObjectFactory pgpFact = new JcaPGPObjectFactory(clear);
 
@@ -165,6 +206,8 @@ public class Crypt
 
 	public LocalStreamData encryptedBinary(final String name, final LocalStreamData data, final Item item) throws FileIOException
 	{
+		if (streaming) return _encryptedStream(name, data, item);
+
 		InputStream input = null;
 
 		try
@@ -174,7 +217,7 @@ public class Crypt
 			if (data.getLength() < minTmpFileSize)
 			{
 				final ByteArrayOutputStream output = new ByteArrayOutputStream();
-				_encryptData(output, input, data.getLength(), name, item.getInfo(), ENCRYPT_ALGORITHM, ENCRYPT_ARMOR);
+				_encryptData(output, input, data.getLength(), name, item.getInfo(), ENCRYPT_ARMOR);
 
 				final byte[] bytes = output.toByteArray();
 
@@ -187,7 +230,7 @@ public class Crypt
 					File temp = File.createTempFile("encrypted", ".pgp");
 					temp.deleteOnExit();
 					final FileOutputStream output = new FileOutputStream(temp);
-					_encryptData(output, input, data.getLength(), name, item.getInfo(), ENCRYPT_ALGORITHM, ENCRYPT_ARMOR);
+					_encryptData(output, input, data.getLength(), name, item.getInfo(), ENCRYPT_ARMOR);
 
 					return new LocalStreamData(new TempInputStream(temp), temp.length());
 
@@ -205,18 +248,105 @@ public class Crypt
 		}
 	}
 
+	// encrypts in a separate thread while the returned stream is consumed.
+	// the length of the encrypted data is unknown (-1). the consumer has to close
+	// the stream, also if it gives up. the thread ends with the failed write
+	// into the closed pipe
+	private LocalStreamData _encryptedStream(final String name, final LocalStreamData data, final Item item) throws FileIOException
+	{
+		final PipedOutputStream output = new PipedOutputStream();
+		final EncryptedInputStream stream;
+		try
+		{
+			stream = new EncryptedInputStream(output);
+		}
+		catch (IOException e)
+		{
+			IOUtils.closeQuietly(data.getStream());
+			throw new FileIOException("can't encrypt data", e);
+		}
+
+		final String info = item.getInfo();
+
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					_encryptData(new CloseShieldOutputStream(output), data.getStream(), data.getLength(), name, info, ENCRYPT_ARMOR);
+				}
+				catch (FileIOException | RuntimeException | Error e)
+				{
+					stream.failure = e;
+				}
+				finally
+				{
+					IOUtils.closeQuietly(data.getStream());
+					IOUtils.closeQuietly(output);
+				}
+			}
+		}, "cloudsync-encrypt");
+		thread.setDaemon(true);
+		thread.start();
+
+		return new LocalStreamData(stream, -1);
+	}
+
+	private static class EncryptedInputStream extends PipedInputStream
+	{
+		private volatile Throwable	failure;
+
+		public EncryptedInputStream(final PipedOutputStream output) throws IOException
+		{
+			super(output, PIPE_SIZE);
+		}
+
+		@Override
+		public synchronized int read() throws IOException
+		{
+			final int b = super.read();
+			if (b == -1) checkFailure();
+			return b;
+		}
+
+		@Override
+		public synchronized int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int n = super.read(b, off, len);
+			if (n == -1) checkFailure();
+			return n;
+		}
+
+		private void checkFailure() throws IOException
+		{
+			if (failure != null) throw new IOException("can't encrypt data", failure);
+		}
+	}
+
+	// key of a keyed hash over plain data. equal data gets the same hash in
+	// every run with the same salt. the iterations make a guess of the
+	// passphrase as expensive as for the encrypted data
+	public byte[] getHashKey(final byte[] salt)
+	{
+		final PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+		generator.init(PBEParametersGenerator.PKCS5PasswordToUTF8Bytes(passphrase.toCharArray()), salt, HASH_KEY_ITERATIONS);
+		return ((KeyParameter) generator.generateDerivedParameters(256)).getKey();
+	}
+
 	public String encryptText(String text) throws FileIOException
 	{
 		final ByteArrayOutputStream output = new ByteArrayOutputStream();
 		final byte[] bytes = text.getBytes();
-		_encryptData(output, new ByteArrayInputStream(bytes), bytes.length, PGPLiteralData.CONSOLE, null, ENCRYPT_ALGORITHM, ENCRYPT_ARMOR);
+		_encryptData(output, new ByteArrayInputStream(bytes), bytes.length, PGPLiteralData.CONSOLE, null, ENCRYPT_ARMOR);
 
 		text = Base64.encodeBase64String(output.toByteArray());
 		text = text.replace('/', '_');
 		return text;
 	}
 
-	private void _encryptData(final OutputStream output, final InputStream input, final long length, final String name, final String fileOutputInfo, final int algorithm, final boolean armor)
+	private void _encryptData(final OutputStream output, final InputStream input, final long length, final String name, final String fileOutputInfo, final boolean armor)
 			throws FileIOException
 	{
 		OutputStream out = output;
@@ -225,19 +355,8 @@ public class Crypt
 		{
 			if (armor) out = new ArmoredOutputStream(out);
 
-            PGPEncryptedDataGenerator encryptedDataGenerator;
-            if(useJCE)
-            {
-                encryptedDataGenerator = new PGPEncryptedDataGenerator(new JcePGPDataEncryptorBuilder(algorithm).setSecureRandom(
-                new SecureRandom()).setProvider("BC"));
-                encryptedDataGenerator.addMethod(new JcePBEKeyEncryptionMethodGenerator(passphrase.toCharArray()).setProvider("BC"));
-            }
-            else
-            {
-                PGPDataEncryptorBuilder pgpDataEncryptorBuilder = new BcPGPDataEncryptorBuilder(algorithm);
-                encryptedDataGenerator = new PGPEncryptedDataGenerator(pgpDataEncryptorBuilder);
-                encryptedDataGenerator.addMethod(new BcPBEKeyEncryptionMethodGenerator(passphrase.toCharArray()));
-            }
+			final PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(dataEncryptorBuilder);
+			encryptedDataGenerator.addMethod(keyEncryptionMethod);
 			final OutputStream encryptedData = encryptedDataGenerator.open(out, new byte[BUFFER_SIZE]);
 
 			PGPCompressedDataGenerator compressedDataGenerator = new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
@@ -314,4 +433,140 @@ public class Crypt
 	{
 		return (long) Math.ceil(size / 1024);
 	}
+
+	// not a PBEKeyEncryptionMethodGenerator. otherwise PGPEncryptedDataGenerator
+	// would use the derived key itself as session key.
+	private static class SessionKeyEncryptionMethodGenerator extends PGPKeyEncryptionMethodGenerator
+	{
+		private final PGPKeyEncryptionMethodGenerator	method;
+
+		public SessionKeyEncryptionMethodGenerator(final PGPKeyEncryptionMethodGenerator method)
+		{
+			this.method = method;
+		}
+
+		@Override
+		public ContainedPacket generate(final int encAlgorithm, final byte[] sessionInfo) throws PGPException
+		{
+			return method.generate(encAlgorithm, sessionInfo);
+		}
+	}
+
+	private static class JceCachedKeyEncryptionMethodGenerator extends JcePBEKeyEncryptionMethodGenerator
+	{
+		private final Map<Integer, byte[]>	keys	= new HashMap<>();
+
+		public JceCachedKeyEncryptionMethodGenerator(final char[] passphrase)
+		{
+			super(passphrase);
+			setProvider("BC");
+		}
+
+		@Override
+		public synchronized byte[] getKey(final int encAlgorithm) throws PGPException
+		{
+			byte[] key = keys.get(encAlgorithm);
+			if (key == null)
+			{
+				key = super.getKey(encAlgorithm);
+				keys.put(encAlgorithm, key);
+			}
+			return key.clone();
+		}
+
+		@Override
+		public synchronized ContainedPacket generate(final int encAlgorithm, final byte[] sessionInfo) throws PGPException
+		{
+			return super.generate(encAlgorithm, sessionInfo);
+		}
+	}
+
+	private static class BcCachedKeyEncryptionMethodGenerator extends BcPBEKeyEncryptionMethodGenerator
+	{
+		private final Map<Integer, byte[]>	keys	= new HashMap<>();
+
+		public BcCachedKeyEncryptionMethodGenerator(final char[] passphrase)
+		{
+			super(passphrase);
+		}
+
+		@Override
+		public synchronized byte[] getKey(final int encAlgorithm) throws PGPException
+		{
+			byte[] key = keys.get(encAlgorithm);
+			if (key == null)
+			{
+				key = super.getKey(encAlgorithm);
+				keys.put(encAlgorithm, key);
+			}
+			return key.clone();
+		}
+
+		@Override
+		public synchronized ContainedPacket generate(final int encAlgorithm, final byte[] sessionInfo) throws PGPException
+		{
+			return super.generate(encAlgorithm, sessionInfo);
+		}
+	}
+
+	// remembers the keys of the last used salts. data which is encrypted
+	// with a cached key shares the same salt.
+	private static class CachedDataDecryptorFactory extends PBEDataDecryptorFactory
+	{
+		private final PBEDataDecryptorFactory	factory;
+		private final Map<String, byte[]>		keys;
+
+		public CachedDataDecryptorFactory(final char[] passphrase, final PBEDataDecryptorFactory factory)
+		{
+			super(passphrase, null);
+			this.factory = factory;
+			this.keys = new LinkedHashMap<String, byte[]>(KEY_CACHE_SIZE, 0.75f, true)
+			{
+				private static final long	serialVersionUID	= 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest)
+				{
+					return size() > KEY_CACHE_SIZE;
+				}
+			};
+		}
+
+		@Override
+		public byte[] makeKeyFromPassPhrase(final int keyAlgorithm, final S2K s2k) throws PGPException
+		{
+			final String id = keyAlgorithm + ":" + s2k.getType() + ":" + s2k.getHashAlgorithm() + ":" + s2k.getIterationCount() + ":"
+					+ (s2k.getIV() != null ? Hex.encodeHexString(s2k.getIV()) : "");
+
+			byte[] key;
+			synchronized (keys)
+			{
+				key = keys.get(id);
+			}
+			if (key == null)
+			{
+				synchronized (factory)
+				{
+					key = factory.makeKeyFromPassPhrase(keyAlgorithm, s2k);
+				}
+				synchronized (keys)
+				{
+					keys.put(id, key);
+				}
+			}
+			return key.clone();
+		}
+
+		@Override
+		public byte[] recoverSessionData(final int keyAlgorithm, final byte[] key, final byte[] seckKeyData) throws PGPException
+		{
+			return factory.recoverSessionData(keyAlgorithm, key, seckKeyData);
+		}
+
+		@Override
+		public PGPDataDecryptor createDataDecryptor(final boolean withIntegrityPacket, final int encAlgorithm, final byte[] key) throws PGPException
+		{
+			return factory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+		}
+	}
 }
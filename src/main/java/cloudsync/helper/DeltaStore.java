@@ -0,0 +1,632 @@
+package cloudsync.helper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import cloudsync.connector.LocalFilesystemConnector;
+import cloudsync.connector.RemoteConnector;
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.exceptions.FileIOException;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+import cloudsync.model.LocalStreamData;
+import cloudsync.model.RemoteStreamData;
+
+/**
+ * Block based delta updates of larger files.
+ *
+ * The remote object of a file is its base. The structure cache keeps a
+ * checksum of every block of the uploaded data. If a modified file only
+ * differs in some blocks, these blocks are uploaded as a patch item of the
+ * hidden patch folder and only the metadata of the file is updated. The
+ * metadata lists the patches which are applied to the base in their order.
+ *
+ * <pre>
+ * storage   delta|block size|[patch name,]*
+ * patch     magic, file length, block size, block count, [block index]*, [block data]*
+ * </pre>
+ *
+ * The whole file is uploaded again as a new base if the chain is too long or
+ * more than half of the file has changed. Patches which are no longer used
+ * are removed. Without block checksums, e.g. after a rebuild of the
+ * structure cache, the next change uploads the whole file.
+ */
+class DeltaStore
+{
+	private final static Logger						LOGGER			= Logger.getLogger(DeltaStore.class.getName());
+
+	private final static String						STORAGE			= "delta";
+	private final static String						FOLDER_NAME		= "patches";
+	private final static String						SEPARATOR		= "|";
+	private final static byte[]						MAGIC			= { 'C', 'S', 'Y', 'N', 'C', 'D', 'L', 'T' };
+
+	private final static long						MIN_FILE_SIZE	= 4 * 1024 * 1024;
+	private final static int						MIN_BLOCK_SIZE	= 64 * 1024;
+	private final static int						MAX_BLOCKS		= 16384;
+	private final static int						MAX_PATCHES		= 8;
+	private final static int						CHECKSUM_SIZE	= 16;
+
+	private final Handler							handler;
+	private final RemoteConnector					remoteConnection;
+	private final LocalFilesystemConnector			localConnection;
+	private final StructureJournal					journal;
+	private final boolean							enabled;
+
+	// bases which are uploaded right now and patches which wait for their upload
+	private final Map<Item, Integer>				bases			= new ConcurrentHashMap<>();
+	private final Map<Item, Patch>					uploads			= new ConcurrentHashMap<>();
+	private Item									folder;
+
+	private static class Patch
+	{
+		private final byte[]	header;
+		private final File		data;
+
+		public Patch(final byte[] header, final File data)
+		{
+			this.header = header;
+			this.data = data;
+		}
+	}
+
+	public DeltaStore(final Handler handler, final RemoteConnector remoteConnection, final LocalFilesystemConnector localConnection,
+			final StructureJournal journal, final boolean enabled)
+	{
+		this.handler = handler;
+		this.remoteConnection = remoteConnection;
+		this.localConnection = localConnection;
+		this.journal = journal;
+		this.enabled = enabled;
+	}
+
+	// must be called before the backup tasks are started, because the patch
+	// folder is created below the root folder
+	public void open() throws CloudsyncException
+	{
+		if (enabled) folder = handler.getStoreFolder(FOLDER_NAME, true);
+	}
+
+	public static boolean hasPatches(final Item item)
+	{
+		return getPatchNames(item.getStorage()).size() > 0;
+	}
+
+	/**
+	 * Prepares the upload of changed file data. 'previousStorage' is the
+	 * storage of the already uploaded data or 'null' for a new file.
+	 *
+	 * @return false, if the changes are stored as a patch and only the
+	 *         metadata must be updated
+	 */
+	public boolean prepare(final Item item, final String previousStorage) throws CloudsyncException, FileIOException
+	{
+		if (folder == null || !item.isType(ItemType.FILE) || item.getFilesize() == null || item.getFilesize() < MIN_FILE_SIZE)
+		{
+			item.setStorage(null);
+			item.setBlockChecksums(null);
+			return true;
+		}
+
+		if (isDelta(previousStorage) && item.getBlockChecksums() != null && getPatchNames(previousStorage).size() < MAX_PATCHES)
+		{
+			if (storePatch(item, previousStorage, getBlockSize(previousStorage))) return false;
+		}
+
+		// a new base. the block checksums are calculated during the upload
+		item.setStorage(STORAGE + SEPARATOR + getBlockSize(item.getFilesize()) + SEPARATOR);
+		item.setBlockChecksums(null);
+		bases.put(item, getBlockSize(item.getFilesize()));
+		return true;
+	}
+
+	public LocalStreamData getData(final Item item) throws FileIOException
+	{
+		final Integer blockSize = bases.get(item);
+		if (blockSize != null)
+		{
+			final LocalStreamData data = localConnection.getFileBinary(item);
+			return new LocalStreamData(new BlockChecksumInputStream(data.getStream(), blockSize, item), data.getLength());
+		}
+
+		final Patch patch = uploads.get(item);
+		if (patch != null)
+		{
+			try
+			{
+				return new LocalStreamData(new SequenceInputStream(new ByteArrayInputStream(patch.header), new FileInputStream(patch.data)),
+						patch.header.length + patch.data.length());
+			}
+			catch (FileNotFoundException e)
+			{
+				throw new FileIOException("Can't read patch of '" + item.getPath() + "'", e);
+			}
+		}
+
+		return null;
+	}
+
+	public void release(final Item item)
+	{
+		bases.remove(item);
+	}
+
+	/**
+	 * Removes the patches of 'previousStorage' which are no longer used by
+	 * 'item'. A removed item doesn't use any patch.
+	 */
+	public void cleanup(final Item item, final String previousStorage, final boolean removed) throws CloudsyncException
+	{
+		if (item.isType(ItemType.FOLDER))
+		{
+			if (!removed) return;
+			for (final Item child : item.getChildren())
+			{
+				cleanup(child, child.getStorage(), true);
+			}
+			return;
+		}
+
+		final List<String> names = new ArrayList<>(getPatchNames(previousStorage));
+		if (!removed) names.removeAll(getPatchNames(item.getStorage()));
+		if (names.isEmpty()) return;
+
+		final Item patchFolder = handler.getStoreFolder(FOLDER_NAME, false);
+		if (patchFolder == null) return;
+
+		for (final String name : names)
+		{
+			final Item patchItem;
+			synchronized (this)
+			{
+				patchItem = patchFolder.getChildByName(name);
+				if (patchItem == null) continue;
+				patchFolder.removeChild(patchItem);
+			}
+			LOGGER.log(Level.FINE, "  remove patch '" + name + "'");
+			journal.pending(patchItem);
+			remoteConnection.remove(handler, patchItem);
+			journal.remove(patchItem);
+		}
+	}
+
+	public InputStream read(final Item item) throws CloudsyncException
+	{
+		final Item patchFolder = handler.getStoreFolder(FOLDER_NAME, false);
+		final List<String> names = getPatchNames(item.getStorage());
+		final List<RemoteStreamData> streams = new ArrayList<>();
+
+		try
+		{
+			streams.add(handler.getRemoteObject(item));
+			final List<PatchReader> patches = new ArrayList<>();
+			for (final String name : names)
+			{
+				final Item patchItem = patchFolder != null ? patchFolder.getChildByName(name) : null;
+				if (patchItem == null)
+				{
+					throw new CloudsyncException("Missing patch '" + name + "' of " + item.getTypeName() + " '" + item.getPath() + "'");
+				}
+				final RemoteStreamData stream = handler.getRemoteObject(patchItem);
+				streams.add(stream);
+				patches.add(new PatchReader(stream.getDecryptedStream()));
+			}
+
+			return new PatchedInputStream(streams, patches, getBlockSize(item.getStorage()));
+		}
+		catch (IOException e)
+		{
+			closeAll(streams);
+			throw new CloudsyncException("Can't read patches of " + item.getTypeName() + " '" + item.getPath() + "'", e);
+		}
+		catch (CloudsyncException | RuntimeException e)
+		{
+			closeAll(streams);
+			throw e;
+		}
+	}
+
+	// reads the local file and stores the changed blocks as a new patch. returns
+	// false if too much of the file has changed
+	private boolean storePatch(final Item item, final String previousStorage, final int blockSize) throws CloudsyncException, FileIOException
+	{
+		final byte[] checksums = Base64.decodeBase64(item.getBlockChecksums());
+		final ByteArrayOutputStream newChecksums = new ByteArrayOutputStream(checksums.length + CHECKSUM_SIZE);
+		final List<Integer> indexes = new ArrayList<>();
+		final long maxChanged = item.getFilesize() / 2;
+		long length = 0;
+		long changed = 0;
+
+		File tempFile = null;
+		try
+		{
+			tempFile = File.createTempFile("patch", ".tmp");
+			tempFile.deleteOnExit();
+
+			try (InputStream in = localConnection.getFileBinary(item).getStream();
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile)))
+			{
+				final MessageDigest digest = DigestUtils.getMd5Digest();
+				final byte[] block = new byte[blockSize];
+				int len;
+				for (int index = 0; (len = readBlock(in, block, blockSize)) > 0; index++)
+				{
+					digest.update(block, 0, len);
+					final byte[] checksum = digest.digest();
+					newChecksums.write(checksum);
+
+					final int offset = index * CHECKSUM_SIZE;
+					if (offset + CHECKSUM_SIZE > checksums.length
+							|| !Arrays.equals(checksum, Arrays.copyOfRange(checksums, offset, offset + CHECKSUM_SIZE)))
+					{
+						changed += len;
+						if (changed > maxChanged) return false;
+						indexes.add(index);
+						out.write(block, 0, len);
+					}
+					length += len;
+				}
+			}
+
+			final String storage;
+			if (indexes.isEmpty() && newChecksums.size() == checksums.length)
+			{
+				storage = previousStorage;
+			}
+			else
+			{
+				final ByteArrayOutputStream header = new ByteArrayOutputStream();
+				final DataOutputStream out = new DataOutputStream(header);
+				out.write(MAGIC);
+				out.writeLong(length);
+				out.writeInt(blockSize);
+				out.writeInt(indexes.size());
+				for (final int index : indexes)
+				{
+					out.writeInt(index);
+				}
+				out.flush();
+
+				final String name = UUID.randomUUID().toString().replace("-", "");
+				upload(name, new Patch(header.toByteArray(), tempFile));
+				storage = previousStorage + (previousStorage.endsWith(SEPARATOR) ? "" : ",") + name;
+			}
+
+			LOGGER.log(Level.FINE, "  stored " + indexes.size() + " of " + (length + blockSize - 1) / blockSize + " blocks as patch");
+
+			item.setStorage(storage);
+			item.setBlockChecksums(Base64.encodeBase64String(newChecksums.toByteArray()));
+			return true;
+		}
+		catch (IOException e)
+		{
+			throw new FileIOException("Can't create patch of '" + item.getPath() + "'", e);
+		}
+		finally
+		{
+			if (tempFile != null) tempFile.delete();
+		}
+	}
+
+	private void upload(final String name, final Patch patch) throws CloudsyncException, FileIOException
+	{
+		final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		final Item item = Item.fromLocalData(name, ItemType.FILE, patch.header.length + patch.data.length(), now, now, now, new HashMap<String, String[]>());
+		item.setParent(folder);
+
+		uploads.put(item, patch);
+		try
+		{
+			journal.pending(item);
+			remoteConnection.upload(handler, item);
+			journal.put(item);
+		}
+		finally
+		{
+			uploads.remove(item);
+		}
+
+		synchronized (this)
+		{
+			folder.addChild(item);
+		}
+	}
+
+	private static int readBlock(final InputStream in, final byte[] block, final int length) throws IOException
+	{
+		int count = 0;
+		while (count < length)
+		{
+			final int len = in.read(block, count, length - count);
+			if (len == -1) break;
+			count += len;
+		}
+		return count;
+	}
+
+	private static void skipFully(final InputStream in, final long count) throws IOException
+	{
+		final byte[] buffer = new byte[(int) Math.min(Math.max(count, 1), 1 << 16)];
+		long skipped = 0;
+		while (skipped < count)
+		{
+			final int len = in.read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+			if (len == -1) throw new IOException("unexpected end of data");
+			skipped += len;
+		}
+	}
+
+	private static void readFully(final InputStream in, final byte[] block, final int len) throws IOException
+	{
+		if (readBlock(in, block, len) < len) throw new IOException("unexpected end of data");
+	}
+
+	private static void closeAll(final List<RemoteStreamData> streams)
+	{
+		for (final RemoteStreamData stream : streams)
+		{
+			stream.close();
+		}
+	}
+
+	static int getBlockSize(final long filesize)
+	{
+		int blockSize = MIN_BLOCK_SIZE;
+		while ((long) blockSize * MAX_BLOCKS < filesize)
+		{
+			blockSize *= 2;
+		}
+		return blockSize;
+	}
+
+	private static boolean isDelta(final String storage)
+	{
+		return storage != null && storage.startsWith(STORAGE + SEPARATOR);
+	}
+
+	private static int getBlockSize(final String storage)
+	{
+		return Integer.parseInt(StringUtils.splitPreserveAllTokens(storage, SEPARATOR)[1]);
+	}
+
+	private static List<String> getPatchNames(final String storage)
+	{
+		if (!isDelta(storage)) return Collections.emptyList();
+
+		final String names = StringUtils.splitPreserveAllTokens(storage, SEPARATOR)[2];
+		if (names.isEmpty()) return Collections.emptyList();
+		return Arrays.asList(names.split(","));
+	}
+
+	// calculates the block checksums of a new base while it is uploaded
+	private static class BlockChecksumInputStream extends FilterInputStream
+	{
+		private final MessageDigest			digest		= DigestUtils.getMd5Digest();
+		private final ByteArrayOutputStream	checksums	= new ByteArrayOutputStream();
+		private final int					blockSize;
+		private final Item					item;
+		private int							position;
+		private boolean						finished;
+
+		public BlockChecksumInputStream(final InputStream in, final int blockSize, final Item item)
+		{
+			super(in);
+			this.blockSize = blockSize;
+			this.item = item;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int n = super.read(b, off, len);
+			if (n == -1)
+			{
+				finish();
+				return n;
+			}
+
+			int done = 0;
+			while (done < n)
+			{
+				final int count = Math.min(n - done, blockSize - position);
+				digest.update(b, off + done, count);
+				done += count;
+				position += count;
+				if (position == blockSize)
+				{
+					checksums.write(digest.digest(), 0, CHECKSUM_SIZE);
+					position = 0;
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			final byte[] buffer = new byte[(int) Math.min(Math.max(n, 1), 1 << 16)];
+			long skipped = 0;
+			while (skipped < n)
+			{
+				final int len = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if (len == -1) break;
+				skipped += len;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		private void finish()
+		{
+			if (finished) return;
+			finished = true;
+			if (position > 0) checksums.write(digest.digest(), 0, CHECKSUM_SIZE);
+			item.setBlockChecksums(Base64.encodeBase64String(checksums.toByteArray()));
+		}
+	}
+
+	private static class PatchReader
+	{
+		private final DataInputStream	in;
+		private final long				length;
+		private final int				blockSize;
+		private final int[]				indexes;
+		private int						next;
+
+		public PatchReader(final InputStream stream) throws IOException
+		{
+			in = new DataInputStream(stream);
+			final byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) throw new IOException("unsupported patch format");
+
+			length = in.readLong();
+			blockSize = in.readInt();
+			indexes = new int[in.readInt()];
+			for (int i = 0; i < indexes.length; i++)
+			{
+				indexes[i] = in.readInt();
+			}
+		}
+
+		// returns true if the block is part of this patch. its data is read
+		// into 'block' or skipped if 'block' is null. the blocks must be
+		// requested in ascending order
+		public boolean read(final int index, final byte[] block, final int len) throws IOException
+		{
+			while (next < indexes.length && indexes[next] < index)
+			{
+				skipFully(in, getLength(indexes[next]));
+				next++;
+			}
+			if (next == indexes.length || indexes[next] != index) return false;
+
+			if (getLength(index) != len) throw new IOException("unexpected length of block " + index);
+			if (block != null) in.readFully(block, 0, len);
+			else skipFully(in, len);
+			next++;
+			return true;
+		}
+
+		private int getLength(final int index)
+		{
+			return (int) Math.min(blockSize, length - (long) index * blockSize);
+		}
+	}
+
+	// the newest patch which contains a block wins. all other sources skip it
+	private static class PatchedInputStream extends InputStream
+	{
+		private final List<RemoteStreamData>	streams;
+		private final List<PatchReader>			patches;
+		private final InputStream				base;
+		private final long						length;
+		private final int						blockSize;
+		private final byte[]					block;
+		private long							baseOffset;
+		private int								index;
+		private int								blockLength;
+		private int								position;
+
+		public PatchedInputStream(final List<RemoteStreamData> streams, final List<PatchReader> patches, final int blockSize)
+		{
+			this.streams = streams;
+			this.patches = patches;
+			this.base = streams.get(0).getDecryptedStream();
+			this.length = patches.get(patches.size() - 1).length;
+			this.blockSize = blockSize;
+			this.block = new byte[blockSize];
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			if (len == 0) return 0;
+
+			if (position == blockLength)
+			{
+				if ((long) index * blockSize >= length) return -1;
+				loadBlock();
+			}
+
+			final int count = Math.min(len, blockLength - position);
+			System.arraycopy(block, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		private void loadBlock() throws IOException
+		{
+			blockLength = (int) Math.min(blockSize, length - (long) index * blockSize);
+			position = 0;
+
+			boolean found = false;
+			for (int i = patches.size() - 1; i >= 0; i--)
+			{
+				// older patches skip the block
+				if (patches.get(i).read(index, found ? null : block, blockLength)) found = true;
+			}
+
+			if (!found)
+			{
+				final long offset = (long) index * blockSize;
+				skipFully(base, offset - baseOffset);
+				readFully(base, block, blockLength);
+				baseOffset = offset + blockLength;
+			}
+			index++;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			closeAll(streams);
+		}
+	}
+}
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.io.Reader;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
@@ -15,18 +14,29 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import cloudsync.exceptions.FileIOException;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
@@ -50,6 +60,14 @@ public class Handler
 {
 	private final static Logger				LOGGER		= Logger.getLogger(Handler.class.getName());
 
+	private final static int				QUEUE_FACTOR	= 4;
+
+	// metadata only updates of a folder which are sent to the connector together
+	private final static int				MAX_METADATA_UPDATES	= 100;
+
+	// hidden folder below the root for data which is shared between items
+	final static String						STORE_NAME		= ".cloudsync-store";
+
 	private final String					name;
 
 	private final LocalFilesystemConnector	localConnection;
@@ -69,21 +87,37 @@ private final ExistingType existingFlag;
 	private Path							lockFilePath;
 	private Path							pidFilePath;
 	private boolean							pidCleanup	= false;
+	private StructureJournal				journal;
+	private ChunkStore						chunkStore;
+	private DeltaStore						deltaStore;
+	private PackStore						packStore;
+	private ChecksumIndex					checksumIndex;
+	// open while folders are loaded on demand
+	private StructureCache					structureCache;
 
 	private boolean							isLocked	= false;
 
 	private final FileErrorType fileErrorBehavior;
+	private final int							threads;
+	private final int							readThreads;
+	private final boolean						chunking;
+	private final boolean						delta;
+	private final long							packSize;
+	private final boolean						offheap;
 
 	class Status
 	{
-		private int	create	= 0;
-		private int	update	= 0;
-		private int	remove	= 0;
-		private int	skip	= 0;
+		private final AtomicInteger	create	= new AtomicInteger();
+		private final AtomicInteger	update	= new AtomicInteger();
+		private final AtomicInteger	remove	= new AtomicInteger();
+		private final AtomicInteger	skip	= new AtomicInteger();
+		private final Queue<Item>	failed	= new ConcurrentLinkedQueue<>();
 	}
 
 	public Handler(String name, final LocalFilesystemConnector localConnection, final RemoteConnector remoteConnection, final Crypt crypt,
-			final ExistingType existingFlag, final FollowLinkType followlinks, final PermissionType permissionType, final FileErrorType fileErrorBehavior)
+			final ExistingType existingFlag, final FollowLinkType followlinks, final PermissionType permissionType, final FileErrorType fileErrorBehavior,
+			final int threads, final int readThreads, final boolean chunking, final boolean delta,
+			final long packSize, final boolean offheap)
 	{
 		this.name = name;
 		this.localConnection = localConnection;
@@ -94,11 +128,17 @@ private final ExistingType existingFlag;
 		this.permissionType = permissionType;
 
 		this.fileErrorBehavior = fileErrorBehavior;
+		this.threads = threads;
+		this.readThreads = readThreads;
+		this.chunking = chunking;
+		this.delta = delta;
+		this.packSize = packSize;
+		this.offheap = offheap;
 
 		root = Item.getDummyRoot();
 		duplicates = new ArrayList<>();
 		invalides = new ArrayList<>();
-		followedLinkPaths = new ArrayList<>();
+		followedLinkPaths = new CopyOnWriteArrayList<>();
 	}
 
 	public void init(SyncType synctype, String cacheFile, String lockFile, String pidFile, boolean nocache, boolean forcestart) throws CloudsyncException
@@ -106,6 +146,12 @@ private final ExistingType existingFlag;
 		cacheFilePath = Paths.get(cacheFile.replace("{name}", name));
 		lockFilePath = Paths.get(lockFile.replace("{name}", name));
 		pidFilePath = Paths.get(pidFile.replace("{name}", name));
+		journal = new StructureJournal(StructureJournal.getPath(cacheFilePath));
+		chunkStore = new ChunkStore(this, remoteConnection, journal, crypt, chunking);
+		deltaStore = new DeltaStore(this, remoteConnection, localConnection, journal, delta);
+		packStore = new PackStore(this, remoteConnection, localConnection, journal, crypt, packSize);
+		checksumIndex = new ChecksumIndex(ChecksumIndex.getPath(cacheFilePath));
+		localConnection.setChecksumIndex(checksumIndex);
 
 		if (synctype.checkPID())
 		{
@@ -140,20 +186,33 @@ private final ExistingType existingFlag;
 		if (!nocache && Files.exists(cacheFilePath, LinkOption.NOFOLLOW_LINKS))
 		{
 			LOGGER.log(Level.INFO, "load structure from cache file");
-			readCSVStructure(cacheFilePath);
+			readStructure(cacheFilePath);
+			readJournal();
 		}
 		else
 		{
 			LOGGER.log(Level.INFO, "load structure from remote server");
 			createLock();
 			readRemoteStructure(root);
+			packStore.load();
 		}
-		releaseLock();
+		checkpoint();
 	}
 
 	@Override
 	public void finalize() throws CloudsyncException
 	{
+		if (checksumIndex != null) checksumIndex.close();
+
+		try
+		{
+			if (structureCache != null) structureCache.close();
+		}
+		catch (IOException e)
+		{
+			throw new CloudsyncException("Couldn't close '" + cacheFilePath.toString() + "'", e);
+		}
+
 		try
 		{
 			if (pidCleanup) Files.delete(pidFilePath);
@@ -197,35 +256,109 @@ private final ExistingType existingFlag;
 			throw new CloudsyncException("Couldn't remove '" + lockFilePath.toString() + "'");
 		}
 
+		writeStructure();
+
+		isLocked = false;
+	}
+
+	// the lock is only used to protect a rebuild of the structure. all other
+	// changes are recorded in the journal and compacted into the cache file
+	// once the journal has outgrown it
+	private void checkpoint() throws CloudsyncException
+	{
+		if (isLocked)
+		{
+			releaseLock();
+			return;
+		}
+
 		try
 		{
-			if (root.getChildren().size() > 0)
+			final long snapshotSize = Files.exists(cacheFilePath, LinkOption.NOFOLLOW_LINKS) ? Files.size(cacheFilePath) : 0;
+			if ((journal.isChanged() && snapshotSize == 0) || journal.isCompactable(snapshotSize))
 			{
-				LOGGER.log(Level.INFO, "write structure to cache file");
-				final PrintWriter out = new PrintWriter(cacheFilePath.toFile());
-				final CSVPrinter csvOut = new CSVPrinter(out, CSVFormat.EXCEL);
-				writeStructureToCSVPrinter(csvOut, root);
-				out.close();
+				writeStructure();
+			}
+			else
+			{
+				journal.close();
 			}
 		}
 		catch (final IOException e)
+		{
+			throw new CloudsyncException("Can't read cache file '" + cacheFilePath.toString() + "'", e);
+		}
+	}
+
+	private void writeStructure() throws CloudsyncException
+	{
+		try
+		{
+			LOGGER.log(Level.INFO, "write structure to cache file");
+			final StructureCache previousCache = structureCache;
+			structureCache = StructureCache.write(cacheFilePath, root, previousCache, offheap);
+		}
+		catch (final IOException e)
 		{
 			throw new CloudsyncException("Can't write cache file on '" + cacheFilePath.toString() + "'", e);
 		}
 
-		isLocked = false;
+		journal.reset();
 	}
 
-	private void writeStructureToCSVPrinter(final CSVPrinter out, final Item parentItem) throws IOException
+	private void readJournal() throws CloudsyncException
 	{
-		for (final Item child : parentItem.getChildren().values())
+		final List<Item> folders = journal.replay(root);
+		if (folders.isEmpty()) return;
+
+		LOGGER.log(Level.WARNING, "Found incomplete changes of a previous job. Reload " + folders.size() + " affected folder"
+				+ (folders.size() == 1 ? "" : "s") + " from remote server.");
+
+		// a crash during the reload forces a full rebuild
+		createLock();
+
+		final Map<ItemType, Integer> status = new HashMap<>();
+		for (final Item folder : folders)
 		{
-			out.printRecord(Arrays.asList(child.toCSVArray()));
-			if (child.isType(ItemType.FOLDER))
+			final Map<String, Item> cachedItems = new HashMap<>();
+			final List<Item> packedItems = new ArrayList<>();
+			for (final Item child : new ArrayList<>(folder.getChildren()))
+			{
+				if (PackStore.isPacked(child)) packedItems.add(child);
+				else cachedItems.put(child.getRemoteIdentifier(), child);
+				folder.removeChild(child);
+			}
+			readRemoteStructure(folder, cachedItems, status);
+
+			// packed files have no remote object of their own
+			for (final Item packedItem : packedItems)
 			{
-				writeStructureToCSVPrinter(out, child);
+				if (folder.getChildByName(packedItem.getName()) == null) folder.addChild(packedItem);
 			}
+			packStore.reloaded(folder);
 		}
+		if (status.size() > 0) LOGGER.log(Level.INFO, formatRemoteStatus(status));
+	}
+
+	private void readStructure(final Path cacheFilePath) throws CloudsyncException
+	{
+		try
+		{
+			if (StructureCache.isBinary(cacheFilePath))
+			{
+				structureCache = StructureCache.read(cacheFilePath, root, offheap);
+				return;
+			}
+		}
+		catch (final IOException e)
+		{
+			throw new CloudsyncException("Can't read cache from file '" + cacheFilePath.toString() + "'", e);
+		}
+
+		// the cache is rewritten in the binary format during 'releaseLock'
+		LOGGER.log(Level.INFO, "migrate cache file to binary format");
+		readCSVStructure(cacheFilePath);
+		createLock();
 	}
 
 	private void readCSVStructure(final Path cacheFilePath) throws CloudsyncException
@@ -260,13 +393,53 @@ private final ExistingType existingFlag;
 	private void readRemoteStructure(final Item parentItem) throws CloudsyncException
 	{
 		Map<ItemType, Integer> status = new HashMap<>();
-		readRemoteStructure(parentItem, status);
+		readRemoteStructure(parentItem, null, status);
 		if (status.size() > 0) LOGGER.log(Level.INFO, formatRemoteStatus(status));
 	}
 
-	private void readRemoteStructure(final Item parentItem, Map<ItemType, Integer> status) throws CloudsyncException
+	// folder listings are prefetched by the pool, but processed in depth-first order
+	// by the calling thread, so duplicate and invalid detection stays deterministic
+	private void readRemoteStructure(final Item parentItem, final Map<String, Item> cachedItems, Map<ItemType, Integer> status) throws CloudsyncException
+	{
+		final WorkerPool pool = new WorkerPool("read", readThreads, readThreads * QUEUE_FACTOR);
+		final long start = System.currentTimeMillis();
+		try
+		{
+			// a partial reload reads only a few folders. so a bulk listing doesn't pay off
+			final Map<String, List<RemoteItem>> listings = cachedItems == null ? remoteConnection.readFolders(this, parentItem) : null;
+
+			final int folders = readRemoteStructure(parentItem, readFolder(pool, listings, parentItem), cachedItems, pool, listings, status);
+
+			final long duration = System.currentTimeMillis() - start;
+			if (pool.isParallel() && folders > 1 && duration > 0)
+			{
+				LOGGER.log(Level.INFO, "listed " + folders + " folders in " + (duration / 1000.0) + " seconds (" + (folders * 1000 / duration) + " folders/s)");
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	// known folders from 'cachedItems' keep their cached children instead of being read again
+	private int readRemoteStructure(final Item parentItem, final Future<List<RemoteItem>> listing, final Map<String, Item> cachedItems,
+			final WorkerPool pool, final Map<String, List<RemoteItem>> listings, Map<ItemType, Integer> status) throws CloudsyncException
 	{
-		final List<RemoteItem> childItems = remoteConnection.readFolder(this, parentItem);
+		final List<RemoteItem> childItems = getFolder(listing);
+
+		final Map<RemoteItem, Future<List<RemoteItem>>> childListings = new IdentityHashMap<>();
+		for (final RemoteItem childItem : childItems)
+		{
+			if (childItem.getChecksum() == null || !childItem.isType(ItemType.FOLDER)) continue;
+			final Item cachedItem = cachedItems != null ? cachedItems.get(childItem.getRemoteIdentifier()) : null;
+			if (cachedItem != null && cachedItem.isType(ItemType.FOLDER)) continue;
+			// connectors may resolve the folder by its path
+			childItem.setParent(parentItem);
+			childListings.put(childItem, readFolder(pool, listings, childItem));
+		}
+
+		int folders = 1;
 
 		for (final RemoteItem childItem : childItems)
 		{
@@ -310,16 +483,86 @@ private final ExistingType existingFlag;
                     parentItem.addChild(childItem);
                 }
 
-                if (status.size() > 0) LOGGER.log(Level.INFO, "\r  " + formatRemoteStatus(status), true);
+                if (status.size() > 0) LOGGER.log(Level.INFO, "\r  " + formatRemoteStatus(status) + formatPending(pool), true);
 
                 putRemoteStatus(status, childItem.getType());
 
                 if (childItem.isType(ItemType.FOLDER))
                 {
-                    readRemoteStructure(childItem, status);
+                    final Item cachedItem = cachedItems != null ? cachedItems.get(childItem.getRemoteIdentifier()) : null;
+                    if (cachedItem != null && cachedItem.isType(ItemType.FOLDER))
+                    {
+                        for (final Item cachedChildItem : cachedItem.getChildren())
+                        {
+                            cachedChildItem.setParent(childItem);
+                            childItem.addChild(cachedChildItem);
+                        }
+                    }
+                    else
+                    {
+                        folders += readRemoteStructure(childItem, childListings.get(childItem), null, pool, listings, status);
+                    }
                 }
             }
 		}
+
+		return folders;
+	}
+
+	// uses the bulk listing of the connector if available
+	private Future<List<RemoteItem>> readFolder(final WorkerPool pool, final Map<String, List<RemoteItem>> listings, final Item parentItem)
+			throws CloudsyncException
+	{
+		final FutureTask<List<RemoteItem>> listing = new FutureTask<>(new Callable<List<RemoteItem>>()
+		{
+			@Override
+			public List<RemoteItem> call() throws CloudsyncException
+			{
+				if (listings == null) return remoteConnection.readFolder(Handler.this, parentItem);
+				final List<RemoteItem> childItems = listings.get(parentItem.getRemoteIdentifier());
+				return childItems != null ? childItems : new ArrayList<RemoteItem>();
+			}
+		});
+
+		if (listings != null)
+		{
+			listing.run();
+			return listing;
+		}
+
+		pool.submit(new WorkerPool.Task()
+		{
+			@Override
+			public void run()
+			{
+				listing.run();
+			}
+		});
+		return listing;
+	}
+
+	private List<RemoteItem> getFolder(final Future<List<RemoteItem>> listing) throws CloudsyncException
+	{
+		try
+		{
+			return listing.get();
+		}
+		catch (final InterruptedException e)
+		{
+			throw new CloudsyncException("Interrupted while reading the remote structure", e);
+		}
+		catch (final ExecutionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof CloudsyncException) throw (CloudsyncException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw (Error) cause;
+		}
+	}
+
+	private String formatPending(final WorkerPool pool)
+	{
+		return pool.isParallel() ? " (" + pool.getPending() + " requests in flight)" : "";
 	}
 
 	private void putRemoteStatus(Map<ItemType, Integer> status, ItemType type)
@@ -394,36 +637,6 @@ private final ExistingType existingFlag;
         }
 	}
 
-	private boolean checkPattern(String path, String[] includePatterns, String[] excludePatterns)
-	{
-		if (includePatterns != null)
-		{
-			boolean found = false;
-			for (String includePattern : includePatterns)
-			{
-				if (path.matches("^" + includePattern + "$"))
-				{
-					found = true;
-					break;
-				}
-			}
-			if (!found) return false;
-		}
-
-		if (excludePatterns != null)
-		{
-			for (String excludePattern : excludePatterns)
-			{
-				if (path.matches("^" + excludePattern + "$"))
-				{
-					return false;
-				}
-			}
-		}
-
-		return true;
-	}
-
 	public void clean() throws CloudsyncException
 	{
 		if (duplicates.size() > 0)
@@ -464,209 +677,514 @@ private final ExistingType existingFlag;
         }
 	}
 
-	public void list(String[] includePatterns, String[] excludePatterns) throws CloudsyncException
+	public void list(final PathMatcher pathMatcher) throws CloudsyncException
 	{
 		checkErrors();
 
-		list(includePatterns, excludePatterns, root);
+		list(pathMatcher, root);
 	}
 
-	private void list(String[] includePatterns, String[] excludePatterns, final Item item)
+	private void list(final PathMatcher pathMatcher, final Item item)
 	{
-		for (final Item child : item.getChildren().values())
+		for (final Item child : item.getChildren())
 		{
+			if (isStoreFolder(child)) continue;
+
 			String path = child.getPath();
 
-			if (!checkPattern(path, includePatterns, excludePatterns)) continue;
+			if (!pathMatcher.matches(path)) continue;
 
 			LOGGER.log(Level.INFO, path);
 
 			if (child.isType(ItemType.FOLDER))
 			{
-				list(includePatterns, excludePatterns, child);
+				if (pathMatcher.matchesBelow(path)) list(pathMatcher, child);
+				child.unloadChildren();
 			}
 		}
 	}
 
-	public void restore(final boolean dryRun, String[] includePatterns, String[] excludePatterns) throws CloudsyncException
+	public void restore(final boolean dryRun, final PathMatcher pathMatcher) throws CloudsyncException
 	{
 		checkErrors();
 
-		restore(dryRun, includePatterns, excludePatterns, root);
+		final List<Item> restoredFolders = new ArrayList<>();
+		final WorkerPool pool = new WorkerPool("restore", threads, threads * QUEUE_FACTOR);
+		try
+		{
+			restore(dryRun, pathMatcher, root, pool, restoredFolders);
+			pool.await();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		// children first, so the times of a folder are not changed by later writes
+		Collections.reverse(restoredFolders);
+		for (final Item folder : restoredFolders)
+		{
+			localConnection.uploadAttributes(folder, permissionType);
+		}
 	}
 
-	private void restore(final boolean dryRun, String[] includePatterns, String[] excludePatterns, final Item item) throws CloudsyncException
+	// folders are created inline, so they exist before any task for their children is queued
+	private void restore(final boolean dryRun, final PathMatcher pathMatcher, final Item item, final WorkerPool pool, final List<Item> restoredFolders)
+			throws CloudsyncException
 	{
-		for (final Item child : item.getChildren().values())
+		// renamed children move within their parent
+		final Collection<Item> children = ExistingType.RENAME.equals(existingFlag) ? new ArrayList<>(item.getChildren()) : item.getChildren();
+		for (final Item child : children)
 		{
+			if (isStoreFolder(child)) continue;
+
 			String path = child.getPath();
 
-			if (checkPattern(path, includePatterns, excludePatterns))
+			if (pathMatcher.matches(path))
 			{
 				localConnection.prepareUpload(this, child, existingFlag);
 				LOGGER.log(Level.FINE, "restore " + child.getTypeName() + " '" + path + "'");
-				if (!dryRun) localConnection.upload(this, child, existingFlag, permissionType);
+				if (!dryRun)
+				{
+					if (child.isType(ItemType.FOLDER))
+					{
+						if (localConnection.upload(this, child, existingFlag)) restoredFolders.add(child);
+					}
+					else
+					{
+						pool.submit(new WorkerPool.Task()
+						{
+							@Override
+							public void run() throws CloudsyncException
+							{
+								if (localConnection.upload(Handler.this, child, existingFlag))
+								{
+									localConnection.uploadAttributes(child, permissionType);
+								}
+							}
+						});
+					}
+				}
 			}
 
 			if (child.isType(ItemType.FOLDER))
 			{
-				restore(dryRun, includePatterns, excludePatterns, child);
+				if (pathMatcher.matchesBelow(path)) restore(dryRun, pathMatcher, child, pool, restoredFolders);
+				child.unloadChildren();
 			}
 		}
 	}
 
-	public void backup(final boolean dryRun, String[] includePatterns, String[] excludePatterns) throws CloudsyncException
+	public void backup(final boolean dryRun, final PathMatcher pathMatcher) throws CloudsyncException
 	{
 		checkErrors();
 
 		final Status status = new Status();
 
-		backup(dryRun, includePatterns, excludePatterns, root, status);
+		final WorkerPool pool = new WorkerPool("backup", threads, threads * QUEUE_FACTOR);
+		final BackupScanner scanner = new BackupScanner(localConnection, followlinks, followedLinkPaths, pathMatcher,
+				pool.isParallel() ? threads * QUEUE_FACTOR : 0);
+
+		try
+		{
+			if (!dryRun)
+			{
+				chunkStore.open();
+				deltaStore.open();
+				packStore.open();
+			}
+			scanner.start(root);
+			backup(dryRun, scanner, pool, status);
+			pool.await();
+			if (!dryRun) packStore.flush();
+		}
+		finally
+		{
+			scanner.close();
+			pool.shutdown();
+		}
+
+		for (final Item item : status.failed)
+		{
+			revertItem(item);
+		}
 
-		boolean isChanged = isLocked;
+		boolean isChanged = isLocked || journal.isChanged();
 
-		releaseLock();
+		checkpoint();
 
 		if (isChanged)
 		{
 			remoteConnection.cleanHistory(this);
 		}
 
-		final int total = status.create + status.update + status.skip;
+		final int total = status.create.get() + status.update.get() + status.skip.get();
 		LOGGER.log(Level.INFO, "total items: " + (Integer.toString(total)));
-		LOGGER.log(Level.INFO, "created items: " + (Integer.toString(status.create)));
-		LOGGER.log(Level.INFO, "updated items: " + (Integer.toString(status.update)));
-		LOGGER.log(Level.INFO, "removed items: " + (Integer.toString(status.remove)));
-		LOGGER.log(Level.INFO, "skipped items: " + (Integer.toString(status.skip)));
+		LOGGER.log(Level.INFO, "created items: " + (Integer.toString(status.create.get())));
+		LOGGER.log(Level.INFO, "updated items: " + (Integer.toString(status.update.get())));
+		LOGGER.log(Level.INFO, "removed items: " + (Integer.toString(status.remove.get())));
+		LOGGER.log(Level.INFO, "skipped items: " + (Integer.toString(status.skip.get())));
 	}
 
-	private void backup(final boolean dryRun, String[] includePatterns, String[] excludePatterns, final Item remoteParentItem, final Status status)
-			throws CloudsyncException
+	// diff stage. consumes the scanner entries in traversal order. folders are
+	// created inline, so they exist before any task for their children is queued
+	private void backup(final boolean dryRun, final BackupScanner scanner, final WorkerPool pool, final Status status) throws CloudsyncException
 	{
-		final Map<String, Item> unusedRemoteChildItems = remoteParentItem.getChildren();
+		final Deque<Item> remoteParentItems = new ArrayDeque<>();
+		remoteParentItems.push(root);
+		final Deque<List<BackupTask>> metadataUpdates = new ArrayDeque<>();
+		metadataUpdates.push(new ArrayList<BackupTask>());
 
-		for (File localChildFile : localConnection.readFolder(remoteParentItem))
-		{
-			String filePath = localChildFile.getAbsolutePath();
-			if (!checkPattern(filePath, includePatterns, excludePatterns)) continue;
+		int skipDepth = 0;
 
-			String backupPath = filePath;
-			Item remoteChildItem = null;
-			try
+		BackupScanner.Entry entry;
+		while ((entry = scanner.next()) != null)
+		{
+			if (skipDepth > 0)
 			{
-				Item localChildItem = localConnection.getItem( localChildFile, followlinks, followedLinkPaths );
-				localChildItem.setParent(remoteParentItem);
+				if (entry.isEnd()) skipDepth--;
+				else if (entry.hasChildren()) skipDepth++;
+				continue;
+			}
 
-				backupPath = localChildItem.getPath();
+			final Item remoteParentItem = remoteParentItems.peek();
 
-				remoteChildItem = remoteParentItem.getChildByName(localChildItem.getName());
+			if (entry.isEnd())
+			{
+				final List<BackupTask> pendingUpdates = metadataUpdates.pop();
+				if (!pendingUpdates.isEmpty()) pool.submit(new MetadataUpdateTask(pendingUpdates));
 
-				if (remoteChildItem == null)
+				for (final Item item : getUnvisitedChildren(remoteParentItem))
 				{
-					remoteChildItem = localChildItem;
-					LOGGER.log(Level.FINE, "create " + remoteChildItem.getTypeName() + " '" + backupPath + "'");
+					LOGGER.log(Level.FINE, "remove " + item.getTypeName() + " '" + item.getPath() + "'");
+					remoteParentItem.removeChild(item);
 					if (!dryRun)
 					{
-						createLock();
-						remoteConnection.upload(this, remoteChildItem);
+						pool.submit(new WorkerPool.Task()
+						{
+							@Override
+							public void run() throws CloudsyncException
+							{
+								removeItem(item);
+								status.remove.incrementAndGet();
+							}
+						});
 					}
-					remoteParentItem.addChild(remoteChildItem);
-					status.create++;
+					else
+					{
+						status.remove.incrementAndGet();
+					}
+				}
+
+				remoteParentItems.pop();
+
+				// an unchanged folder is loaded again from the cache file if it is needed later
+				remoteParentItem.unloadChildren();
+				continue;
+			}
+
+			final Item remoteChildItem = backup(dryRun, entry, remoteParentItem, pool, metadataUpdates.peek(), status);
+
+			if (entry.hasChildren())
+			{
+				if (remoteChildItem != null && remoteChildItem.isType(ItemType.FOLDER))
+				{
+					remoteParentItems.push(remoteChildItem);
+					metadataUpdates.push(new ArrayList<BackupTask>());
 				}
 				else
 				{
-					if (remoteChildItem.isTypeChanged(localChildItem))
+					skipDepth = 1;
+				}
+			}
+		}
+	}
+
+	private Item backup(final boolean dryRun, final BackupScanner.Entry entry, final Item remoteParentItem, final WorkerPool pool,
+			final List<BackupTask> metadataUpdates, final Status status) throws CloudsyncException
+	{
+		Item localChildItem = null;
+		Item remoteChildItem = null;
+		try
+		{
+			localChildItem = entry.getItem();
+			localChildItem.setParent(remoteParentItem);
+
+			// the path is only built for messages, so an unchanged item doesn't allocate one
+			if (isStoreFolder(localChildItem))
+			{
+				LOGGER.log(Level.WARNING, "Skip '" + localChildItem.getPath() + "'. The name is reserved for the backup store.");
+				status.skip.incrementAndGet();
+				return null;
+			}
+
+			remoteChildItem = remoteParentItem.getChildByName(localChildItem.getName());
+			final Item existingItem = remoteChildItem;
+
+			Item replacedItem = null;
+			boolean isCreated = false;
+			boolean isFiledataChanged = false;
+
+			if (remoteChildItem == null)
+			{
+				remoteChildItem = localChildItem;
+				LOGGER.log(Level.FINE, "create " + remoteChildItem.getTypeName() + " '" + localChildItem.getPath() + "'");
+				remoteParentItem.addChild(remoteChildItem);
+				isCreated = true;
+			}
+			else if (remoteChildItem.isTypeChanged(localChildItem))
+			{
+				replacedItem = remoteChildItem;
+				LOGGER.log(Level.FINE, "remove " + replacedItem.getTypeName() + " '" + localChildItem.getPath() + "'");
+
+				remoteChildItem = localChildItem;
+				LOGGER.log(Level.FINE, "create " + remoteChildItem.getTypeName() + " '" + localChildItem.getPath() + "'");
+				remoteParentItem.addChild(remoteChildItem);
+				isCreated = true;
+			}
+			// check filesize and modify time
+			else if (remoteChildItem.isMetadataChanged(localChildItem))
+			{
+				isFiledataChanged = localChildItem.isFiledataChanged(remoteChildItem);
+				remoteChildItem.update(localChildItem);
+				List<String> types = new ArrayList<>();
+				if (isFiledataChanged) types.add("data,attributes");
+				else if (!isFiledataChanged) types.add("attributes");
+				if (remoteChildItem.isMetadataFormatChanged()) types.add("format");
+				LOGGER.log(Level.FINE, "update " + remoteChildItem.getTypeName() + " '" + localChildItem.getPath() + "' [" + StringUtils.join(types, ",") + "]");
+			}
+			else
+			{
+				remoteChildItem = null;
+			}
+
+			(remoteChildItem != null ? remoteChildItem : existingItem).setVisited(true);
+
+			final BackupTask task = new BackupTask(dryRun, entry.getFile(), localChildItem, remoteChildItem, replacedItem, isCreated, isFiledataChanged,
+					status);
+
+			if (!dryRun && task.isMetadataUpdate())
+			{
+				metadataUpdates.add(task);
+				if (metadataUpdates.size() == MAX_METADATA_UPDATES)
+				{
+					pool.submit(new MetadataUpdateTask(new ArrayList<>(metadataUpdates)));
+					metadataUpdates.clear();
+				}
+			}
+			else if (localChildItem.isType(ItemType.FOLDER) || dryRun)
+			{
+				if (!task.execute())
+				{
+					if (isCreated) revertItem(remoteChildItem);
+					return null;
+				}
+			}
+			else
+			{
+				pool.submit(task);
+			}
+
+			return remoteChildItem != null ? remoteChildItem : remoteParentItem.getChildByName(localChildItem.getName());
+		}
+		catch (FileIOException e)
+		{
+			final String backupPath = localChildItem != null ? localChildItem.getPath() : entry.getPath();
+			status.skip.incrementAndGet();
+			if (FileErrorType.MESSAGE.equals(fileErrorBehavior))
+			{
+				LOGGER.log(Level.SEVERE, "Skip '" + backupPath + "'. " + e.getMessage());
+				return null;
+			}
+			else
+			{
+				throw new CloudsyncException("Skip '" + backupPath + "'", e);
+			}
+		}
+	}
+
+	// mutation stage. runs either inline or on a worker thread
+	private class BackupTask implements WorkerPool.Task
+	{
+		private final boolean	dryRun;
+		private final File		localChildFile;
+		private final Item		localChildItem;
+		private final Item		remoteChildItem;
+		private final Item		replacedItem;
+		private final boolean	isCreated;
+		private final boolean	isFiledataChanged;
+		private final Status	status;
+		private boolean			isMetadataUpdated;
+
+		public BackupTask(final boolean dryRun, final File localChildFile, final Item localChildItem, final Item remoteChildItem, final Item replacedItem,
+				final boolean isCreated, final boolean isFiledataChanged, final Status status)
+		{
+			this.dryRun = dryRun;
+			this.localChildFile = localChildFile;
+			this.localChildItem = localChildItem;
+			this.remoteChildItem = remoteChildItem;
+			this.replacedItem = replacedItem;
+			this.isCreated = isCreated;
+			this.isFiledataChanged = isFiledataChanged;
+			this.status = status;
+		}
+
+		@Override
+		public void run() throws CloudsyncException
+		{
+			if (!execute() && isCreated) status.failed.add(remoteChildItem);
+		}
+
+		// an update without file data of an item which isn't packed
+		public boolean isMetadataUpdate()
+		{
+			return !isCreated && remoteChildItem != null && !isFiledataChanged && !PackStore.isPacked(remoteChildItem.getStorage());
+		}
+
+		public boolean execute() throws CloudsyncException
+		{
+			try
+			{
+				if (replacedItem != null)
+				{
+					if (!dryRun)
 					{
-						LOGGER.log(Level.FINE, "remove " + remoteChildItem.getTypeName() + " '" + backupPath + "'");
-						if (!dryRun)
-						{
-							createLock();
-							remoteConnection.remove(this, remoteChildItem);
-						}
-						status.remove++;
+						removeItem(replacedItem);
+					}
+					status.remove.incrementAndGet();
+				}
 
-						remoteChildItem = localChildItem;
-						LOGGER.log(Level.FINE, "create " + remoteChildItem.getTypeName() + " '" + backupPath + "'");
-						if (!dryRun)
+				if (isCreated)
+				{
+					if (!dryRun)
+					{
+						journal.pending(remoteChildItem);
+						if (!packStore.add(remoteChildItem, null))
 						{
-							createLock();
-							remoteConnection.upload(this, remoteChildItem);
+							uploadItem(remoteChildItem);
 						}
-						remoteParentItem.addChild(remoteChildItem);
-						status.create++;
+						localConnection.storeChecksum(remoteChildItem);
 					}
-					// check filesize and modify time
-					else if (remoteChildItem.isMetadataChanged(localChildItem))
+					status.create.incrementAndGet();
+				}
+				else if (remoteChildItem != null)
+				{
+					if (!dryRun)
 					{
-						final boolean isFiledataChanged = localChildItem.isFiledataChanged(remoteChildItem);
-						remoteChildItem.update(localChildItem);
-						List<String> types = new ArrayList<>();
-						if (isFiledataChanged) types.add("data,attributes");
-						else if (!isFiledataChanged) types.add("attributes");
-						if (remoteChildItem.isMetadataFormatChanged()) types.add("format");
-						LOGGER.log(Level.FINE, "update " + remoteChildItem.getTypeName() + " '" + backupPath + "' [" + StringUtils.join(types, ",") + "]");
-						if (!dryRun)
+						final String storage = remoteChildItem.getStorage();
+						if (!updatePackedItem(remoteChildItem, storage, isFiledataChanged))
 						{
-							createLock();
-							remoteConnection.update(this, remoteChildItem, isFiledataChanged);
+							try
+							{
+								final boolean withFiledata = isFiledataChanged && prepareData(remoteChildItem, storage);
+								if (!isMetadataUpdated) remoteConnection.update(Handler.this, remoteChildItem, withFiledata);
+							}
+							finally
+							{
+								releaseData(remoteChildItem);
+							}
+							journal.put(remoteChildItem);
+							deltaStore.cleanup(remoteChildItem, storage, false);
 						}
-						status.update++;
-					}
-					else
-					{
-						status.skip++;
+						if (isFiledataChanged) localConnection.storeChecksum(remoteChildItem);
 					}
+					status.update.incrementAndGet();
+				}
+				else
+				{
+					status.skip.incrementAndGet();
 				}
 
 				try
 				{
 					// refresh Metadata
-					Item _localChildItem = localConnection.getItem(localChildFile, followlinks, followedLinkPaths );
+					Item _localChildItem = localConnection.getItem(localChildFile, followlinks, followedLinkPaths);
 					if (_localChildItem.isMetadataChanged(localChildItem))
 					{
-						LOGGER.log(Level.WARNING, localChildItem.getTypeName() + " '" + backupPath + "' was changed during update.");
+						LOGGER.log(Level.WARNING, localChildItem.getTypeName() + " '" + localChildItem.getPath() + "' was changed during update.");
 					}
 				}
 				catch (FileIOException e)
 				{
-					LOGGER.log(Level.WARNING, localChildItem.getTypeName() + " '" + backupPath + "' was removed during update.");
+					LOGGER.log(Level.WARNING, localChildItem.getTypeName() + " '" + localChildItem.getPath() + "' was removed during update.");
 				}
 
-				unusedRemoteChildItems.remove(remoteChildItem.getName());
-
-				if (remoteChildItem.isType(ItemType.FOLDER))
-				{
-					backup(dryRun, includePatterns, excludePatterns, remoteChildItem, status);
-				}
+				return true;
 			}
 			catch (FileIOException e)
 			{
-				status.skip++;
-				if(FileErrorType.MESSAGE.equals( fileErrorBehavior))
+				status.skip.incrementAndGet();
+				if (FileErrorType.MESSAGE.equals(fileErrorBehavior))
 				{
-					LOGGER.log(Level.SEVERE, "Skip '" + backupPath + "'. " + e.getMessage());
-					if( remoteChildItem != null ) {
-						unusedRemoteChildItems.remove(remoteChildItem.getName());
-					}
+					LOGGER.log(Level.SEVERE, "Skip '" + localChildItem.getPath() + "'. " + e.getMessage());
+					return false;
 				}
 				else
 				{
-					throw new CloudsyncException("Skip '" + backupPath + "'", e);
+					throw new CloudsyncException("Skip '" + localChildItem.getPath() + "'", e);
 				}
 			}
 		}
+	}
+
+	// metadata only updates of a folder. they are sent to the connector
+	// together, the items it couldn't update are updated one by one
+	private class MetadataUpdateTask implements WorkerPool.Task
+	{
+		private final List<BackupTask>	tasks;
 
-		for (final Item item : unusedRemoteChildItems.values())
+		public MetadataUpdateTask(final List<BackupTask> tasks)
 		{
-			LOGGER.log(Level.FINE, "remove " + item.getTypeName() + " '" + item.getPath() + "'");
-			remoteParentItem.removeChild(item);
-			if (!dryRun)
+			this.tasks = tasks;
+		}
+
+		@Override
+		public void run() throws CloudsyncException
+		{
+			if (tasks.size() > 1)
 			{
-				createLock();
-				remoteConnection.remove(this, item);
+				final List<Item> items = new ArrayList<>(tasks.size());
+				for (final BackupTask task : tasks)
+				{
+					items.add(task.remoteChildItem);
+				}
+				final List<Item> updatedItems = remoteConnection.updateMetadata(Handler.this, items);
+				for (final BackupTask task : tasks)
+				{
+					task.isMetadataUpdated = updatedItems.contains(task.remoteChildItem);
+				}
+			}
+
+			for (final BackupTask task : tasks)
+			{
+				task.run();
+			}
+		}
+	}
+
+	// children without a local item. the marks of all other children are reset
+	private List<Item> getUnvisitedChildren(final Item parentItem)
+	{
+		List<Item> unvisited = Collections.emptyList();
+		for (final Item child : parentItem.getChildren())
+		{
+			if (child.isVisited())
+			{
+				child.setVisited(false);
+			}
+			else if (!isStoreFolder(child))
+			{
+				if (unvisited.isEmpty()) unvisited = new ArrayList<>();
+				unvisited.add(child);
 			}
-			status.remove++;
 		}
+		return unvisited;
+	}
+
+	private void revertItem(final Item item)
+	{
+		final Item parentItem = item.getParent();
+		if (parentItem.getChildByName(item.getName()) == item) parentItem.removeChild(item);
 	}
 
 	private List<Item> _flatRecursiveChildren(final Item parentItem)
@@ -677,7 +1195,7 @@ private final ExistingType existingFlag;
 
 		if (parentItem.isType(ItemType.FOLDER))
 		{
-			for (final Item childItem : parentItem.getChildren().values())
+			for (final Item childItem : parentItem.getChildren())
 			{
 				list.addAll(_flatRecursiveChildren(childItem));
 			}
@@ -691,15 +1209,149 @@ private final ExistingType existingFlag;
 		return root;
 	}
 
+	private void uploadItem(final Item item) throws CloudsyncException, FileIOException
+	{
+		prepareData(item, null);
+		try
+		{
+			remoteConnection.upload(this, item);
+		}
+		finally
+		{
+			releaseData(item);
+		}
+		journal.put(item);
+	}
+
+	// packed files have no remote object of their own
+	private void removeItem(final Item item) throws CloudsyncException
+	{
+		journal.pending(item);
+		if (PackStore.isPacked(item))
+		{
+			packStore.remove(item, true);
+			return;
+		}
+
+		remoteConnection.remove(this, item);
+		journal.remove(item);
+		deltaStore.cleanup(item, item.getStorage(), true);
+		packStore.remove(item, false);
+	}
+
+	// returns false if the item is neither packed nor moved into a pack
+	private boolean updatePackedItem(final Item item, final String storage, final boolean isFiledataChanged) throws CloudsyncException,
+			FileIOException
+	{
+		final boolean isPacked = PackStore.isPacked(storage);
+		if (!isPacked && !isFiledataChanged) return false;
+
+		journal.pending(item);
+		if (isFiledataChanged && packStore.add(item, storage))
+		{
+			if (!isPacked)
+			{
+				remoteConnection.remove(this, item);
+				item.setRemoteIdentifier(null);
+				deltaStore.cleanup(item, storage, true);
+			}
+		}
+		else if (!isPacked)
+		{
+			return false;
+		}
+		else if (isFiledataChanged)
+		{
+			// the file has outgrown its pack
+			packStore.remove(item, false);
+			uploadItem(item);
+		}
+		else
+		{
+			packStore.touch(item);
+		}
+		return true;
+	}
+
+	// returns false if only the metadata of the item must be uploaded
+	private boolean prepareData(final Item item, final String previousStorage) throws CloudsyncException, FileIOException
+	{
+		chunkStore.prepare(item, localConnection);
+		if (ChunkStore.isChunked(item))
+		{
+			item.setBlockChecksums(null);
+			return true;
+		}
+		return deltaStore.prepare(item, previousStorage);
+	}
+
+	private void releaseData(final Item item)
+	{
+		chunkStore.release(item);
+		deltaStore.release(item);
+	}
+
+	private boolean isStoreFolder(final Item item)
+	{
+		return item.getParent() == root && STORE_NAME.equals(item.getName());
+	}
+
+	// the folders are only created while no backup task is running
+	synchronized Item getStoreFolder(final String name, final boolean create) throws CloudsyncException
+	{
+		Item parentItem = root;
+		for (final String folderName : new String[] { STORE_NAME, name })
+		{
+			Item folder = parentItem.getChildByName(folderName);
+			if (folder == null)
+			{
+				if (!create) return null;
+
+				final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+				folder = Item.fromLocalData(folderName, ItemType.FOLDER, 0L, now, now, now, new HashMap<String, String[]>());
+				folder.setParent(parentItem);
+				journal.pending(folder);
+				try
+				{
+					remoteConnection.upload(this, folder);
+				}
+				catch (FileIOException e)
+				{
+					throw new CloudsyncException("Can't create folder '" + folder.getPath() + "'", e);
+				}
+				journal.put(folder);
+				parentItem.addChild(folder);
+			}
+			else if (!folder.isType(ItemType.FOLDER))
+			{
+				throw new CloudsyncException("'" + folder.getPath() + "' is not a folder");
+			}
+			parentItem = folder;
+		}
+		return parentItem;
+	}
+
 	public LocalStreamData getLocalProcessedBinary(final Item item) throws FileIOException
 	{
-		LocalStreamData data = localConnection.getFileBinary(item);
+		// the files of a pack are already encrypted
+		LocalStreamData data = packStore.getPack(item);
+		if (data != null) return data;
+
+		data = chunkStore.getData(item);
+		if (data == null) data = deltaStore.getData(item);
+		if (data == null) data = packStore.getIndex(item);
+		if (data == null) data = localConnection.getFileBinary(item);
 
 		if (data != null && crypt != null ) data = crypt.encryptedBinary(item.getName(), data, item);
 
 		return data;
 	}
 
+	public void createLocalChecksum(final Item item) throws FileIOException
+	{
+		localConnection.createFileChecksum(item);
+	}
+
 	public String getLocalProcessedMetadata(final Item item) throws FileIOException
 	{
 		String metadata = item.getMetadata(this);
@@ -718,8 +1370,25 @@ private final ExistingType existingFlag;
 
 	public RemoteStreamData getRemoteProcessedBinary(Item item) throws CloudsyncException
 	{
-		InputStream stream = remoteConnection.get(this, item);
-		
+		if (ChunkStore.isChunked(item)) return new RemoteStreamData(null, chunkStore.read(item));
+		if (DeltaStore.hasPatches(item)) return new RemoteStreamData(null, deltaStore.read(item));
+		if (PackStore.isPacked(item)) return packStore.read(item);
+
+		return getRemoteObject(item);
+	}
+
+	RemoteStreamData getRemoteObject(Item item) throws CloudsyncException
+	{
+		return getRemoteStreamData(remoteConnection.get(this, item));
+	}
+
+	RemoteStreamData getRemoteObject(Item item, long offset, long length) throws CloudsyncException
+	{
+		return getRemoteStreamData(remoteConnection.get(this, item, offset, length));
+	}
+
+	private RemoteStreamData getRemoteStreamData(InputStream stream) throws CloudsyncException
+	{
 		if( crypt != null )
 		{
 			try
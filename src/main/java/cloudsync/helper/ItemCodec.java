@@ -0,0 +1,142 @@
+package cloudsync.helper;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import cloudsync.model.ChecksumType;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+
+/**
+ * Binary encoding of an item, shared by the structure cache and its journal.
+ *
+ * <pre>
+ * item      flags, type, [name], remote identifier, checksum, filesize, creation,
+ *           modify, access, attribute count, attribute*, [storage], [block checksums],
+ *           [checksum type]
+ * </pre>
+ *
+ * Strings are stored as length and utf-8 bytes, 'null' has the length -1. The
+ * journal doesn't store the name, because it is the last element of the path
+ * of its record.
+ */
+final class ItemCodec
+{
+	final static int				NULL_STRING				= -1;
+	final static long				NULL_VALUE				= Long.MIN_VALUE;
+
+	final static int				FLAG_METADATA_UPGRADE	= 1;
+	final static int				FLAG_STORAGE			= 2;
+	final static int				FLAG_BLOCK_CHECKSUMS	= 4;
+	final static int				FLAG_CHECKSUM_TYPE		= 8;
+
+	private final static Charset	UTF8					= Charset.forName("UTF-8");
+
+	private ItemCodec()
+	{
+	}
+
+	public static void write(final DataOutputStream out, final Item item, final boolean withName) throws IOException
+	{
+		out.writeByte((item.isMetadataFormatChanged() ? FLAG_METADATA_UPGRADE : 0) | (item.getStorage() != null ? FLAG_STORAGE : 0)
+				| (item.getBlockChecksums() != null ? FLAG_BLOCK_CHECKSUMS : 0) | (item.getChecksumType() != ChecksumType.MD5 ? FLAG_CHECKSUM_TYPE : 0));
+		out.writeByte(item.getType().getValue());
+		if (withName) writeString(out, item.getName());
+		writeString(out, item.getRemoteIdentifier());
+		writeString(out, item.getChecksum());
+		out.writeLong(toValue(item.getFilesize()));
+		out.writeLong(toValue(item.getCreationTimeSeconds()));
+		out.writeLong(toValue(item.getModifyTimeSeconds()));
+		out.writeLong(toValue(item.getAccessTimeSeconds()));
+
+		final String[] attributes = item.getAttributeArray();
+		if (attributes == null)
+		{
+			out.writeShort(NULL_STRING);
+		}
+		else
+		{
+			out.writeShort(attributes.length);
+			for (final String attribute : attributes)
+			{
+				writeString(out, attribute);
+			}
+		}
+		if (item.getStorage() != null)
+		{
+			writeString(out, item.getStorage());
+		}
+		if (item.getBlockChecksums() != null)
+		{
+			writeString(out, item.getBlockChecksums());
+		}
+		if (item.getChecksumType() != ChecksumType.MD5)
+		{
+			writeString(out, item.getChecksumType().getName());
+		}
+	}
+
+	/**
+	 * Reads an item written by 'write'. 'name' is 'null' if the item was
+	 * written with its name.
+	 */
+	public static Item read(final ByteBuffer buffer, final String name)
+	{
+		final int flags = buffer.get();
+		final ItemType type = ItemType.fromValue(buffer.get());
+		final String itemName = name == null ? readString(buffer) : name;
+		final String remoteIdentifier = readString(buffer);
+		final String checksum = readString(buffer);
+		final Long filesize = fromValue(buffer.getLong());
+		final Long creationtime = fromValue(buffer.getLong());
+		final Long modifytime = fromValue(buffer.getLong());
+		final Long accesstime = fromValue(buffer.getLong());
+
+		final int attributeCount = buffer.getShort();
+		final String[] attributes = attributeCount == NULL_STRING ? null : new String[attributeCount];
+		for (int i = 0; i < attributeCount; i++)
+		{
+			attributes[i] = readString(buffer);
+		}
+		final String storage = (flags & FLAG_STORAGE) != 0 ? readString(buffer) : null;
+		final String blockChecksums = (flags & FLAG_BLOCK_CHECKSUMS) != 0 ? readString(buffer) : null;
+		final ChecksumType checksumType = (flags & FLAG_CHECKSUM_TYPE) != 0 ? ChecksumType.fromStringIgnoreCase(readString(buffer)) : ChecksumType.MD5;
+
+		return Item.fromCache(itemName, remoteIdentifier, type, filesize, creationtime, modifytime, accesstime, checksumType, checksum, attributes, storage,
+				blockChecksums, (flags & FLAG_METADATA_UPGRADE) != 0);
+	}
+
+	public static void writeString(final DataOutputStream out, final String string) throws IOException
+	{
+		if (string == null)
+		{
+			out.writeInt(NULL_STRING);
+			return;
+		}
+		final byte[] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(final ByteBuffer buffer)
+	{
+		final int length = buffer.getInt();
+		if (length == NULL_STRING) return null;
+
+		final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+		buffer.position(buffer.position() + length);
+		return string;
+	}
+
+	public static long toValue(final Long value)
+	{
+		return value == null ? NULL_VALUE : value;
+	}
+
+	public static Long fromValue(final long value)
+	{
+		return value == NULL_VALUE ? null : value;
+	}
+}
@@ -0,0 +1,740 @@
+package cloudsync.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import cloudsync.connector.LocalFilesystemConnector;
+import cloudsync.connector.RemoteConnector;
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.exceptions.FileIOException;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+import cloudsync.model.LocalStreamData;
+import cloudsync.model.RemoteItem;
+import cloudsync.model.RemoteStreamData;
+
+/**
+ * Packs the smaller files of a folder into pack objects.
+ *
+ * Every file is encrypted on its own and appended to the open pack of its
+ * folder, so a single file is restored with a ranged download of the pack. A
+ * packed file has no remote object. The metadata of all files of a pack is
+ * stored in an index object next to the pack, which is read during a rebuild
+ * of the structure cache.
+ *
+ * <pre>
+ * storage   pack|pack name|offset|length
+ * pack      [encrypted file data]*
+ * index     header, [folder name]*, [name, metadata]*
+ * </pre>
+ *
+ * Changes of packed files are written to the index at the end of a backup. A
+ * pack is repacked if more than half of its data is no longer used. The
+ * storage of the index item keeps the file count and the folder of the pack,
+ * so the files of a pack are only looked up once the pack is changed.
+ *
+ * <pre>
+ * index storage   index|file count|folder path
+ * </pre>
+ */
+class PackStore
+{
+	private final static Logger					LOGGER			= Logger.getLogger(PackStore.class.getName());
+
+	private final static String					STORAGE			= "pack";
+	private final static String					INDEX_STORAGE	= "index";
+	private final static String					FOLDER_NAME		= "packs";
+	private final static String					INDEX_SUFFIX	= ".index";
+	private final static String					HEADER			= "cloudsync-pack 1";
+	private final static String					SEPARATOR		= "|";
+	private final static Charset				UTF8			= Charset.forName("UTF-8");
+
+	// files up to this size are packed
+	final static long							MAX_FILE_SIZE	= 64 * 1024;
+
+	// the oldest open pack is stored if more data is buffered
+	private final static int					MAX_OPEN_PACKS	= 4;
+
+	private final Handler						handler;
+	private final RemoteConnector				remoteConnection;
+	private final LocalFilesystemConnector		localConnection;
+	private final StructureJournal				journal;
+	private final Crypt							crypt;
+	private final long							packSize;
+
+	// all known packs by name and the open packs by folder
+	private final Map<String, Pack>				packs			= new HashMap<>();
+	private final Map<Item, Pack>				open			= new LinkedHashMap<>();
+	private long								buffered;
+
+	// packs and indexes which are uploaded right now
+	private final Map<Item, byte[]>				packUploads		= new ConcurrentHashMap<>();
+	private final Map<Item, byte[]>				indexUploads	= new ConcurrentHashMap<>();
+	private Item								folder;
+
+	// folders whose packed files are counted again by 'open'
+	private final Set<Item>						recounts		= new HashSet<>();
+
+	private static class Pack
+	{
+		private final String				name;
+		private Item						parent;
+
+		// file count and folder path of the index. the files are looked up on demand
+		private int							count	= -1;
+		private String						path;
+		private Set<Item>					members;
+
+		// changed and removed files. they are journaled after the index is written
+		private final Set<Item>				puts	= new HashSet<>();
+		private final Set<Item>				removes	= new HashSet<>();
+		private ByteArrayOutputStream		data;
+		private boolean						dirty;
+
+		public Pack(final String name)
+		{
+			this.name = name;
+		}
+	}
+
+	public PackStore(final Handler handler, final RemoteConnector remoteConnection, final LocalFilesystemConnector localConnection,
+			final StructureJournal journal, final Crypt crypt, final long packSize)
+	{
+		this.handler = handler;
+		this.remoteConnection = remoteConnection;
+		this.localConnection = localConnection;
+		this.journal = journal;
+		this.crypt = crypt;
+		this.packSize = packSize;
+	}
+
+	public static boolean isPacked(final Item item)
+	{
+		return isPacked(item.getStorage());
+	}
+
+	public static boolean isPacked(final String storage)
+	{
+		return storage != null && storage.startsWith(STORAGE + SEPARATOR);
+	}
+
+	/**
+	 * Reads the packs from their index items. Must be called before the backup
+	 * tasks are started, because the pack folder is created below the root
+	 * folder. Packs without an index and packs with an outdated index, e.g.
+	 * after an interrupted backup, are cleaned up by 'flush'.
+	 */
+	public void open() throws CloudsyncException
+	{
+		folder = handler.getStoreFolder(FOLDER_NAME, packSize > 0);
+		if (folder == null) return;
+
+		for (final Item child : folder.getChildren())
+		{
+			if (!child.getName().endsWith(INDEX_SUFFIX)) continue;
+
+			final Pack pack = getPack(StringUtils.removeEnd(child.getName(), INDEX_SUFFIX));
+			pack.count = getIndexCount(child);
+			pack.path = getIndexPath(child);
+			if (pack.path == null) pack.path = readIndex(child).get(1);
+		}
+
+		for (final Item parent : recounts)
+		{
+			recount(parent);
+		}
+		recounts.clear();
+
+		for (final Item child : folder.getChildren())
+		{
+			final Pack pack = getPack(StringUtils.removeEnd(child.getName(), INDEX_SUFFIX));
+			if (pack.path == null && pack.members == null)
+			{
+				// the files of a pack are journaled after its index was written
+				pack.members = new HashSet<>();
+				pack.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Marks a folder which was reloaded after incomplete changes. Its packed
+	 * files are counted again by 'open'.
+	 */
+	public void reloaded(final Item parent)
+	{
+		recounts.add(parent);
+	}
+
+	/**
+	 * Appends the encrypted data of a smaller file to the open pack of its
+	 * folder. 'previousStorage' is the storage of the already uploaded data or
+	 * 'null' for a new file. The file is journaled after the pack is stored.
+	 *
+	 * @return false, if the file must be uploaded as a remote object
+	 */
+	public boolean add(final Item item, final String previousStorage) throws CloudsyncException, FileIOException
+	{
+		if (packSize == 0 || folder == null || !item.isType(ItemType.FILE) || item.getFilesize() == null || item.getFilesize() > MAX_FILE_SIZE)
+		{
+			return false;
+		}
+
+		final byte[] bytes = readData(item);
+
+		Pack full = null;
+		synchronized (this)
+		{
+			release(item, previousStorage, false);
+
+			Pack pack = open.get(item.getParent());
+			if (pack == null)
+			{
+				pack = createPack(item.getParent());
+				open.put(item.getParent(), pack);
+			}
+
+			item.setStorage(STORAGE + SEPARATOR + pack.name + SEPARATOR + pack.data.size() + SEPARATOR + bytes.length);
+			pack.data.write(bytes, 0, bytes.length);
+			pack.members.add(item);
+			pack.puts.add(item);
+			buffered += bytes.length;
+
+			if (pack.data.size() >= packSize) full = close(pack);
+			else if (buffered > packSize * MAX_OPEN_PACKS) full = close(open.values().iterator().next());
+		}
+
+		if (full != null) store(full);
+		return true;
+	}
+
+	// the changed metadata of a packed file is written to the index
+	public synchronized void touch(final Item item)
+	{
+		final Pack pack = packs.get(getPackName(item.getStorage()));
+		if (pack == null) return;
+
+		getMembers(pack, item.getParent());
+		pack.puts.add(item);
+		pack.dirty = true;
+	}
+
+	/**
+	 * Marks the data of a removed or no longer packed file as unused. The
+	 * packed files of a removed folder are removed with their folder, so they
+	 * don't need a journal record.
+	 */
+	public synchronized void remove(final Item item, final boolean journaled)
+	{
+		if (item.isType(ItemType.FOLDER))
+		{
+			for (final Item child : item.getChildren())
+			{
+				remove(child, false);
+			}
+			return;
+		}
+
+		release(item, item.getStorage(), journaled);
+	}
+
+	public LocalStreamData getPack(final Item item)
+	{
+		final byte[] bytes = packUploads.get(item);
+		return bytes != null ? new LocalStreamData(new ByteArrayInputStream(bytes), bytes.length) : null;
+	}
+
+	public LocalStreamData getIndex(final Item item)
+	{
+		final byte[] bytes = indexUploads.get(item);
+		return bytes != null ? new LocalStreamData(new ByteArrayInputStream(bytes), bytes.length) : null;
+	}
+
+	public RemoteStreamData read(final Item item) throws CloudsyncException
+	{
+		final String[] parts = StringUtils.splitPreserveAllTokens(item.getStorage(), SEPARATOR);
+
+		final Item packFolder = handler.getStoreFolder(FOLDER_NAME, false);
+		final Item packItem = packFolder != null ? packFolder.getChildByName(parts[1]) : null;
+		if (packItem == null)
+		{
+			throw new CloudsyncException("Missing pack '" + parts[1] + "' of " + item.getTypeName() + " '" + item.getPath() + "'");
+		}
+
+		return handler.getRemoteObject(packItem, Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+	}
+
+	/**
+	 * Stores all open packs and writes the changes of packed files to their
+	 * index. Unused packs are removed and packs with too much unused data are
+	 * repacked.
+	 */
+	public void flush() throws CloudsyncException
+	{
+		final List<Pack> full;
+		synchronized (this)
+		{
+			full = new ArrayList<>(open.values());
+			open.clear();
+			buffered = 0;
+		}
+		for (final Pack pack : full)
+		{
+			store(pack);
+		}
+
+		for (final Pack pack : new ArrayList<>(packs.values()))
+		{
+			if (!pack.dirty) continue;
+
+			if (getMembers(pack, null).isEmpty())
+			{
+				journal(pack);
+				removePack(pack);
+				continue;
+			}
+
+			final Item packItem = folder.getChildByName(pack.name);
+			long used = 0;
+			for (final Item member : pack.members)
+			{
+				used += getLength(member.getStorage());
+			}
+			if (packItem != null && packItem.getFilesize() != null && packItem.getFilesize() - used > used)
+			{
+				LOGGER.log(Level.FINE, "repack '" + pack.name + "'. " + used + " of " + packItem.getFilesize() + " bytes are used");
+				repack(pack, packItem);
+			}
+			else
+			{
+				writeIndex(pack);
+				journal(pack);
+				pack.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Adds the packed files of all indexes to the structure. A remote object
+	 * of the same name and newer packs take precedence.
+	 */
+	public void load() throws CloudsyncException
+	{
+		final Item packFolder = handler.getStoreFolder(FOLDER_NAME, false);
+		if (packFolder == null) return;
+
+		final List<String> names = new ArrayList<>();
+		for (final Item child : packFolder.getChildren())
+		{
+			if (child.getName().endsWith(INDEX_SUFFIX)) names.add(child.getName());
+		}
+		// the names start with their creation time
+		Collections.sort(names);
+
+		int count = 0;
+		for (final String name : names)
+		{
+			final List<String> lines = readIndex(packFolder.getChildByName(name));
+			final Item parent = getFolder(handler.getRootItem(), lines.get(1));
+			if (parent == null)
+			{
+				LOGGER.log(Level.WARNING, "Skip pack index '" + name + "'. Missing folder of the packed files.");
+				continue;
+			}
+
+			for (int i = 2; i < lines.size(); i++)
+			{
+				final String line = lines.get(i);
+				if (line.isEmpty()) continue;
+
+				final RemoteItem item = handler.initRemoteItem(null, false, decode(StringUtils.substringBefore(line, " ")),
+						decode(StringUtils.substringAfter(line, " ")), null, null);
+				if (item.getChecksum() == null || !isPacked(item)) continue;
+
+				final Item existingItem = parent.getChildByName(item.getName());
+				if (existingItem != null && !isPacked(existingItem)) continue;
+
+				item.setParent(parent);
+				parent.addChild(item);
+				count++;
+			}
+			// newer packs replace files of older packs
+			recounts.add(parent);
+		}
+
+		if (count > 0) LOGGER.log(Level.INFO, "read " + count + " packed files from " + names.size() + " packs");
+	}
+
+	private byte[] readData(final Item item) throws FileIOException
+	{
+		LocalStreamData data = localConnection.getFileBinary(item);
+		if (crypt != null) data = crypt.encryptedBinary(item.getName(), data, item);
+
+		try (InputStream stream = data.getStream())
+		{
+			return IOUtils.toByteArray(stream);
+		}
+		catch (IOException e)
+		{
+			throw new FileIOException("Can't read data of '" + item.getPath() + "'", e);
+		}
+	}
+
+	private List<String> readIndex(final Item indexItem) throws CloudsyncException
+	{
+		final List<String> lines;
+		final RemoteStreamData data = handler.getRemoteObject(indexItem);
+		try
+		{
+			lines = IOUtils.readLines(data.getDecryptedStream(), UTF8);
+		}
+		catch (IOException e)
+		{
+			throw new CloudsyncException("Can't read pack index '" + indexItem.getName() + "'", e);
+		}
+		finally
+		{
+			data.close();
+		}
+
+		if (lines.size() < 2 || !HEADER.equals(lines.get(0)))
+		{
+			throw new CloudsyncException("Unsupported pack index '" + indexItem.getName() + "'");
+		}
+		return lines;
+	}
+
+	// looks up the packed files of a pack in its folder. 'parent' is 'null' if
+	// the folder is taken from the index
+	private Set<Item> getMembers(final Pack pack, final Item parent)
+	{
+		if (pack.members != null) return pack.members;
+
+		pack.members = new HashSet<>();
+		pack.parent = parent != null ? parent : pack.path != null ? getFolder(handler.getRootItem(), pack.path) : null;
+		if (pack.parent == null) return pack.members;
+
+		for (final Item child : pack.parent.getChildren())
+		{
+			if (pack.name.equals(getPackName(child.getStorage()))) pack.members.add(child);
+		}
+		// the members must stay the items of the structure
+		pack.parent.pin();
+		return pack.members;
+	}
+
+	// compares the packed files of a folder with the file count of their indexes
+	private void recount(final Item parent)
+	{
+		final String path = getPath(parent);
+		final Map<String, Set<Item>> found = new HashMap<>();
+		for (final Item child : parent.getChildren())
+		{
+			final String name = getPackName(child.getStorage());
+			if (name == null) continue;
+
+			Set<Item> members = found.get(name);
+			if (members == null)
+			{
+				members = new HashSet<>();
+				found.put(name, members);
+			}
+			members.add(child);
+		}
+
+		for (final Pack pack : new ArrayList<>(packs.values()))
+		{
+			if (pack.members != null || !(found.containsKey(pack.name) || path.equals(pack.path))) continue;
+
+			final Set<Item> members = found.containsKey(pack.name) ? found.get(pack.name) : new HashSet<Item>();
+			if (pack.count != members.size() || !path.equals(pack.path))
+			{
+				pack.members = members;
+				pack.parent = parent;
+				pack.dirty = true;
+				parent.pin();
+			}
+		}
+	}
+
+	private Pack getPack(final String name)
+	{
+		Pack pack = packs.get(name);
+		if (pack == null)
+		{
+			pack = new Pack(name);
+			packs.put(name, pack);
+		}
+		return pack;
+	}
+
+	private Pack createPack(final Item parent)
+	{
+		final String name = String.format("%012x", System.currentTimeMillis()) + UUID.randomUUID().toString().substring(0, 8);
+		final Pack pack = getPack(name);
+		pack.parent = parent;
+		pack.members = new HashSet<>();
+		pack.data = new ByteArrayOutputStream();
+		return pack;
+	}
+
+	private Pack close(final Pack pack)
+	{
+		open.remove(pack.parent);
+		buffered -= pack.data.size();
+		return pack;
+	}
+
+	private void release(final Item item, final String storage, final boolean journaled)
+	{
+		final Pack pack = packs.get(getPackName(storage));
+		if (pack == null) return;
+
+		getMembers(pack, item.getParent()).remove(item);
+		pack.puts.remove(item);
+		if (journaled) pack.removes.add(item);
+		pack.dirty = true;
+	}
+
+	// uploads a new pack and its index and journals its files
+	private void store(final Pack pack) throws CloudsyncException
+	{
+		final byte[] bytes = pack.data.toByteArray();
+		pack.data = null;
+
+		final Item packItem = createItem(pack.name, bytes);
+		packUploads.put(packItem, bytes);
+		try
+		{
+			journal.pending(packItem);
+			remoteConnection.upload(handler, packItem);
+			journal.put(packItem);
+		}
+		catch (FileIOException e)
+		{
+			throw new CloudsyncException("Can't upload pack '" + pack.name + "'", e);
+		}
+		finally
+		{
+			packUploads.remove(packItem);
+		}
+		synchronized (this)
+		{
+			folder.addChild(packItem);
+		}
+
+		writeIndex(pack);
+		journal(pack);
+	}
+
+	private void repack(final Pack pack, final Item packItem) throws CloudsyncException
+	{
+		final byte[] bytes;
+		final InputStream stream = remoteConnection.get(handler, packItem);
+		try
+		{
+			bytes = IOUtils.toByteArray(stream);
+		}
+		catch (IOException e)
+		{
+			throw new CloudsyncException("Can't read pack '" + pack.name + "'", e);
+		}
+		finally
+		{
+			IOUtils.closeQuietly(stream);
+		}
+
+		// the files are already encrypted. so their data is only moved
+		final Pack newPack = createPack(pack.parent);
+		for (final Item member : pack.members)
+		{
+			final String[] parts = StringUtils.splitPreserveAllTokens(member.getStorage(), SEPARATOR);
+			final int offset = Integer.parseInt(parts[2]);
+			final int length = Integer.parseInt(parts[3]);
+			member.setStorage(STORAGE + SEPARATOR + newPack.name + SEPARATOR + newPack.data.size() + SEPARATOR + length);
+			newPack.data.write(bytes, offset, length);
+			newPack.members.add(member);
+			newPack.puts.add(member);
+		}
+		pack.members.clear();
+		pack.puts.clear();
+
+		store(newPack);
+		journal(pack);
+		removePack(pack);
+	}
+
+	private void writeIndex(final Pack pack) throws CloudsyncException
+	{
+		final StringBuilder index = new StringBuilder(HEADER).append('\n');
+		index.append(getPath(pack.parent)).append('\n');
+		try
+		{
+			for (final Item member : pack.members)
+			{
+				index.append(encode(member.getName())).append(' ').append(encode(member.getMetadata(handler))).append('\n');
+			}
+		}
+		catch (FileIOException e)
+		{
+			throw new CloudsyncException("Can't write index of pack '" + pack.name + "'", e);
+		}
+		final byte[] bytes = index.toString().getBytes(UTF8);
+
+		final Item item = createItem(pack.name + INDEX_SUFFIX, bytes);
+		item.setStorage(INDEX_STORAGE + SEPARATOR + pack.members.size() + SEPARATOR + getPath(pack.parent));
+
+		Item indexItem = folder.getChildByName(item.getName());
+		if (indexItem != null)
+		{
+			indexItem.update(item);
+			indexItem.setChecksum(item.getChecksum());
+			indexItem.setStorage(item.getStorage());
+		}
+		else
+		{
+			indexItem = item;
+		}
+
+		indexUploads.put(indexItem, bytes);
+		try
+		{
+			journal.pending(indexItem);
+			if (indexItem == item) remoteConnection.upload(handler, indexItem);
+			else remoteConnection.update(handler, indexItem, true);
+			journal.put(indexItem);
+		}
+		catch (FileIOException e)
+		{
+			throw new CloudsyncException("Can't upload index of pack '" + pack.name + "'", e);
+		}
+		finally
+		{
+			indexUploads.remove(indexItem);
+		}
+		synchronized (this)
+		{
+			folder.addChild(indexItem);
+		}
+	}
+
+	private void journal(final Pack pack) throws CloudsyncException
+	{
+		for (final Item item : pack.puts)
+		{
+			journal.put(item);
+		}
+		for (final Item item : pack.removes)
+		{
+			journal.remove(item);
+		}
+		pack.puts.clear();
+		pack.removes.clear();
+	}
+
+	private void removePack(final Pack pack) throws CloudsyncException
+	{
+		for (final String name : new String[] { pack.name + INDEX_SUFFIX, pack.name })
+		{
+			final Item item = folder.getChildByName(name);
+			if (item == null) continue;
+
+			LOGGER.log(Level.FINE, "  remove pack '" + name + "'");
+			folder.removeChild(item);
+			journal.pending(item);
+			remoteConnection.remove(handler, item);
+			journal.remove(item);
+		}
+		packs.remove(pack.name);
+	}
+
+	private Item createItem(final String name, final byte[] bytes)
+	{
+		final FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		final Item item = Item.fromLocalData(name, ItemType.FILE, (long) bytes.length, now, now, now, new HashMap<String, String[]>());
+		item.setChecksum(DigestUtils.md5Hex(bytes));
+		item.setParent(folder);
+		return item;
+	}
+
+	// the path is stored as list of encoded names, because the separator
+	// depends on the platform
+	private static String getPath(final Item folder)
+	{
+		final List<String> names = new ArrayList<>();
+		for (Item current = folder; current.getParent() != null; current = current.getParent())
+		{
+			names.add(encode(current.getName()));
+		}
+		Collections.reverse(names);
+		return StringUtils.join(names, ' ');
+	}
+
+	private static Item getFolder(final Item root, final String path)
+	{
+		Item item = root;
+		for (final String name : StringUtils.split(path, ' '))
+		{
+			item = item.getChildByName(decode(name));
+			if (item == null || !item.isType(ItemType.FOLDER)) return null;
+		}
+		return item;
+	}
+
+	private static String getPackName(final String storage)
+	{
+		return isPacked(storage) ? StringUtils.splitPreserveAllTokens(storage, SEPARATOR)[1] : null;
+	}
+
+	private static long getLength(final String storage)
+	{
+		return Long.parseLong(StringUtils.splitPreserveAllTokens(storage, SEPARATOR)[3]);
+	}
+
+	private static int getIndexCount(final Item indexItem)
+	{
+		final String storage = indexItem.getStorage();
+		if (storage == null || !storage.startsWith(INDEX_STORAGE + SEPARATOR)) return -1;
+		return Integer.parseInt(StringUtils.splitPreserveAllTokens(storage, SEPARATOR)[1]);
+	}
+
+	// 'null' for an index without the folder path
+	private static String getIndexPath(final Item indexItem)
+	{
+		final String storage = indexItem.getStorage();
+		if (storage == null || !storage.startsWith(INDEX_STORAGE + SEPARATOR)) return null;
+		final String[] parts = StringUtils.splitPreserveAllTokens(storage, SEPARATOR);
+		return parts.length > 2 ? parts[2] : null;
+	}
+
+	private static String encode(final String value)
+	{
+		return Base64.encodeBase64String(value.getBytes(UTF8));
+	}
+
+	private static String decode(final String value)
+	{
+		return new String(Base64.decodeBase64(value), UTF8);
+	}
+}
@@ -0,0 +1,229 @@
+package cloudsync.helper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import cloudsync.model.Item;
+
+/**
+ * Include and exclude patterns, compiled once for all paths. A path is
+ * selected if it matches one of the include patterns and none of the exclude
+ * patterns. Like before, every pattern has to match the whole path.
+ *
+ * The literal prefix and suffix of a pattern are compared before its regex is
+ * run, so most patterns reject a path without the regex. Patterns without any
+ * regex syntax are looked up in a set.
+ */
+public class PathMatcher
+{
+	private final static String	ANY			= ".*";
+	private final static String	META		= "\\.[](){}*+?^$|";
+	private final static String	QUANTIFIERS	= "*?{";
+
+	private final Rules			includes;
+	private final Rules			excludes;
+
+	/**
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if a pattern is not a valid regex
+	 */
+	public PathMatcher(final String[] includePatterns, final String[] excludePatterns)
+	{
+		includes = includePatterns != null ? new Rules(includePatterns) : null;
+		excludes = excludePatterns != null ? new Rules(excludePatterns) : null;
+	}
+
+	public boolean matches(final String path)
+	{
+		if (includes != null && !includes.matches(path)) return false;
+
+		return excludes == null || !excludes.matches(path);
+	}
+
+	/**
+	 * Returns false if no path below 'folderPath' can be selected, e.g. because
+	 * of an exclude pattern like 'folder/.*'. Such a folder doesn't need to be
+	 * read. A path of a single name is below the empty 'folderPath'.
+	 */
+	public boolean matchesBelow(final String folderPath)
+	{
+		if (includes == null && excludes == null) return true;
+
+		final String prefix = folderPath.isEmpty() ? "" : folderPath + Item.SEPARATOR;
+		if (excludes != null && excludes.matchesAllBelow(prefix)) return false;
+
+		return includes == null || includes.matchesAnyBelow(prefix);
+	}
+
+	private static class Rules
+	{
+		private final Set<String>	literals	= new HashSet<>();
+		private final List<Rule>	rules		= new ArrayList<>();
+
+		Rules(final String[] patterns)
+		{
+			for (final String pattern : patterns)
+			{
+				final Rule rule = new Rule(pattern);
+				if (rule.pattern == null) literals.add(rule.prefix);
+				else rules.add(rule);
+			}
+		}
+
+		boolean matches(final String path)
+		{
+			if (!literals.isEmpty() && literals.contains(path)) return true;
+
+			for (final Rule rule : rules)
+			{
+				if (rule.matches(path)) return true;
+			}
+			return false;
+		}
+
+		// a path with a line break doesn't match '.*'. such names are ignored here
+		boolean matchesAllBelow(final String prefix)
+		{
+			for (final Rule rule : rules)
+			{
+				if (rule.isAny && prefix.startsWith(rule.prefix)) return true;
+			}
+			return false;
+		}
+
+		boolean matchesAnyBelow(final String prefix)
+		{
+			for (final String literal : literals)
+			{
+				if (literal.startsWith(prefix)) return true;
+			}
+			for (final Rule rule : rules)
+			{
+				if (rule.prefix.startsWith(prefix) || prefix.startsWith(rule.prefix)) return true;
+			}
+			return false;
+		}
+	}
+
+	private static class Rule
+	{
+		private final String	prefix;
+		private final String	suffix;
+		// 'null' if the pattern is a plain path
+		private final Pattern	pattern;
+		// the pattern is the prefix followed by '.*'
+		private final boolean	isAny;
+
+		Rule(final String regex)
+		{
+			final Pattern compiled = Pattern.compile("^" + regex + "$");
+
+			final StringBuilder literal = new StringBuilder();
+			int index = readLiteral(regex, 0, literal);
+			if (index == regex.length())
+			{
+				prefix = literal.toString();
+				suffix = "";
+				pattern = null;
+				isAny = false;
+				return;
+			}
+			prefix = literal.toString();
+			isAny = regex.substring(index).equals(ANY);
+			suffix = getSuffix(regex, index);
+			pattern = compiled;
+		}
+
+		boolean matches(final String path)
+		{
+			if (path.length() < prefix.length() + suffix.length()) return false;
+			if (!path.startsWith(prefix) || !path.endsWith(suffix)) return false;
+
+			return pattern.matcher(path).matches();
+		}
+
+		// reads literal characters up to the first regex syntax. returns the index of it
+		private static int readLiteral(final String regex, int index, final StringBuilder literal)
+		{
+			while (index < regex.length())
+			{
+				final int start = index;
+				final char c = regex.charAt(index);
+				char value;
+				if (c == '\\')
+				{
+					if (index + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(index + 1))) return index;
+					value = regex.charAt(index + 1);
+					index += 2;
+				}
+				else if (META.indexOf(c) != -1)
+				{
+					return index;
+				}
+				else
+				{
+					value = c;
+					index++;
+				}
+
+				// an optional character is not part of the literal
+				if (index < regex.length() && QUANTIFIERS.indexOf(regex.charAt(index)) != -1) return start;
+
+				literal.append(value);
+			}
+			return index;
+		}
+
+		// reads the literal characters at the end. groups, classes and counted repetitions would need a parser
+		private static String getSuffix(final String regex, final int index)
+		{
+			for (int i = index; i < regex.length(); i++)
+			{
+				final char c = regex.charAt(i);
+				if (c == '\\')
+				{
+					if (++i < regex.length() && regex.charAt(i) == 'Q') return "";
+				}
+				else if ("[](){}|".indexOf(c) != -1)
+				{
+					return "";
+				}
+			}
+
+			final StringBuilder suffix = new StringBuilder();
+			int i = index;
+			while (i < regex.length())
+			{
+				final char c = regex.charAt(i);
+				final char value;
+				final boolean isLiteral;
+				if (c == '\\' && i + 1 < regex.length())
+				{
+					value = regex.charAt(i + 1);
+					isLiteral = !Character.isLetterOrDigit(value);
+					i += 2;
+				}
+				else
+				{
+					value = c;
+					isLiteral = META.indexOf(c) == -1;
+					i++;
+				}
+
+				boolean isQuantified = false;
+				while (i < regex.length() && "*+?".indexOf(regex.charAt(i)) != -1)
+				{
+					isQuantified = true;
+					i++;
+				}
+
+				if (isLiteral && !isQuantified) suffix.append(value);
+				else suffix.setLength(0);
+			}
+			return suffix.toString();
+		}
+	}
+}
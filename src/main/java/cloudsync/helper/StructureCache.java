@@ -0,0 +1,360 @@
+package cloudsync.helper;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+import cloudsync.model.ChecksumType;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+
+/**
+ * Binary structure cache.
+ *
+ * <pre>
+ * header    magic, format version
+ * blocks    [count, [entry]*]*
+ * trailer   root block offset, root block length
+ * entry     item, [children block offset, children block length]
+ * </pre>
+ *
+ * The children of every folder are stored in a block of their own. Blocks are
+ * written in postorder, so the block of a folder is written before the item of
+ * the folder. The items are encoded with their name by {@link ItemCodec}.
+ *
+ * An opened cache keeps the file open and loads the children of a folder on
+ * the first access. Such a folder can be unloaded again as long as it is
+ * unchanged. Version 1 files with a string table and a parent index per item
+ * are still read, but only completely.
+ */
+public class StructureCache implements Closeable
+{
+	private final static byte[]		MAGIC					= { 'C', 'S', 'Y', 'N', 'C', 'B', 'I', 'N' };
+	private final static int		VERSION					= 2;
+	private final static int		VERSION_STRING_TABLE	= 1;
+
+	private final static int		NO_PARENT				= -1;
+
+	private final static Charset	UTF8					= Charset.forName("UTF-8");
+	private final static int		BUFFER_SIZE				= 1 << 16;
+	private final static int		TRAILER_SIZE			= 12;
+
+	private final Path				path;
+	private FileChannel				channel;
+	private boolean					closed;
+
+	private StructureCache(final Path path)
+	{
+		this.path = path;
+	}
+
+	public static boolean isBinary(final Path path) throws IOException
+	{
+		final byte[] magic = new byte[MAGIC.length];
+		try (InputStream in = Files.newInputStream(path))
+		{
+			int read = 0;
+			while (read < magic.length)
+			{
+				final int len = in.read(magic, read, magic.length - read);
+				if (len == -1) return false;
+				read += len;
+			}
+		}
+		return Arrays.equals(magic, MAGIC);
+	}
+
+	/**
+	 * Reads the cache file into 'root'. With 'lazy' only the children of the
+	 * root folder are read and the returned cache must be kept open until the
+	 * structure is written again. Otherwise the whole structure is read and
+	 * 'null' is returned.
+	 */
+	public static StructureCache read(final Path path, final Item root, final boolean lazy) throws IOException
+	{
+		final StructureCache cache = new StructureCache(path);
+		try
+		{
+			final FileChannel channel = cache.getChannel();
+			final ByteBuffer header = cache.read(0, MAGIC.length + 4);
+
+			final byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) throw new IOException("no structure cache file");
+
+			final int version = header.getInt();
+			if (version == VERSION_STRING_TABLE)
+			{
+				readStringTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), root);
+				cache.close();
+				return null;
+			}
+			if (version != VERSION) throw new IOException("unsupported structure cache version " + version);
+
+			final ByteBuffer trailer = cache.read(channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+			final Block rootBlock = new Block(cache, trailer.getLong(), trailer.getInt());
+			for (final Item child : rootBlock.load(root))
+			{
+				root.addChild(child);
+			}
+			root.unpin();
+
+			if (lazy) return cache;
+
+			readAll(root);
+			cache.close();
+			return null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			cache.close();
+			throw e;
+		}
+	}
+
+	private static void readAll(final Item folder)
+	{
+		for (final Item child : folder.getChildren())
+		{
+			if (!child.isType(ItemType.FOLDER)) continue;
+
+			readAll(child);
+			child.setChildLoader(null);
+		}
+	}
+
+	private static void readStringTable(final ByteBuffer buffer, final Item root) throws IOException
+	{
+		try
+		{
+			buffer.position(MAGIC.length + 4);
+
+			final String[] strings = new String[buffer.getInt()];
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < strings.length; i++)
+			{
+				final int length = buffer.getInt();
+				if (length > bytes.length) bytes = new byte[length];
+				buffer.get(bytes, 0, length);
+				strings[i] = new String(bytes, 0, length, UTF8);
+			}
+
+			final Item[] items = new Item[buffer.getInt()];
+			for (int i = 0; i < items.length; i++)
+			{
+				final int parentIndex = buffer.getInt();
+				final int flags = buffer.get();
+				final ItemType type = ItemType.fromValue(buffer.get());
+				final String name = getString(strings, buffer.getInt());
+				final String remoteIdentifier = getString(strings, buffer.getInt());
+				final String checksum = getString(strings, buffer.getInt());
+				final Long filesize = ItemCodec.fromValue(buffer.getLong());
+				final Long creationtime = ItemCodec.fromValue(buffer.getLong());
+				final Long modifytime = ItemCodec.fromValue(buffer.getLong());
+				final Long accesstime = ItemCodec.fromValue(buffer.getLong());
+
+				final int attributeCount = buffer.getShort();
+				final String[] attributes = attributeCount == ItemCodec.NULL_STRING ? null : new String[attributeCount];
+				for (int j = 0; j < attributeCount; j++)
+				{
+					attributes[j] = strings[buffer.getInt()];
+				}
+				final String storage = (flags & ItemCodec.FLAG_STORAGE) != 0 ? strings[buffer.getInt()] : null;
+				final String blockChecksums = (flags & ItemCodec.FLAG_BLOCK_CHECKSUMS) != 0 ? strings[buffer.getInt()] : null;
+				final ChecksumType checksumType = (flags & ItemCodec.FLAG_CHECKSUM_TYPE) != 0 ? ChecksumType.fromStringIgnoreCase(strings[buffer.getInt()])
+						: ChecksumType.MD5;
+
+				final Item item = Item.fromCache(name, remoteIdentifier, type, filesize, creationtime, modifytime, accesstime, checksumType, checksum,
+						attributes, storage, blockChecksums, (flags & ItemCodec.FLAG_METADATA_UPGRADE) != 0);
+
+				final Item parent = parentIndex == NO_PARENT ? root : items[parentIndex];
+				item.setParent(parent);
+				parent.addChild(item);
+				items[i] = item;
+			}
+		}
+		catch (BufferUnderflowException | ArrayIndexOutOfBoundsException | NullPointerException e)
+		{
+			throw new IOException("corrupt structure cache file", e);
+		}
+	}
+
+	private List<Item> readBlock(final Item folder, final long offset, final int length) throws IOException
+	{
+		final ByteBuffer buffer = read(offset, length);
+		try
+		{
+			final int count = buffer.getInt();
+			final List<Item> items = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+			{
+				final Item item = ItemCodec.read(buffer, null);
+				if (item.isType(ItemType.FOLDER))
+				{
+					item.setChildLoader(new Block(this, buffer.getLong(), buffer.getInt()));
+					item.unloadChildren();
+				}
+				item.setParent(folder);
+				items.add(item);
+			}
+			return items;
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NullPointerException e)
+		{
+			throw new IOException("corrupt structure cache file", e);
+		}
+	}
+
+	private ByteBuffer read(final long offset, final int length) throws IOException
+	{
+		final FileChannel channel = getChannel();
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, offset + buffer.position()) == -1) throw new IOException("corrupt structure cache file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	// opened on the first read, because a written cache is moved to its path
+	// afterwards. a closed cache is never opened again, because its path may
+	// already belong to a newer cache
+	private synchronized FileChannel getChannel() throws IOException
+	{
+		if (closed) throw new IOException("structure cache '" + path.toString() + "' is closed");
+		if (channel == null) channel = FileChannel.open(path, StandardOpenOption.READ);
+		return channel;
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		if (channel != null) channel.close();
+		channel = null;
+	}
+
+	/**
+	 * Writes the structure of 'root'. Unloaded folders are read from
+	 * 'previous', the open cache of 'path' or 'null'. All folders are read
+	 * while they are written, so 'previous' is closed before its file is
+	 * replaced. With 'lazy' all folders are switched to the returned cache and
+	 * unloaded after they are written. Otherwise 'null' is returned.
+	 */
+	public static StructureCache write(final Path path, final Item root, final StructureCache previous, final boolean lazy) throws IOException
+	{
+		final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+		final StructureCache cache = new StructureCache(path);
+
+		try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath), BUFFER_SIZE));
+				DataOutputStream out = new DataOutputStream(counter))
+		{
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+
+			final Block rootBlock = writeBlock(out, counter, cache, root, lazy);
+			out.writeLong(rootBlock.offset);
+			out.writeInt(rootBlock.length);
+		}
+		root.unpin();
+
+		if (previous != null) previous.close();
+
+		try
+		{
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		return lazy ? cache : null;
+	}
+
+	private static Block writeBlock(final DataOutputStream out, final CountingOutputStream counter, final StructureCache cache, final Item folder,
+			final boolean lazy) throws IOException
+	{
+		final Item[] children = folder.getChildren().toArray(new Item[0]);
+
+		final Block[] blocks = new Block[children.length];
+		for (int i = 0; i < blocks.length; i++)
+		{
+			if (children[i].isType(ItemType.FOLDER)) blocks[i] = writeBlock(out, counter, cache, children[i], lazy);
+		}
+
+		final long offset = counter.getByteCount();
+		out.writeInt(children.length);
+		for (int i = 0; i < blocks.length; i++)
+		{
+			ItemCodec.write(out, children[i], true);
+			if (blocks[i] != null)
+			{
+				out.writeLong(blocks[i].offset);
+				out.writeInt(blocks[i].length);
+			}
+		}
+		final Block block = new Block(cache, offset, (int) (counter.getByteCount() - offset));
+
+		for (int i = 0; i < blocks.length; i++)
+		{
+			if (blocks[i] == null) continue;
+
+			final Item child = children[i];
+			if (lazy)
+			{
+				child.setChildLoader(blocks[i]);
+				child.unpin();
+				child.unloadChildren();
+			}
+			else
+			{
+				child.setChildLoader(null);
+			}
+		}
+
+		return block;
+	}
+
+	private static class Block implements Item.ChildLoader
+	{
+		private final StructureCache	cache;
+		private final long				offset;
+		private final int				length;
+
+		Block(final StructureCache cache, final long offset, final int length)
+		{
+			this.cache = cache;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public List<Item> load(final Item folder) throws IOException
+		{
+			return cache.readBlock(folder, offset, length);
+		}
+	}
+
+	private static String getString(final String[] strings, final int index)
+	{
+		return index == ItemCodec.NULL_STRING ? null : strings[index];
+	}
+}
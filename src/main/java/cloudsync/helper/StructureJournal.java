@@ -0,0 +1,403 @@
+package cloudsync.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.StringUtils;
+
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+
+/**
+ * Append-only journal on top of the structure cache.
+ *
+ * <pre>
+ * header    magic, format version
+ * records   [length, payload, crc32]*
+ * payload   operation, path count, path*, [item]
+ * </pre>
+ *
+ * The item is encoded without its name by {@link ItemCodec}.
+ *
+ * A 'pending' record is written before a remote item is created or removed, a
+ * 'put' or 'remove' record after the remote operation succeeded. Replaying
+ * the journal on top of the last snapshot restores the structure. Folders
+ * with pending records that were never completed are returned to the caller,
+ * because their remote state is unknown. A torn record at the end of the
+ * journal is discarded.
+ */
+public class StructureJournal
+{
+	private final static Logger		LOGGER					= Logger.getLogger(StructureJournal.class.getName());
+
+	private final static byte[]		MAGIC					= { 'C', 'S', 'Y', 'N', 'C', 'J', 'N', 'L' };
+	private final static int		VERSION					= 1;
+	private final static int		HEADER_SIZE				= MAGIC.length + 4;
+
+	private final static byte		OP_PENDING				= 1;
+	private final static byte		OP_PUT					= 2;
+	private final static byte		OP_REMOVE				= 3;
+
+	// the journal is compacted as soon as it is larger than the snapshot
+	private final static long		MIN_COMPACT_SIZE		= 1 << 20;
+
+	private final Path				path;
+	private FileChannel				channel;
+	private long					size;
+	private boolean					isChanged;
+
+	public StructureJournal(final Path path)
+	{
+		this.path = path;
+	}
+
+	public static Path getPath(final Path cacheFilePath)
+	{
+		return cacheFilePath.resolveSibling(cacheFilePath.getFileName() + ".journal");
+	}
+
+	public synchronized List<Item> replay(final Item root) throws CloudsyncException
+	{
+		final Map<String, String[]> pendings = new LinkedHashMap<>();
+		final Set<Item> folders = new LinkedHashSet<>();
+
+		int count = 0;
+
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+		{
+			try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				readFully(in, header);
+
+				long position = HEADER_SIZE;
+				if (header.hasRemaining())
+				{
+					position = 0;
+				}
+				else
+				{
+					final byte[] magic = new byte[MAGIC.length];
+					header.flip();
+					header.get(magic);
+					if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION)
+					{
+						throw new CloudsyncException("Unsupported journal file '" + path.toString() + "'");
+					}
+
+					final ByteBuffer length = ByteBuffer.allocate(4);
+					final CRC32 crc = new CRC32();
+					while (true)
+					{
+						length.clear();
+						readFully(in, length);
+						if (length.hasRemaining()) break;
+						length.flip();
+
+						final int payloadLength = length.getInt();
+						if (payloadLength <= 0 || position + 8 + payloadLength > in.size()) break;
+
+						final ByteBuffer record = ByteBuffer.allocate(payloadLength + 4);
+						readFully(in, record);
+						record.flip();
+
+						crc.reset();
+						crc.update(record.array(), 0, payloadLength);
+						if ((int) crc.getValue() != record.getInt(payloadLength)) break;
+
+						try
+						{
+							apply(root, ByteBuffer.wrap(record.array(), 0, payloadLength), pendings, folders);
+						}
+						catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NullPointerException e)
+						{
+							throw new IOException("corrupt journal record", e);
+						}
+						position += 8 + payloadLength;
+						count++;
+					}
+				}
+
+				if (position < in.size())
+				{
+					LOGGER.log(Level.WARNING, "discard incomplete journal record");
+					in.truncate(position);
+				}
+				size = position;
+			}
+			catch (final IOException e)
+			{
+				throw new CloudsyncException("Can't read journal file '" + path.toString() + "'", e);
+			}
+		}
+
+		if (count > 0) LOGGER.log(Level.INFO, "replayed " + count + " journal record" + (count == 1 ? "" : "s"));
+
+		for (final String[] names : pendings.values())
+		{
+			folders.add(getClosestItem(root, Arrays.copyOf(names, names.length - 1)));
+		}
+
+		final List<Item> result = new ArrayList<>(folders);
+		// deepest folders first, so an ancestor can keep their refreshed children
+		Collections.sort(result, new Comparator<Item>()
+		{
+			@Override
+			public int compare(final Item o1, final Item o2)
+			{
+				return getDepth(o2) - getDepth(o1);
+			}
+		});
+		return result;
+	}
+
+	public void pending(final Item item) throws CloudsyncException
+	{
+		append(OP_PENDING, item);
+	}
+
+	public void put(final Item item) throws CloudsyncException
+	{
+		append(OP_PUT, item);
+	}
+
+	public void remove(final Item item) throws CloudsyncException
+	{
+		append(OP_REMOVE, item);
+	}
+
+	public synchronized boolean isChanged()
+	{
+		return isChanged;
+	}
+
+	public synchronized boolean isCompactable(final long snapshotSize)
+	{
+		return size > Math.max(MIN_COMPACT_SIZE, snapshotSize);
+	}
+
+	public synchronized void close() throws CloudsyncException
+	{
+		if (channel == null) return;
+
+		try
+		{
+			channel.force(false);
+			channel.close();
+		}
+		catch (final IOException e)
+		{
+			throw new CloudsyncException("Can't write journal file '" + path.toString() + "'", e);
+		}
+		finally
+		{
+			channel = null;
+		}
+	}
+
+	// must only be called after a snapshot of the current structure was written
+	public synchronized void reset() throws CloudsyncException
+	{
+		close();
+
+		try
+		{
+			Files.deleteIfExists(path);
+		}
+		catch (final IOException e)
+		{
+			throw new CloudsyncException("Couldn't remove '" + path.toString() + "'", e);
+		}
+
+		size = 0;
+	}
+
+	private synchronized void append(final byte operation, final Item item) throws CloudsyncException
+	{
+		try
+		{
+			if (channel == null)
+			{
+				channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				if (size == 0)
+				{
+					final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+					header.put(MAGIC);
+					header.putInt(VERSION);
+					header.flip();
+					channel.truncate(0);
+					writeFully(channel, header);
+					size = HEADER_SIZE;
+				}
+				channel.position(size);
+			}
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			final DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(operation);
+
+			final String[] names = getNames(item);
+			out.writeShort(names.length);
+			for (final String name : names)
+			{
+				ItemCodec.writeString(out, name);
+			}
+
+			if (operation == OP_PUT)
+			{
+				ItemCodec.write(out, item, false);
+			}
+			out.flush();
+
+			final CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+
+			final ByteBuffer record = ByteBuffer.allocate(bytes.size() + 8);
+			record.putInt(bytes.size());
+			record.put(bytes.toByteArray());
+			record.putInt((int) crc.getValue());
+			record.flip();
+			writeFully(channel, record);
+
+			size += record.limit();
+			isChanged = true;
+		}
+		catch (final IOException e)
+		{
+			throw new CloudsyncException("Can't write journal file '" + path.toString() + "'", e);
+		}
+	}
+
+	private void apply(final Item root, final ByteBuffer in, final Map<String, String[]> pendings, final Set<Item> folders)
+	{
+		final byte operation = in.get();
+
+		final String[] names = new String[in.getShort()];
+		for (int i = 0; i < names.length; i++)
+		{
+			names[i] = ItemCodec.readString(in);
+		}
+		final String key = StringUtils.join(names, '\0');
+
+		if (operation == OP_PENDING)
+		{
+			pendings.put(key, names);
+			return;
+		}
+
+		pendings.remove(key);
+
+		final String[] parentNames = Arrays.copyOf(names, names.length - 1);
+		final String name = names[names.length - 1];
+		final Item parent = getItem(root, parentNames);
+		if (parent == null)
+		{
+			folders.add(getClosestItem(root, parentNames));
+			return;
+		}
+
+		final Item existingItem = parent.getChildByName(name);
+
+		if (operation == OP_REMOVE)
+		{
+			if (existingItem != null) parent.removeChild(existingItem);
+			return;
+		}
+
+		final Item item = ItemCodec.read(in, name);
+
+		if (existingItem != null && existingItem.isType(ItemType.FOLDER) && item.isType(ItemType.FOLDER))
+		{
+			for (final Item child : existingItem.getChildren())
+			{
+				child.setParent(item);
+				item.addChild(child);
+			}
+		}
+
+		item.setParent(parent);
+		parent.addChild(item);
+	}
+
+	private static String[] getNames(final Item item)
+	{
+		final List<String> names = new ArrayList<>();
+		for (Item current = item; current.getParent() != null; current = current.getParent())
+		{
+			names.add(current.getName());
+		}
+		Collections.reverse(names);
+		return names.toArray(new String[names.size()]);
+	}
+
+	private static Item getItem(final Item root, final String[] names)
+	{
+		Item item = root;
+		for (final String name : names)
+		{
+			if (!item.isType(ItemType.FOLDER)) return null;
+			item = item.getChildByName(name);
+			if (item == null) return null;
+		}
+		return item.isType(ItemType.FOLDER) ? item : null;
+	}
+
+	private static Item getClosestItem(final Item root, final String[] names)
+	{
+		Item item = root;
+		for (final String name : names)
+		{
+			final Item child = item.getChildByName(name);
+			if (child == null || !child.isType(ItemType.FOLDER)) break;
+			item = child;
+		}
+		return item;
+	}
+
+	private static int getDepth(Item item)
+	{
+		int depth = 0;
+		while ((item = item.getParent()) != null)
+		{
+			depth++;
+		}
+		return depth;
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) == -1) return;
+		}
+	}
+
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package cloudsync.helper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cloudsync.exceptions.CloudsyncException;
+
+public class WorkerPool
+{
+	public interface Task
+	{
+		void run() throws CloudsyncException;
+	}
+
+	private final ThreadPoolExecutor	executor;
+	private final Object				lock	= new Object();
+
+	private int							pending;
+	private volatile CloudsyncException	failure;
+
+	public WorkerPool(final String name, final int threads, final int queueSize)
+	{
+		if (threads > 1)
+		{
+			executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+					new WorkerThreadFactory(name), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		else
+		{
+			executor = null;
+		}
+	}
+
+	public boolean isParallel()
+	{
+		return executor != null;
+	}
+
+	// runs the task inline if the pool is single threaded or the queue is full
+	public void submit(final Task task) throws CloudsyncException
+	{
+		checkFailure();
+
+		if (executor == null)
+		{
+			task.run();
+			return;
+		}
+
+		synchronized (lock)
+		{
+			pending++;
+		}
+
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if (failure == null) task.run();
+				}
+				catch (CloudsyncException e)
+				{
+					fail(e);
+				}
+				catch (RuntimeException e)
+				{
+					fail(new CloudsyncException("Unexpected error in worker thread", e));
+				}
+				finally
+				{
+					synchronized (lock)
+					{
+						pending--;
+						lock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	public void await() throws CloudsyncException
+	{
+		synchronized (lock)
+		{
+			while (pending > 0)
+			{
+				try
+				{
+					lock.wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new CloudsyncException("Interrupted while waiting for worker threads", e);
+				}
+			}
+		}
+
+		checkFailure();
+	}
+
+	public int getPending()
+	{
+		synchronized (lock)
+		{
+			return pending;
+		}
+	}
+
+	public void shutdown()
+	{
+		if (executor != null) executor.shutdownNow();
+	}
+
+	private void checkFailure() throws CloudsyncException
+	{
+		if (failure != null) throw failure;
+	}
+
+	private void fail(CloudsyncException e)
+	{
+		synchronized (lock)
+		{
+			if (failure == null) failure = e;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final String		name;
+		private final AtomicInteger	counter	= new AtomicInteger();
+
+		public WorkerThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "cloudsync-" + name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
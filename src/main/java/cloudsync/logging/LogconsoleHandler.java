@@ -13,7 +13,7 @@ public class LogconsoleHandler extends ConsoleHandler
 	final static private SimpleDateFormat	sdf	= new SimpleDateFormat("yyyy.MM.dd HH:mm:ss");
 
 	@Override
-	public void publish(LogRecord record)
+	public synchronized void publish(LogRecord record)
 	{
 		if (record.getParameters() == null)
 		{
@@ -0,0 +1,98 @@
+package cloudsync.model;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Calculates the checksum of the wrapped stream while it is consumed. The
+ * checksum is stored in the item as soon as the end of the stream is reached
+ * or the stream is closed after the expected length was read. The attributes
+ * of the file read before the stream was opened are stored with it.
+ */
+public class ChecksumInputStream extends FilterInputStream
+{
+	private final MessageDigest			digest;
+	private final long					length;
+	private final Item					item;
+	private final ChecksumType			checksumType;
+	private final BasicFileAttributes	attributes;
+	private long						count;
+	private boolean						finished;
+
+	public ChecksumInputStream(final InputStream in, final long length, final Item item, final ChecksumType checksumType,
+			final BasicFileAttributes attributes)
+	{
+		super(in);
+		this.digest = checksumType.getDigest();
+		this.checksumType = checksumType;
+		this.length = length;
+		this.item = item;
+		this.attributes = attributes;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		final int b = super.read();
+		if (b == -1) finish();
+		else
+		{
+			digest.update((byte) b);
+			count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException
+	{
+		final int n = super.read(b, off, len);
+		if (n == -1) finish();
+		else if (n > 0)
+		{
+			digest.update(b, off, n);
+			count += n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException
+	{
+		final byte[] buffer = new byte[(int) Math.min(n, 1 << 16)];
+		long skipped = 0;
+		while (skipped < n)
+		{
+			final int len = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (len == -1) break;
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (count >= length) finish();
+		super.close();
+	}
+
+	private void finish()
+	{
+		if (finished) return;
+		finished = true;
+		item.setChecksum(checksumType, Hex.encodeHexString(digest.digest()));
+		item.setChecksumAttributes(attributes);
+	}
+}
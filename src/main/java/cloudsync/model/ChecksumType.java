@@ -0,0 +1,72 @@
+package cloudsync.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+public enum ChecksumType
+{
+	// sha256 is hardware accelerated by the JVM on cpus with sha extensions
+	MD5("md5", "MD5"), SHA256("sha256", "SHA-256");
+
+	private final String	name;
+	private final String	algorithm;
+
+	ChecksumType(final String name, final String algorithm)
+	{
+		this.name = name;
+		this.algorithm = algorithm;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public MessageDigest getDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public String digestHex(final InputStream data) throws IOException
+	{
+		final MessageDigest digest = getDigest();
+		final byte[] buffer = new byte[1 << 16];
+		int len;
+		while ((len = data.read(buffer)) != -1)
+		{
+			digest.update(buffer, 0, len);
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	public static ChecksumType fromStringIgnoreCase(final String name)
+	{
+		if (name == null)
+		{
+			return null;
+		}
+
+		for (final ChecksumType type : ChecksumType.values())
+		{
+			if (!type.name.equals(name.toLowerCase()))
+			{
+				continue;
+			}
+
+			return type;
+		}
+
+		return null;
+	}
+}
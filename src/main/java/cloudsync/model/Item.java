@@ -1,12 +1,20 @@
 package cloudsync.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import cloudsync.exceptions.FileIOException;
@@ -19,7 +27,7 @@ import cloudsync.helper.Handler;
 
 public class Item
 {
-	public final static Integer	METADATA_VERSION	= 1;
+	public final static Integer	METADATA_VERSION	= 2;
 
 	public final static String	SEPARATOR			= File.separator;
 
@@ -31,22 +39,63 @@ public class Item
 	private final static String	METADATA_SEPARATOR	= ":";
 	private final static String	ATTRIBUTE_SEPARATOR	= "|";
 
+	// stored behind the attributes, but not compared with the local data
+	private final static String	STORAGE_PREFIX		= "storage" + ATTRIBUTE_SEPARATOR;
+
+	private final static long	NULL_VALUE			= Long.MIN_VALUE;
+
+	private final static Item[]	NO_CHILDREN			= new Item[0];
+
+	// most items share one of a few attribute combinations. the arrays are never modified.
+	private final static ConcurrentMap<List<String>, String[]>	ATTRIBUTES	= new ConcurrentHashMap<>();
+
 	private Item				parent;
 
 	protected String			name;
 	protected String			remoteIdentifier;
 	protected ItemType			type;
-	private Long				filesize;
-	private Long				creationtime;
-	private Long				modifytime;
-	private Long				accesstime;
+	private long				filesize			= NULL_VALUE;
+	private long				creationtime		= NULL_VALUE;
+	private long				modifytime			= NULL_VALUE;
+	private long				accesstime			= NULL_VALUE;
 	private String[]			attributes;
 
 	private String				checksum;
+	private ChecksumType		checksumType		= ChecksumType.MD5;
+
+	// how the file data is stored remotely. 'null' for a single object
+	private String				storage;
+
+	// only kept in the structure cache
+	private String				blockChecksums;
+
+	// attributes of the local file read before the checksum was calculated
+	private BasicFileAttributes	checksumAttributes;
 
 	private boolean				needsMetadataUpgrade;
 
-	protected Map<String, Item>	children;
+	// open addressing table of the children of a folder, 'null' for other types
+	// and for folders whose children are unloaded. worker threads read the
+	// store folders while the diff thread loads and unloads other folders
+	protected volatile Item[]	children;
+	private int					childCount;
+
+	// loads the children of a folder again after they were unloaded
+	private ChildLoader			childLoader;
+
+	// changed folders are kept in memory until they are written
+	private volatile boolean	pinned;
+
+	// only set by the diff stage of a backup between a folder's start and end
+	private boolean				visited;
+
+	// cached path of a folder. a cached path implies a cached path of the parent
+	private String				path;
+
+	public interface ChildLoader
+	{
+		List<Item> load(Item folder) throws IOException;
+	}
 
 	protected Item()
 	{
@@ -58,7 +107,7 @@ public class Item
 		item.name = "";
 		item.remoteIdentifier = "";
 		item.type = ItemType.FOLDER;
-		item.children = new HashMap<>();
+		item.children = NO_CHILDREN;
 		return item;
 	}
 
@@ -76,9 +125,29 @@ public class Item
 		return initItem(new Item(), name, remoteIndentifier, metadata);
 	}
 
-	public String[] toCSVArray()
+	public static Item fromCache(final String name, final String remoteIdentifier, final ItemType type, final Long filesize, final Long creationtime,
+			final Long modifytime, final Long accesstime, final ChecksumType checksumType, final String checksum, final String[] attributes, final String storage,
+			final String blockChecksums, final boolean needsMetadataUpgrade)
 	{
-		return ArrayUtils.addAll(new String[] { getPath(), remoteIdentifier }, getDataArray());
+		Item item = new Item();
+		item.name = name;
+		item.remoteIdentifier = remoteIdentifier;
+		item.type = type;
+		item.filesize = toValue(filesize);
+		item.creationtime = toValue(creationtime);
+		item.modifytime = toValue(modifytime);
+		item.accesstime = toValue(accesstime);
+		item.checksumType = checksumType;
+		item.checksum = checksum;
+		item.attributes = intern(attributes);
+		item.storage = storage;
+		item.blockChecksums = blockChecksums;
+		item.needsMetadataUpgrade = needsMetadataUpgrade;
+		if (ItemType.FOLDER.equals(type))
+		{
+			item.children = NO_CHILDREN;
+		}
+		return item;
 	}
 
 	public static RemoteItem fromMetadata(final String remoteIdentifier, final boolean isFolder, final String name, final String metadata, Long remoteFilesize,
@@ -88,7 +157,7 @@ public class Item
 
 		if (!StringUtils.isEmpty(metadata))
 		{
-			item = (RemoteItem) initItem(item, name, remoteIdentifier, metadata.split(METADATA_SEPARATOR));
+			item = (RemoteItem) initItem(item, name, remoteIdentifier, StringUtils.splitPreserveAllTokens(metadata, METADATA_SEPARATOR));
 		}
 		else
 		{
@@ -97,7 +166,7 @@ public class Item
 			item.type = isFolder ? ItemType.FOLDER : ItemType.FILE;
 			if (item.type.equals(ItemType.FOLDER))
 			{
-				item.children = new HashMap<>();
+				item.children = NO_CHILDREN;
 			}
 		}
 
@@ -111,7 +180,7 @@ public class Item
 			if (checksum == null)
 			{
 				// force a checksum update
-				handler.getLocalProcessedBinary(this);
+				handler.createLocalChecksum(this);
 			}
 		}
 
@@ -124,14 +193,14 @@ public class Item
 		Item item = new Item();
 		item.name = name;
 		item.type = type;
-		item.filesize = filesize;
+		item.filesize = toValue(filesize);
 		item.creationtime = creationtime.to(TimeUnit.SECONDS);
 		item.modifytime = modifytime.to(TimeUnit.SECONDS);
 		item.accesstime = accesstime.to(TimeUnit.SECONDS);
-		item.attributes = convertToAttributes(map);
+		item.attributes = intern(convertToAttributes(map));
 		if (item.type.equals(ItemType.FOLDER))
 		{
-			item.children = new HashMap<>();
+			item.children = NO_CHILDREN;
 		}
 		return item;
 	}
@@ -149,8 +218,10 @@ public class Item
 		Long creationtime;
 		Long modifytime;
 		Long accesstime;
+		ChecksumType checksumType = ChecksumType.MD5;
 		String checksum;
 		String[] attributes;
+		String storage = null;
 
 		switch ( metadataVersion )
 		{
@@ -178,8 +249,21 @@ public class Item
 				creationtime = StringUtils.isEmpty(metadata[3]) ? null : Long.parseLong(metadata[3]);
 				modifytime = StringUtils.isEmpty(metadata[4]) ? null : Long.parseLong(metadata[4]);
 				accesstime = StringUtils.isEmpty(metadata[5]) ? null : Long.parseLong(metadata[5]);
-				checksum = metadata[6];
-				attributes = ArrayUtils.subarray(metadata, 7, metadata.length);
+
+				// version 2 records the checksum type in front of the checksum
+				int offset = 6;
+				if (metadataVersion > 1)
+				{
+					checksumType = ChecksumType.fromStringIgnoreCase(metadata[offset++]);
+				}
+				checksum = metadata[offset++];
+				attributes = ArrayUtils.subarray(metadata, offset, metadata.length);
+
+				if (attributes.length > 0 && attributes[attributes.length - 1].startsWith(STORAGE_PREFIX))
+				{
+					storage = attributes[attributes.length - 1].substring(STORAGE_PREFIX.length());
+					attributes = ArrayUtils.remove(attributes, attributes.length - 1);
+				}
 
 				break;
 		}
@@ -187,26 +271,53 @@ public class Item
 		item.name = name;
 		item.remoteIdentifier = remoteIdentifier;
 		item.type = type;
-		item.filesize = filesize;
-		item.creationtime = creationtime;
-		item.modifytime = modifytime;
-		item.accesstime = accesstime;
-		item.attributes = attributes;
+		item.filesize = toValue(filesize);
+		item.creationtime = toValue(creationtime);
+		item.modifytime = toValue(modifytime);
+		item.accesstime = toValue(accesstime);
+		item.attributes = intern(attributes);
 		if (ItemType.FOLDER.equals(item.type))
 		{
-			item.children = new HashMap<>();
+			item.children = NO_CHILDREN;
 		}
+		item.checksumType = checksumType;
 		item.checksum = checksum;
-		item.needsMetadataUpgrade = metadataVersion != METADATA_VERSION;
+		item.storage = storage;
+		// version 1 differs only by the missing checksum type, which is always md5
+		item.needsMetadataUpgrade = metadataVersion < 1;
 		return item;
 	}
 
 	private String[] getDataArray()
 	{
-		return ArrayUtils.addAll(
-				new String[] { METADATA_VERSION.toString(), type.toString(), filesize != null ? filesize.toString() : null,
-						creationtime != null ? creationtime.toString() : null, modifytime != null ? modifytime.toString() : null,
-						accesstime != null ? accesstime.toString() : null, checksum }, attributes);
+		final String[] data = ArrayUtils.addAll(
+				new String[] { METADATA_VERSION.toString(), type.toString(), toString(filesize), toString(creationtime), toString(modifytime),
+						toString(accesstime), checksumType.getName(), checksum }, attributes);
+
+		return storage != null ? ArrayUtils.add(data, STORAGE_PREFIX + storage) : data;
+	}
+
+	private static long toValue(final Long value)
+	{
+		return value == null ? NULL_VALUE : value;
+	}
+
+	private static Long fromValue(final long value)
+	{
+		return value == NULL_VALUE ? null : value;
+	}
+
+	private static String toString(final long value)
+	{
+		return value == NULL_VALUE ? null : Long.toString(value);
+	}
+
+	private static String[] intern(final String[] attributes)
+	{
+		if (attributes == null) return null;
+
+		final String[] existing = ATTRIBUTES.putIfAbsent(Arrays.asList(attributes), attributes);
+		return existing != null ? existing : attributes;
 	}
 
 	private static Map<String, String[]> convertToMap(String[] attributes)
@@ -234,6 +345,7 @@ public class Item
 
 	public void setParent(final Item parent)
 	{
+		if (this.parent != parent) clearPath();
 		this.parent = parent;
 	}
 
@@ -245,26 +357,242 @@ public class Item
 	public void setRemoteIdentifier(final String remoteIdentifier)
 	{
 		this.remoteIdentifier = remoteIdentifier;
+		changed();
 	}
 
 	public void addChild(final Item child)
 	{
-		children.put(child.name, child);
+		// pinned before the children are loaded, so they can't be unloaded in between
+		pin();
+		loadChildren();
+
+		if ((childCount + 1) * 4 > children.length * 3)
+		{
+			resizeChildren(Math.max(4, children.length * 2));
+		}
+
+		final int index = indexOfChild(children, child.name);
+		if (children[index] == null) childCount++;
+		children[index] = child;
 	}
 
 	public void removeChild(final Item child)
 	{
-		children.remove(child.name);
+		pin();
+		loadChildren();
+		if (childCount == 0) return;
+
+		int index = indexOfChild(children, child.name);
+		if (children[index] == null) return;
+
+		children[index] = null;
+		childCount--;
+
+		// move following entries of the probe sequence into the gap
+		final int mask = children.length - 1;
+		for (int next = (index + 1) & mask; children[next] != null; next = (next + 1) & mask)
+		{
+			final int home = hashOf(children[next].name) & mask;
+			if (((next - home) & mask) >= ((next - index) & mask))
+			{
+				children[index] = children[next];
+				children[next] = null;
+				index = next;
+			}
+		}
 	}
 
 	public Item getChildByName(final String name)
 	{
-		return children.get(name);
+		final Item[] table = loadChildren();
+		if (table == null || table.length == 0) return null;
+
+		return table[indexOfChild(table, name)];
+	}
+
+	/**
+	 * Read-only view of the children. The children must not be added, removed
+	 * or renamed while the view is iterated.
+	 */
+	public Collection<Item> getChildren()
+	{
+		return getChildren(loadChildren());
+	}
+
+	private Collection<Item> getChildren(final Item[] table)
+	{
+		final int count = table != null ? childCount : 0;
+		return new AbstractCollection<Item>()
+		{
+			@Override
+			public Iterator<Item> iterator()
+			{
+				return new ChildIterator(table);
+			}
+
+			@Override
+			public int size()
+			{
+				return count;
+			}
+		};
+	}
+
+	public void setVisited(final boolean visited)
+	{
+		this.visited = visited;
+	}
+
+	public boolean isVisited()
+	{
+		return visited;
+	}
+
+	private static int indexOfChild(final Item[] table, final String name)
+	{
+		final int mask = table.length - 1;
+		int index = hashOf(name) & mask;
+		while (table[index] != null && !table[index].name.equals(name))
+		{
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private void resizeChildren(final int capacity)
+	{
+		final Item[] oldChildren = children;
+		children = new Item[capacity];
+		for (final Item child : oldChildren)
+		{
+			if (child != null) children[indexOfChild(children, child.name)] = child;
+		}
+	}
+
+	public void setChildLoader(final ChildLoader childLoader)
+	{
+		this.childLoader = childLoader;
+	}
+
+	public boolean isChildrenLoaded()
+	{
+		return children != null;
+	}
+
+	/**
+	 * Drops the children of an unchanged folder. They are loaded again by the
+	 * 'ChildLoader' on the next access.
+	 */
+	public synchronized boolean unloadChildren()
+	{
+		if (childLoader == null || pinned || children == null) return false;
+
+		// 'childCount' stays valid for readers of the last table
+		children = null;
+		return true;
+	}
+
+	// a changed folder is kept together with its parents, because the change is only stored with the whole path
+	public void pin()
+	{
+		for (Item item = this; item != null && !item.pinned; item = item.parent)
+		{
+			item.pinned = true;
+		}
+	}
+
+	public void unpin()
+	{
+		pinned = false;
 	}
 
-	public Map<String, Item> getChildren()
+	private void changed()
 	{
-		return new HashMap<>(children);
+		if (parent != null) parent.pin();
+	}
+
+	// returns the loaded table. 'children' may already be unloaded again
+	private Item[] loadChildren()
+	{
+		final Item[] current = children;
+		if (current != null || childLoader == null) return current;
+
+		synchronized (this)
+		{
+			if (children != null) return children;
+
+			final List<Item> loaded;
+			try
+			{
+				loaded = childLoader.load(this);
+			}
+			catch (final IOException e)
+			{
+				throw new IllegalStateException("Can't load children of '" + getPath() + "'", e);
+			}
+
+			int capacity = 4;
+			while (loaded.size() * 4 > capacity * 3)
+			{
+				capacity *= 2;
+			}
+			final Item[] table = loaded.isEmpty() ? NO_CHILDREN : new Item[capacity];
+			for (final Item child : loaded)
+			{
+				table[indexOfChild(table, child.name)] = child;
+			}
+			childCount = loaded.size();
+			children = table;
+			return table;
+		}
+	}
+
+	private static class ChildIterator implements Iterator<Item>
+	{
+		private final Item[]	table;
+		private int				index;
+
+		ChildIterator(final Item[] table)
+		{
+			this.table = table != null ? table : NO_CHILDREN;
+			skipEmpty();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return index < table.length;
+		}
+
+		@Override
+		public Item next()
+		{
+			if (!hasNext()) throw new NoSuchElementException();
+
+			final Item item = table[index++];
+			skipEmpty();
+			return item;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		private void skipEmpty()
+		{
+			while (index < table.length && table[index] == null)
+			{
+				index++;
+			}
+		}
+	}
+
+	private static int hashOf(final String name)
+	{
+		final int hash = name.hashCode();
+		return hash ^ (hash >>> 16);
 	}
 
 	public String getTypeName()
@@ -286,15 +614,15 @@ public class Item
 	{
 		if (type.equals(ItemType.FILE) || type.equals(ItemType.LINK))
 		{
-			if (isChanged(filesize, item.filesize))
+			if (filesize != item.filesize)
 			{
 				return true;
 			}
-			if (isChanged(creationtime, item.creationtime))
+			if (creationtime != item.creationtime)
 			{
 				return true;
 			}
-			if (isChanged(modifytime, item.modifytime))
+			if (modifytime != item.modifytime)
 			{
 				return true;
 			}
@@ -307,22 +635,22 @@ public class Item
 
 	public boolean isMetadataChanged(final Item item)
 	{
-		if (isChanged(filesize, item.filesize))
+		if (filesize != item.filesize)
 		{
 			return true;
 		}
-		if (isChanged(creationtime, item.creationtime))
+		if (creationtime != item.creationtime)
 		{
 			return true;
 		}
-		if (isChanged(modifytime, item.modifytime))
+		if (modifytime != item.modifytime)
 		{
 			return true;
 		}
 		/*
 		 * if (isChanged(accesstime, item.accesstime)) { return true; }
 		 */
-		if ((attributes == null) != (item.attributes == null) || (attributes != null && !Arrays.equals(attributes, item.attributes)))
+		if (attributes != item.attributes && !Arrays.equals(attributes, item.attributes))
 		{
 			return true;
 		}
@@ -338,10 +666,6 @@ public class Item
 		return needsMetadataUpgrade;
 	}
 
-	private boolean isChanged(final Object o1, final Object o2)
-	{
-		return (o1 == null) != (o2 == null) || (o1 != null && !o1.equals(o2));
-	}
 
 	public void update(final Item item)
 	{
@@ -350,21 +674,32 @@ public class Item
 		modifytime = item.modifytime;
 		creationtime = item.creationtime;
 		attributes = item.attributes;
+		changed();
 	}
 
 	public String getPath()
 	{
-		String path = "";
-		if (parent != null)
-		{
-			path += parent.getPath();
-		}
-		if (!path.isEmpty())
+		String path = this.path;
+		if (path != null) return path;
+
+		final String parentPath = parent != null ? parent.getPath() : "";
+		path = parentPath.isEmpty() ? name : parentPath + Item.SEPARATOR + name;
+
+		// files build their path on demand, so only the folders of the current path keep it
+		if (type == ItemType.FOLDER) this.path = path;
+		return path;
+	}
+
+	private void clearPath()
+	{
+		if (path == null) return;
+
+		path = null;
+		// unloaded children are not loaded for this
+		for (final Item child : getChildren(children))
 		{
-			path += Item.SEPARATOR;
+			if (child.isType(ItemType.FOLDER)) child.clearPath();
 		}
-		path += name;
-		return path;
 	}
 
 	public String getName()
@@ -374,12 +709,25 @@ public class Item
 
 	public void setName(final String name)
 	{
-		this.name = name;
+		// the parent finds its children by name
+		if (parent != null && parent.children != null && parent.getChildByName(this.name) == this)
+		{
+			parent.removeChild(this);
+			this.name = name;
+			parent.addChild(this);
+		}
+		else
+		{
+			this.name = name;
+		}
+		clearPath();
+		changed();
 	}
 
 	public void setChecksum(final String checksum)
 	{
 		this.checksum = checksum;
+		changed();
 	}
 
 	public String getChecksum()
@@ -387,6 +735,50 @@ public class Item
 		return this.checksum;
 	}
 
+	public void setChecksum(final ChecksumType checksumType, final String checksum)
+	{
+		this.checksumType = checksumType;
+		this.checksum = checksum;
+		changed();
+	}
+
+	public ChecksumType getChecksumType()
+	{
+		return checksumType;
+	}
+
+	public void setChecksumAttributes(final BasicFileAttributes checksumAttributes)
+	{
+		this.checksumAttributes = checksumAttributes;
+	}
+
+	public BasicFileAttributes getChecksumAttributes()
+	{
+		return checksumAttributes;
+	}
+
+	public void setStorage(final String storage)
+	{
+		this.storage = storage;
+		changed();
+	}
+
+	public String getStorage()
+	{
+		return storage;
+	}
+
+	public void setBlockChecksums(final String blockChecksums)
+	{
+		this.blockChecksums = blockChecksums;
+		changed();
+	}
+
+	public String getBlockChecksums()
+	{
+		return blockChecksums;
+	}
+
 	public String getRemoteIdentifier()
 	{
 		return remoteIdentifier;
@@ -404,7 +796,27 @@ public class Item
 
 	public Long getFilesize()
 	{
-		return filesize;
+		return fromValue(filesize);
+	}
+
+	public Long getCreationTimeSeconds()
+	{
+		return fromValue(creationtime);
+	}
+
+	public Long getModifyTimeSeconds()
+	{
+		return fromValue(modifytime);
+	}
+
+	public Long getAccessTimeSeconds()
+	{
+		return fromValue(accesstime);
+	}
+
+	public String[] getAttributeArray()
+	{
+		return attributes;
 	}
 
 	public FileTime getCreationTime()
@@ -32,13 +32,21 @@ public enum ItemType
 		return count == 1 ? name : namePlural;
 	}
 
+	public int getValue()
+	{
+		return value;
+	}
+
 	public static ItemType fromString(final String value)
 	{
-		final Integer intValue = Integer.parseInt(value);
+		return fromValue(Integer.parseInt(value));
+	}
 
+	public static ItemType fromValue(final int value)
+	{
 		for (final ItemType type : ItemType.values())
 		{
-			if (!type.value.equals(intValue))
+			if (type.value != value)
 			{
 				continue;
 			}
@@ -1,27 +1,30 @@
 package cloudsync.model;
 
 import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
 
 public class RemoteItem extends Item
 {
-	private final Long		remoteFilesize;
-	private final FileTime	remoteCreationtime;
+	private final static long	NULL_VALUE	= Long.MIN_VALUE;
+
+	private final long			remoteFilesize;
+	private final long			remoteCreationtime;
 
 	public RemoteItem(Long remoteFilesize, FileTime remoteCreationtime)
 	{
 		super();
 
-		this.remoteFilesize = remoteFilesize;
-		this.remoteCreationtime = remoteCreationtime;
+		this.remoteFilesize = remoteFilesize != null ? remoteFilesize : NULL_VALUE;
+		this.remoteCreationtime = remoteCreationtime != null ? remoteCreationtime.toMillis() : NULL_VALUE;
 	}
 
 	public Long getRemoteFilesize()
 	{
-		return remoteFilesize;
+		return remoteFilesize != NULL_VALUE ? remoteFilesize : null;
 	}
 
 	public FileTime getRemoteCreationTime()
 	{
-		return remoteCreationtime;
+		return remoteCreationtime != NULL_VALUE ? FileTime.from(remoteCreationtime, TimeUnit.MILLISECONDS) : null;
 	}
 }
@@ -0,0 +1,89 @@
+package cloudsync;
+
+
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.exceptions.FileIOException;
+import cloudsync.exceptions.InfoException;
+import cloudsync.exceptions.UsageException;
+import cloudsync.helper.CmdOptions;
+import cloudsync.helper.Crypt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+
+public class CryptBenchmarkTest {
+
+    private static final int ITEMS = Integer.getInteger("cloudsync.benchmark.items", 1000);
+
+    /**
+     * Decrypt title and metadata of generated items like 'readRemoteStructure' does.
+     * 'before' encrypts every item with its own salt like the former per message key derivation.
+     * 'after' encrypts all items with one session key derivation.
+     */
+    @Test
+    public void benchmarkDecryption() throws IOException, ParseException, CloudsyncException, FileIOException, UsageException, InfoException {
+        // run with -Dcloudsync.benchmark=true
+        assumeTrue(Boolean.getBoolean("cloudsync.benchmark"));
+
+        File rootFolder = Files.createTempDirectory("srcBenchmark").toFile();
+        File configFile = Files.createTempFile("benchmarkConfig", ".config").toFile();
+        Files.write(configFile.toPath(), "PASSPHRASE=1234567".getBytes(), StandardOpenOption.CREATE);
+
+        String[] args = new String[]{
+            "--backup",
+            rootFolder.getAbsolutePath(),
+            "--name",
+            "Benchmark",
+            "--config",
+            configFile.getAbsolutePath()
+        };
+        CmdOptions cmdOptions = new CmdOptions(args);
+        cmdOptions.parse();
+
+        String[][] items = new String[ITEMS][];
+        for(int i = 0; i < ITEMS; i++) {
+            items[i] = new String[]{ "file_" + i + ".txt", "1:2:" + i + ":1792239727:1792239727:1792239727:764efa883dda1e11db47671c4a3bbd9e:posix|root|root|420" };
+        }
+
+        String[][] before = new String[ITEMS][];
+        for(int i = 0; i < ITEMS; i++) {
+            Crypt crypt = new Crypt(cmdOptions);
+            before[i] = new String[]{ crypt.encryptText(items[i][0]), crypt.encryptText(items[i][1]) };
+        }
+
+        Crypt crypt = new Crypt(cmdOptions);
+        String[][] after = new String[ITEMS][];
+        for(int i = 0; i < ITEMS; i++) {
+            after[i] = new String[]{ crypt.encryptText(items[i][0]), crypt.encryptText(items[i][1]) };
+        }
+
+        // every message has its own session key and iv
+        assertFalse(crypt.encryptText(items[0][0]).equals(after[0][0]));
+
+        double beforeRate = decrypt(new Crypt(cmdOptions), before, items);
+        double afterRate = decrypt(new Crypt(cmdOptions), after, items);
+
+        System.out.println("decrypt title and metadata of " + ITEMS + " items");
+        System.out.println("  before: " + Math.round(beforeRate) + " items/s");
+        System.out.println("  after:  " + Math.round(afterRate) + " items/s");
+
+        FileUtils.deleteDirectory(rootFolder);
+        configFile.delete();
+    }
+
+    private double decrypt(Crypt crypt, String[][] encrypted, String[][] items) throws CloudsyncException {
+        long start = System.nanoTime();
+        for(int i = 0; i < encrypted.length; i++) {
+            assertEquals(items[i][0], crypt.decryptText(encrypted[i][0]));
+            assertEquals(items[i][1], crypt.decryptText(encrypted[i][1]));
+        }
+        return encrypted.length / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -230,6 +230,70 @@ public class RemoteLocalFilesystemTest {
         FileUtils.deleteDirectory(rootFolder);
     }
    
+    /**
+     * Generate a random hierarchy, backup it with several threads and streamed
+     * encryption, modify it, backup again and restore it.
+     * Check for equality between the modified hierarchy and restored one.
+     */
+    @Test
+    public void test3() throws IOException, ParseException {
+        File rootFolder = createRandomHierarchie();
+
+        File targetLocalRemoteFolder = Files.createTempDirectory("targetRemoteFolder").toFile();
+        File restoreFolder = new File(rootFolder.getParent(),rootFolder.getName()+"_restore");
+        File configFile = Files.createTempFile("test3Config", ".config").toFile();
+
+        String targetLocalRemoteFolderPath = FilesystemHelper.fixPathSeparators(targetLocalRemoteFolder.getAbsolutePath());
+
+        String config = "REMOTE_CONNECTOR=LocalFilesystem";
+        config += "\n"+ "PASSPHRASE=1234567";
+        config += "\n"+ "TARGET_DIR=" + targetLocalRemoteFolderPath;
+        config += "\n"+ "CACHEFILE=" + targetLocalRemoteFolderPath + File.separator + ".cloudsync.cache";
+        config += "\n"+ "LOGFILE=" + targetLocalRemoteFolderPath + File.separator + ".cloudsync.log";
+        config += "\n"+ "THREADS=4";
+        Files.write(configFile.toPath(), config.getBytes(), StandardOpenOption.CREATE);
+
+        System.out.println("Test3");
+        System.out.println("RootFolder: " + rootFolder.getAbsolutePath());
+        System.out.println("TargetFolder: " + targetLocalRemoteFolder.getAbsolutePath());
+
+        String[] args = new String[]{
+            "--backup",
+            rootFolder.getAbsolutePath(),
+            "--streaming",
+            "--name",
+            "Test3Backup",
+            "--config",
+            configFile.getAbsolutePath()
+        };
+        Cloudsync.main(args);
+
+        File folder = createRandomFolder(rootFolder, 5);
+        createRandomFolder(folder, 5);
+        for(File f : rootFolder.listFiles()) {
+            if(f.isDirectory() && !f.equals(folder)) {
+                FileUtils.deleteDirectory(f);
+                break;
+            }
+        }
+        Cloudsync.main(args);
+
+        restoreFolder.mkdir();
+        args = new String[]{
+            "--nocache",
+            "--restore",
+            restoreFolder.getAbsolutePath(),
+            "--name",
+            "Test3Backup",
+            "--config",
+            configFile.getAbsolutePath()
+        };
+        Cloudsync.main(args);
+
+        assertTrue(hierarchieEquals(rootFolder, restoreFolder));
+        FileUtils.deleteDirectory(rootFolder);
+    }
+
     private void _assertEncryptedFileContentEquals(File file, Crypt crypt, String content) throws IOException, CloudsyncException {
         byte[] encryptedFileContent = Files.readAllBytes(file.toPath());
         ByteArrayInputStream bais = new ByteArrayInputStream(encryptedFileContent);
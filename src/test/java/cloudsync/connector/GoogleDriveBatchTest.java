@@ -0,0 +1,146 @@
+package cloudsync.connector;
+
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class GoogleDriveBatchTest {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Requests queued while another request is in flight are sent together as one
+     * batch request. Every caller gets its own result or error.
+     */
+    @Test
+    public void testGroupedRequests() throws Exception {
+        Drive service = new Drive.Builder(new BatchTransport(), new JacksonFactory(), null).setApplicationName("Test").build();
+        final RemoteGoogleDriveBatch batch = new RemoteGoogleDriveBatch(service);
+
+        Caller first = new Caller(batch, service.files().get("first"));
+        first.start();
+        started.await();
+
+        Caller found = new Caller(batch, service.files().get("found"));
+        Caller missing = new Caller(batch, service.files().get("missing"));
+        found.start();
+        missing.start();
+        while (found.getState() != Thread.State.WAITING || missing.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        first.join();
+        found.join();
+        missing.join();
+
+        assertEquals("first", first.result.getId());
+        assertEquals("found", found.result.getId());
+        assertTrue(missing.failure instanceof GoogleJsonResponseException);
+        assertEquals(404, ((GoogleJsonResponseException) missing.failure).getStatusCode());
+
+        assertEquals(2, requests.size());
+        assertEquals("single", requests.get(0));
+        assertEquals("batch", requests.get(1));
+    }
+
+    /**
+     * Requests which are sent together go out as one batch request. A failed
+     * request has no result.
+     */
+    @Test
+    public void testExplicitBatch() throws Exception {
+        Drive service = new Drive.Builder(new BatchTransport(), new JacksonFactory(), null).setApplicationName("Test").build();
+        RemoteGoogleDriveBatch batch = new RemoteGoogleDriveBatch(service);
+
+        List<File> results = batch.executeAll(Arrays.asList(service.files().get("found"), service.files().get("missing")));
+
+        assertEquals(2, results.size());
+        assertEquals("found", results.get(0).getId());
+        assertNull(results.get(1));
+        assertEquals(Collections.singletonList("batch"), requests);
+    }
+
+    private static class Caller extends Thread {
+
+        private final RemoteGoogleDriveBatch batch;
+        private final Drive.Files.Get request;
+        private File result;
+        private IOException failure;
+
+        public Caller(RemoteGoogleDriveBatch batch, Drive.Files.Get request) {
+            this.batch = batch;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = batch.execute(request);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private class BatchTransport extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, final String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (url.contains("/batch/drive/v2")) {
+                        requests.add("batch");
+                        return batchResponse(getContentAsString());
+                    }
+
+                    requests.add("single");
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"first\"}");
+                }
+            };
+        }
+
+        private LowLevelHttpResponse batchResponse(String content) {
+            String[] order = content.indexOf("files/found") < content.indexOf("files/missing")
+                    ? new String[]{"found", "missing"} : new String[]{"missing", "found"};
+
+            StringBuilder body = new StringBuilder();
+            for (String id : order) {
+                body.append("--batch\r\nContent-Type: application/http\r\n\r\n");
+                if (id.equals("found")) {
+                    body.append("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n{\"id\":\"found\"}\r\n");
+                } else {
+                    body.append("HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\n\r\n"
+                            + "{\"error\":{\"code\":404,\"message\":\"File not found: missing\",\"errors\":[{\"reason\":\"notFound\"}]}}\r\n");
+                }
+            }
+            body.append("--batch--\r\n");
+            return new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=batch").setContent(body.toString());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package cloudsync.connector;
+
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+
+public class GoogleDriveFieldsTest {
+
+    private static final int ITEMS = 1000;
+    private static final int ITERATIONS = 20;
+
+    private final JsonFactory jsonFactory = new JacksonFactory();
+
+    @Test
+    public void testDefaultProjection() throws IOException {
+        Drive service = new Drive.Builder(new NetHttpTransport(), jsonFactory, null)
+            .setApplicationName("Test")
+            .setGoogleClientRequestInitializer(new RemoteGoogleDriveConnector.FieldsRequestInitializer())
+            .build();
+
+        assertEquals(RemoteGoogleDriveConnector.LIST_FIELDS, service.files().list().getFields());
+        assertEquals(RemoteGoogleDriveConnector.ITEM_FIELDS, service.files().get("id").getFields());
+        assertEquals(RemoteGoogleDriveConnector.ITEM_FIELDS, service.files().insert(new File()).getFields());
+        assertEquals(RemoteGoogleDriveConnector.ITEM_FIELDS, service.files().update("id", new File()).getFields());
+        assertEquals(RemoteGoogleDriveConnector.ITEM_FIELDS, service.files().patch("id", new File()).getFields());
+        assertEquals(RemoteGoogleDriveConnector.ID_FIELDS, service.files().copy("id", new File()).setFields(RemoteGoogleDriveConnector.ID_FIELDS).getFields());
+    }
+
+    /**
+     * The 'LIST_FIELDS' projection of a page of 1000 listed items, built from a
+     * recorded 'files.list' response, still has everything '_prepareBackupItem'
+     * reads and is a fraction of the full file resources.
+     */
+    @Test
+    public void testListProjection() throws IOException {
+        String full = createPage("drive-files-list-full.json");
+        String projected = createPage("drive-files-list-projected.json");
+
+        File item = jsonFactory.fromString(projected, FileList.class).getItems().get(0);
+        assertNotNull(item.getId());
+        assertNotNull(item.getTitle());
+        assertNotNull(item.getMimeType());
+        assertNotNull(item.getFileSize());
+        assertNotNull(item.getCreatedDate());
+        assertEquals(4, item.getProperties().size());
+
+        assertTrue(projected.length() * 4 < full.length());
+    }
+
+    /**
+     * Parses the same page once with full file resources and once with the
+     * 'LIST_FIELDS' projection.
+     */
+    @Test
+    public void benchmarkListParsing() throws IOException {
+        // run with -Dcloudsync.benchmark=true
+        assumeTrue(Boolean.getBoolean("cloudsync.benchmark"));
+
+        String full = createPage("drive-files-list-full.json");
+        String projected = createPage("drive-files-list-projected.json");
+
+        double fullTime = parse(full);
+        double projectedTime = parse(projected);
+
+        System.out.println("parse a page of " + ITEMS + " listed items");
+        System.out.println("  full:      " + (full.length() / ITEMS) + " bytes/item, " + String.format("%.2f", fullTime) + " ms/1000 items");
+        System.out.println("  projected: " + (projected.length() / ITEMS) + " bytes/item, " + String.format("%.2f", projectedTime) + " ms/1000 items");
+    }
+
+    private String createPage(String fixture) throws IOException {
+        FileList recorded;
+        try (InputStream in = getClass().getResourceAsStream(fixture)) {
+            recorded = jsonFactory.fromString(IOUtils.toString(in, "UTF-8"), FileList.class);
+        }
+
+        File template = recorded.getItems().get(0);
+        List<File> items = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            items.add(template.clone().setId(template.getId() + i));
+        }
+        return jsonFactory.toString(recorded.clone().setItems(items));
+    }
+
+    private double parse(String page) throws IOException {
+        // warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(ITEMS, jsonFactory.fromString(page, FileList.class).getItems().size());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertEquals(ITEMS, jsonFactory.fromString(page, FileList.class).getItems().size());
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}
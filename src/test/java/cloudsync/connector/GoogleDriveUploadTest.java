@@ -0,0 +1,139 @@
+package cloudsync.connector;
+
+
+import cloudsync.model.LocalStreamData;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class GoogleDriveUploadTest {
+
+    private static final int LENGTH = 3 * 1024 * 1024 + 12345;
+
+    private final byte[] data = new byte[LENGTH];
+    private final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    private int sessions;
+    private int chunks;
+    private int failingChunk = -1;
+    private boolean failPermanently;
+
+    public GoogleDriveUploadTest() {
+        new Random(42).nextBytes(data);
+    }
+
+    /**
+     * The response of a chunk gets lost. The upload continues at the offset
+     * stored by the server without sending the chunk again.
+     */
+    @Test
+    public void testResumeAfterNetworkError() throws IOException {
+        failingChunk = 2;
+
+        RemoteGoogleDriveUpload upload = new RemoteGoogleDriveUpload(createService(), null, "id", 3, 0, false);
+        File file = upload.upload(null, null, null, new File().setMimeType("application/octet-stream"), new LocalStreamData(new ByteArrayInputStream(data), -1));
+
+        assertEquals("uploaded", file.getId());
+        assertArrayEquals(data, stored.toByteArray());
+        assertEquals(1, sessions);
+    }
+
+    /**
+     * The first run stops after two chunks. A second run with the stored session
+     * only sends the missing data.
+     */
+    @Test
+    public void testResumeAfterRestart() throws IOException {
+        Path path = Files.createTempFile("cloudsync", ".uploads");
+        Files.delete(path);
+        failingChunk = 2;
+        failPermanently = true;
+
+        try {
+            new RemoteGoogleDriveUpload(createService(), new RemoteGoogleDriveSessions(path), "id", 1, 0, false)
+                .upload("a/b.bin", "parent:1", null, new File().setMimeType("application/octet-stream"), new LocalStreamData(new ByteArrayInputStream(data), LENGTH));
+            fail("upload should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(Files.exists(path));
+        long before = stored.size();
+        assertTrue(before > 0 && before < LENGTH);
+
+        failPermanently = false;
+        failingChunk = -1;
+        File file = new RemoteGoogleDriveUpload(createService(), new RemoteGoogleDriveSessions(path), "id", 1, 0, false)
+            .upload("a/b.bin", "parent:1", null, new File().setMimeType("application/octet-stream"), new LocalStreamData(new ByteArrayInputStream(data), LENGTH));
+
+        assertEquals("uploaded", file.getId());
+        assertArrayEquals(data, stored.toByteArray());
+        assertEquals(1, sessions);
+        assertFalse(Files.exists(path));
+    }
+
+    private Drive createService() {
+        return new Drive.Builder(new UploadTransport(), new JacksonFactory(), null).setApplicationName("Test").build();
+    }
+
+    private class UploadTransport extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(final String method, final String url) {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if (url.contains("uploadType=resumable")) {
+                        sessions++;
+                        assertEquals("POST", method);
+                        return new MockLowLevelHttpResponse().addHeader("Location", "https://upload.example/session");
+                    }
+
+                    String range = getFirstHeaderValue("Content-Range");
+                    if (range.startsWith("bytes */")) {
+                        return status(range);
+                    }
+
+                    if (failPermanently && chunks >= failingChunk) {
+                        return new MockLowLevelHttpResponse().setStatusCode(503).setContentType("application/json").setContent("{\"error\":{\"code\":503,\"message\":\"unavailable\"}}");
+                    }
+
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    getStreamingContent().writeTo(content);
+                    long start = Long.parseLong(range.substring(6, range.indexOf('-')));
+                    assertEquals(stored.size(), start);
+                    stored.write(content.toByteArray());
+
+                    if (chunks++ == failingChunk && !failPermanently) {
+                        throw new IOException("connection reset");
+                    }
+                    return status(range);
+                }
+            };
+        }
+
+        private LowLevelHttpResponse status(String range) {
+            String total = range.substring(range.indexOf('/') + 1);
+            if (!total.equals("*") && Long.parseLong(total) == stored.size()) {
+                return new MockLowLevelHttpResponse().setContentType("application/json").setContent("{\"id\":\"uploaded\"}");
+            }
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(308);
+            if (stored.size() > 0) {
+                response.addHeader("Range", "bytes=0-" + (stored.size() - 1));
+            }
+            return response;
+        }
+    }
+}
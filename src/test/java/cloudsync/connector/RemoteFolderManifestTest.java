@@ -0,0 +1,83 @@
+package cloudsync.connector;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import cloudsync.helper.LocalRemoteBackup;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class RemoteFolderManifestTest {
+
+    /**
+     * The manifest follows every uploaded, updated and removed item, and
+     * reading the backup with --restore leaves the remote untouched.
+     */
+    @Test
+    public void testManifestOfLocalRemote() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("ManifestTest");
+        try {
+            Files.write(new File(backup.source, "a").toPath(), "a".getBytes("UTF-8"));
+            Files.write(new File(backup.source, "b").toPath(), "b".getBytes("UTF-8"));
+            new File(backup.source, "sub").mkdir();
+            Files.write(new File(backup.source, "sub/c").toPath(), "c".getBytes("UTF-8"));
+            backup.backup();
+            assertEquals(5, checkManifests(backup.target));
+
+            Map<String, String> remote = snapshot(backup.target);
+            File restored = backup.restore();
+            assertEquals("b", FileUtils.readFileToString(new File(restored, "b"), "UTF-8"));
+            assertEquals("c", FileUtils.readFileToString(new File(restored, "sub/c"), "UTF-8"));
+            assertEquals(remote, snapshot(backup.target));
+
+            Files.write(new File(backup.source, "a").toPath(), "changed".getBytes("UTF-8"));
+            new File(backup.source, "b").delete();
+            backup.backup();
+            assertEquals(4, checkManifests(backup.target));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    // every remote item has a current entry in the manifest of its folder.
+    // returns the number of remote items
+    private static int checkManifests(File folder) throws Exception {
+        int items = 0;
+        RemoteFolderManifest manifest = null;
+        File manifestFile = new File(folder, RemoteFolderManifest.NAME + ".metadata");
+        if (manifestFile.exists()) {
+            manifest = new RemoteFolderManifest();
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                manifest.load(in);
+            }
+        }
+        for (File child : folder.listFiles()) {
+            if (child.getName().endsWith(".metadata") || child.getName().startsWith(".cloudsync")) continue;
+
+            File metadataFile = new File(folder, child.getName() + ".metadata");
+            if (metadataFile.exists()) {
+                assertNotNull("no manifest in '" + folder + "'", manifest);
+                String stamp = metadataFile.length() + ":" + metadataFile.lastModified();
+                assertEquals(new String(Files.readAllBytes(metadataFile.toPath()), "UTF-8"), manifest.get(child.getName(), stamp));
+            }
+            items++;
+            if (child.isDirectory()) items += checkManifests(child);
+        }
+        return items;
+    }
+
+    private static Map<String, String> snapshot(File folder) {
+        Map<String, String> files = new TreeMap<>();
+        for (File file : FileUtils.listFiles(folder, null, true)) {
+            if (file.getName().startsWith(".cloudsync.")) continue;
+            files.put(file.getPath(), file.length() + ":" + file.lastModified());
+        }
+        return files;
+    }
+}
@@ -0,0 +1,89 @@
+package cloudsync.helper;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import cloudsync.connector.LocalFilesystemConnector;
+import cloudsync.exceptions.CloudsyncException;
+import cloudsync.model.Item;
+import cloudsync.model.options.FollowLinkType;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class BackupScannerTest {
+
+    /**
+     * A folder that can't be read while the queue is full (three files) still
+     * ends the scan with its error instead of a consumer waiting forever.
+     */
+    @Test(timeout = 10000)
+    public void testErrorWithFullQueue() throws Exception {
+        assertEquals("Path 'b' is not readable", scan(new CloudsyncException("Path 'b' is not readable")).getMessage());
+    }
+
+    @Test(timeout = 10000)
+    public void testRuntimeExceptionWithFullQueue() throws Exception {
+        IllegalStateException error = new IllegalStateException("broken");
+        assertSame(error, scan(error).getCause());
+    }
+
+    private static CloudsyncException scan(final Exception error) throws Exception {
+        File root = Files.createTempDirectory("scanner").toFile();
+        try {
+            for (String name : new String[]{ "a1", "a2", "a3" }) {
+                Files.write(new File(root, name).toPath(), name.getBytes("UTF-8"));
+            }
+            final File folder = new File(root, "b");
+            folder.mkdir();
+
+            final CountDownLatch failed = new CountDownLatch(1);
+            final File rootFolder = root;
+            LocalFilesystemConnector connector = new LocalFilesystemConnector(new CmdOptions(new String[0])) {
+                @Override
+                public File[] readFolder(Item item) throws CloudsyncException {
+                    return readFolder(rootFolder);
+                }
+
+                @Override
+                public File[] readFolder(File file) throws CloudsyncException {
+                    if (file.equals(folder)) {
+                        failed.countDown();
+                        if (error instanceof CloudsyncException) throw (CloudsyncException) error;
+                        throw (RuntimeException) error;
+                    }
+                    File[] files = super.readFolder(file);
+                    Arrays.sort(files);
+                    return files;
+                }
+            };
+
+            BackupScanner scanner = new BackupScanner(connector, FollowLinkType.NONE, null, new PathMatcher(null, null), 3);
+            try {
+                scanner.start(Item.getDummyRoot());
+                failed.await();
+                Thread.sleep(100);
+
+                int entries = 0;
+                try {
+                    while (scanner.next() != null) {
+                        entries++;
+                    }
+                } catch (CloudsyncException e) {
+                    assertEquals(3, entries);
+                    return e;
+                }
+                fail("scan finished without the error");
+                return null;
+            } finally {
+                scanner.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
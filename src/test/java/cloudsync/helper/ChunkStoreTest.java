@@ -0,0 +1,94 @@
+package cloudsync.helper;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class ChunkStoreTest {
+
+    /**
+     * Inserted data only changes the chunks around the insert. All other chunk
+     * boundaries stay the same.
+     */
+    @Test
+    public void testBoundariesAfterInsert() throws IOException {
+        byte[] data = new byte[20 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        byte[] insert = "inserted data".getBytes();
+        int position = 10 * 1024 * 1024;
+        byte[] changed = new byte[data.length + insert.length];
+        System.arraycopy(data, 0, changed, 0, position);
+        System.arraycopy(insert, 0, changed, position, insert.length);
+        System.arraycopy(data, position, changed, position + insert.length, data.length - position);
+
+        List<String> before = chunks(data);
+        List<String> after = chunks(changed);
+
+        int length = 0;
+        for (int i = 0; i < before.size(); i++) {
+            int chunk = before.get(i).length();
+            assertTrue(chunk <= ChunkStore.MAX_SIZE);
+            assertTrue(chunk >= ChunkStore.MIN_SIZE || i == before.size() - 1);
+            length += chunk;
+        }
+        assertEquals(data.length, length);
+
+        List<String> changedChunks = new ArrayList<>(after);
+        changedChunks.removeAll(before);
+        assertTrue(before.size() > 5);
+        assertTrue(changedChunks.size() <= 2);
+    }
+
+    /**
+     * A changed file only uploads its changed chunks, because the salt of the
+     * hash key is stored with the chunks. The file is restored from a rebuilt
+     * structure.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("ChunkTest", "--chunking");
+        try {
+            byte[] data = new byte[12 * 1024 * 1024];
+            new Random(42).nextBytes(data);
+            File file = new File(backup.source, "file.bin");
+            Files.write(file.toPath(), data);
+            backup.backup();
+            long[] before = backup.remoteObjects();
+            assertTrue(before[1] > 5);
+
+            byte[] changed = Arrays.copyOf(data, data.length + 100);
+            System.arraycopy(data, 6 * 1024 * 1024, changed, 6 * 1024 * 1024 + 100, data.length - 6 * 1024 * 1024);
+            Files.write(file.toPath(), changed);
+            backup.backup();
+            long[] after = backup.remoteObjects();
+            assertTrue(after[1] - before[1] <= 2);
+            assertTrue(after[0] - before[0] < data.length / 2);
+
+            assertTrue(FileUtils.contentEquals(file, new File(backup.restore(), "file.bin")));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    private static List<String> chunks(byte[] data) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        ChunkStore.Chunker chunker = new ChunkStore.Chunker(new ByteArrayInputStream(data));
+        int length;
+        while ((length = chunker.next()) > 0) {
+            byte[] chunk = Arrays.copyOfRange(chunker.getBuffer(), chunker.getOffset(), chunker.getOffset() + length);
+            chunks.add(new String(chunk, "ISO-8859-1"));
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,113 @@
+package cloudsync.helper;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import cloudsync.model.Item;
+import cloudsync.model.LocalStreamData;
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.SymmetricKeyEncSessionPacket;
+import org.bouncycastle.openpgp.operator.bc.BcPBEDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class CryptTest {
+
+    /**
+     * Messages of one session share the derived key and its salt. Every
+     * message has its own random session key, which is encrypted with the
+     * derived key.
+     */
+    @Test
+    public void testSessionKey() throws Exception {
+        Crypt crypt = crypt();
+
+        String first = crypt.encryptText("file.txt");
+        String second = crypt.encryptText("file.txt");
+        assertFalse(first.equals(second));
+        assertEquals("file.txt", crypt.decryptText(first));
+        assertEquals("file.txt", crypt().decryptText(second));
+
+        SymmetricKeyEncSessionPacket firstPacket = sessionPacket(first);
+        SymmetricKeyEncSessionPacket secondPacket = sessionPacket(second);
+        assertArrayEquals(firstPacket.getS2K().getIV(), secondPacket.getS2K().getIV());
+
+        BcPBEDataDecryptorFactory factory = new BcPBEDataDecryptorFactory("1234567".toCharArray(), new BcPGPDigestCalculatorProvider());
+        byte[] key = factory.makeKeyFromPassPhrase(firstPacket.getEncAlgorithm(), firstPacket.getS2K());
+        byte[] firstSession = factory.recoverSessionData(firstPacket.getEncAlgorithm(), key, firstPacket.getSecKeyData());
+        byte[] secondSession = factory.recoverSessionData(secondPacket.getEncAlgorithm(), key, secondPacket.getSecKeyData());
+        assertEquals(33, firstSession.length);
+        assertFalse(Arrays.equals(firstSession, secondSession));
+        assertFalse(Arrays.equals(key, Arrays.copyOfRange(firstSession, 1, firstSession.length)));
+    }
+
+    /**
+     * The hash key of the chunk names depends on the salt of the store.
+     */
+    @Test
+    public void testHashKey() throws Exception {
+        Crypt crypt = crypt();
+        byte[] salt = new byte[16];
+        byte[] otherSalt = new byte[16];
+        otherSalt[0] = 1;
+
+        byte[] key = crypt.getHashKey(salt);
+        assertEquals(32, key.length);
+        assertArrayEquals(key, crypt().getHashKey(salt.clone()));
+        assertFalse(Arrays.equals(key, crypt.getHashKey(otherSalt)));
+    }
+
+    /**
+     * A consumer that gives up closes the stream. The encrypting thread then
+     * fails to write and closes the local file.
+     */
+    @Test(timeout = 10000)
+    public void testStreamClosedByConsumer() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        final CountDownLatch closed = new CountDownLatch(1);
+        InputStream file = new ByteArrayInputStream(data) {
+            @Override
+            public void close() throws IOException {
+                closed.countDown();
+            }
+        };
+
+        InputStream stream = crypt("--streaming").encryptedBinary("file", new LocalStreamData(file, data.length), Item.getDummyRoot()).getStream();
+        assertTrue(stream.read(new byte[1024]) > 0);
+        stream.close();
+
+        closed.await();
+    }
+
+    private static SymmetricKeyEncSessionPacket sessionPacket(String text) throws Exception {
+        byte[] data = Base64.decodeBase64(text.replace('_', '/'));
+        return (SymmetricKeyEncSessionPacket) new BCPGInputStream(new ByteArrayInputStream(data)).readPacket();
+    }
+
+    private static Crypt crypt(String... options) throws Exception {
+        File configFile = Files.createTempFile("cryptConfig", ".config").toFile();
+        try {
+            Files.write(configFile.toPath(), "PASSPHRASE=1234567".getBytes(), StandardOpenOption.CREATE);
+            List<String> args = new ArrayList<>(Arrays.asList("--list", "--name", "Test", "--config", configFile.getAbsolutePath()));
+            args.addAll(Arrays.asList(options));
+            CmdOptions cmdOptions = new CmdOptions(args.toArray(new String[args.size()]));
+            cmdOptions.parse();
+            return new Crypt(cmdOptions);
+        } finally {
+            configFile.delete();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package cloudsync.helper;
+
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class DeltaStoreTest {
+
+    private static final int SIZE = 5 * 1024 * 1024 + 1000;
+    private static final int BLOCK_SIZE = DeltaStore.getBlockSize(SIZE);
+
+    private final Random random = new Random(42);
+    private long modified = System.currentTimeMillis() - 3600 * 1000;
+
+    /**
+     * A small change only uploads its block as a patch. The file is restored
+     * from the base and the patch of a rebuilt structure.
+     */
+    @Test
+    public void testPatchRoundTrip() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File file = create(backup, "file.bin", SIZE);
+            backup.backup();
+            long[] base = backup.remoteObjects();
+            assertEquals(1, base[1]);
+
+            write(file, 1024 * 1024 + 10, 100);
+            backup.backup();
+            long[] patched = backup.remoteObjects();
+            assertEquals(2, patched[1]);
+            assertTrue(patched[0] - base[0] < 2 * BLOCK_SIZE);
+
+            assertRestored(backup, file);
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * A file which grows or shrinks across a block boundary is patched with
+     * the changed last block and the new length.
+     */
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File growing = create(backup, "growing.bin", SIZE);
+            File shrinking = create(backup, "shrinking.bin", SIZE);
+            backup.backup();
+            long[] base = backup.remoteObjects();
+            assertEquals(2, base[1]);
+
+            write(growing, SIZE - 10, BLOCK_SIZE + 100);
+            resize(shrinking, SIZE - BLOCK_SIZE - 2000);
+            backup.backup();
+            long[] patched = backup.remoteObjects();
+            assertEquals(4, patched[1]);
+            assertTrue(patched[0] - base[0] < 4 * BLOCK_SIZE);
+
+            File restored = backup.restore();
+            assertTrue(FileUtils.contentEquals(growing, new File(restored, growing.getName())));
+            assertTrue(FileUtils.contentEquals(shrinking, new File(restored, shrinking.getName())));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * The newest patch of a block wins over older patches and the base.
+     */
+    @Test
+    public void testSameBlockPatches() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File file = create(backup, "file.bin", SIZE);
+            backup.backup();
+
+            for (int i = 0; i < 3; i++) {
+                write(file, 2 * BLOCK_SIZE + 100, 1000);
+                write(file, (3 + i) * BLOCK_SIZE, 10);
+                backup.backup();
+            }
+            assertEquals(4, backup.remoteObjects()[1]);
+
+            assertRestored(backup, file);
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * After the maximum number of patches the next change uploads a new base
+     * and removes the patches.
+     */
+    @Test
+    public void testNewBaseAfterPatches() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File file = create(backup, "file.bin", SIZE);
+            backup.backup();
+
+            for (int i = 0; i < 8; i++) {
+                write(file, i * BLOCK_SIZE, 100);
+                backup.backup();
+            }
+            assertEquals(9, backup.remoteObjects()[1]);
+
+            write(file, 9 * BLOCK_SIZE, 100);
+            backup.backup();
+            assertEquals(1, backup.remoteObjects()[1]);
+
+            // the new base gets patches again
+            write(file, 10 * BLOCK_SIZE, 100);
+            backup.backup();
+            assertEquals(2, backup.remoteObjects()[1]);
+            assertRestored(backup, file);
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * If more than half of the file has changed, a new base is uploaded
+     * instead of a patch and the older patches are removed.
+     */
+    @Test
+    public void testNewBaseAfterLargeChange() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File file = create(backup, "file.bin", SIZE);
+            backup.backup();
+            write(file, 100, 100);
+            backup.backup();
+            assertEquals(2, backup.remoteObjects()[1]);
+
+            write(file, 0, SIZE / 2 + BLOCK_SIZE);
+            backup.backup();
+            long[] objects = backup.remoteObjects();
+            assertEquals(1, objects[1]);
+            assertTrue(objects[0] > SIZE);
+
+            assertRestored(backup, file);
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * The patches of a removed file are removed together with its base.
+     */
+    @Test
+    public void testRemovedPatches() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("DeltaTest", "--delta");
+        try {
+            File file = create(backup, "file.bin", SIZE);
+            File other = create(backup, "other.bin", SIZE);
+            backup.backup();
+            write(file, 100, 100);
+            write(other, 100, 100);
+            backup.backup();
+            write(file, 3 * BLOCK_SIZE, 100);
+            backup.backup();
+            assertEquals(5, backup.remoteObjects()[1]);
+
+            file.delete();
+            backup.backup();
+            assertEquals(2, backup.remoteObjects()[1]);
+
+            File restored = backup.restore();
+            assertFalse(new File(restored, file.getName()).exists());
+            assertTrue(FileUtils.contentEquals(other, new File(restored, other.getName())));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    private File create(LocalRemoteBackup backup, String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        File file = new File(backup.source, name);
+        Files.write(file.toPath(), data);
+        touch(file);
+        return file;
+    }
+
+    // every change gets a new modify time, so it is found without a checksum
+    private void write(File file, long offset, int length) throws Exception {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(offset);
+            out.write(data);
+        }
+        touch(file);
+    }
+
+    private void resize(File file, long length) throws Exception {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+        touch(file);
+    }
+
+    private void touch(File file) {
+        modified += 10000;
+        assertTrue(file.setLastModified(modified));
+    }
+
+    // the restore rebuilds the structure cache without block checksums, so
+    // the next change uploads a new base
+    private static void assertRestored(LocalRemoteBackup backup, File file) throws Exception {
+        assertTrue(FileUtils.contentEquals(file, new File(backup.restore(), file.getName())));
+    }
+}
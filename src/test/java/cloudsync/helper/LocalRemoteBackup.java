@@ -0,0 +1,83 @@
+package cloudsync.helper;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import cloudsync.Cloudsync;
+import cloudsync.FilesystemHelper;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * A backup of a temporary folder to a temporary local filesystem remote.
+ */
+public class LocalRemoteBackup {
+
+    public final File source;
+    public final File target;
+    private final File configFile;
+    private final String name;
+    private final String[] options;
+
+    public LocalRemoteBackup(String name, String... options) throws IOException {
+        this.name = name;
+        this.options = options;
+        source = Files.createTempDirectory("src" + name).toFile();
+        target = Files.createTempDirectory("targetRemoteFolder").toFile();
+        configFile = Files.createTempFile(name + "Config", ".config").toFile();
+
+        String targetPath = FilesystemHelper.fixPathSeparators(target.getAbsolutePath());
+        String config = "REMOTE_CONNECTOR=LocalFilesystem";
+        config += "\n" + "PASSPHRASE=1234567";
+        config += "\n" + "TARGET_DIR=" + targetPath;
+        config += "\n" + "CACHEFILE=" + targetPath + File.separator + ".cloudsync.cache";
+        config += "\n" + "LOGFILE=" + targetPath + File.separator + ".cloudsync.log";
+        Files.write(configFile.toPath(), config.getBytes(), StandardOpenOption.CREATE);
+    }
+
+    public void backup(String... extraOptions) throws ParseException {
+        run("--backup", source.getAbsolutePath(), extraOptions);
+    }
+
+    // the structure is read from the remote like after a lost cachefile
+    public File restore(String... extraOptions) throws IOException, ParseException {
+        File restoreFolder = new File(source.getParent(), source.getName() + "_restore");
+        FileUtils.deleteDirectory(restoreFolder);
+        restoreFolder.mkdir();
+        List<String> args = new ArrayList<>(Arrays.asList("--nocache"));
+        args.addAll(Arrays.asList(extraOptions));
+        run("--restore", restoreFolder.getAbsolutePath(), args.toArray(new String[args.size()]));
+        return restoreFolder;
+    }
+
+    // size and count of the stored objects without the metadata files
+    public long[] remoteObjects() {
+        long[] result = new long[2];
+        for (File file : FileUtils.listFiles(target, null, true)) {
+            if (file.getName().endsWith(".metadata") || file.getName().startsWith(".cloudsync")) continue;
+            result[0] += file.length();
+            result[1]++;
+        }
+        return result;
+    }
+
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(source);
+        FileUtils.deleteDirectory(new File(source.getParent(), source.getName() + "_restore"));
+        FileUtils.deleteDirectory(target);
+        configFile.delete();
+    }
+
+    private void run(String type, String path, String... extraOptions) throws ParseException {
+        List<String> args = new ArrayList<>(Arrays.asList(type, path, "--name", name, "--config", configFile.getAbsolutePath()));
+        args.addAll(Arrays.asList(options));
+        args.addAll(Arrays.asList(extraOptions));
+        Cloudsync.main(args.toArray(new String[args.size()]));
+    }
+}
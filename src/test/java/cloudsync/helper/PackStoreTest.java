@@ -0,0 +1,210 @@
+package cloudsync.helper;
+
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class PackStoreTest {
+
+    private final Random random = new Random(42);
+    private long modified = System.currentTimeMillis() - 3600 * 1000;
+
+    /**
+     * The small files of a folder share one pack and its index. Every file is
+     * restored from its own range of the pack after a rebuild of the
+     * structure from the indexes.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "1048576");
+        try {
+            for (int i = 0; i < 10; i++) {
+                create(backup, "file" + i, 1 + i * 3000);
+            }
+            create(backup, "empty", 0);
+            create(backup, "largest", (int) PackStore.MAX_FILE_SIZE);
+            create(backup, "large", (int) PackStore.MAX_FILE_SIZE + 1);
+            backup.backup();
+            assertEquals(3, backup.remoteObjects()[1]);
+
+            assertRestored(backup, backup.restore());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * The structure rebuilt from the indexes keeps the storage and checksums
+     * of the packed files, so the next backup doesn't upload them again.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "1048576");
+        try {
+            new File(backup.source, "sub").mkdir();
+            for (int i = 0; i < 5; i++) {
+                create(backup, "file" + i, 1000 + i);
+                create(backup, "sub/file" + i, 2000 + i);
+            }
+            backup.backup();
+            long[] objects = backup.remoteObjects();
+            assertEquals(4, objects[1]);
+
+            backup.backup("--nocache");
+            assertArrayEquals(objects, backup.remoteObjects());
+
+            modify(new File(backup.source, "sub/file3"), 500);
+            backup.backup();
+            assertEquals(6, backup.remoteObjects()[1]);
+
+            assertRestored(backup, backup.restore());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * A single file is restored with a ranged read of its pack.
+     */
+    @Test
+    public void testSingleFileRestore() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "1048576");
+        try {
+            for (int i = 0; i < 10; i++) {
+                create(backup, "file" + i, 5000 + i);
+            }
+            backup.backup();
+
+            File restored = backup.restore("--include", "file7");
+            assertEquals(1, restored.list().length);
+            assertTrue(FileUtils.contentEquals(new File(backup.source, "file7"), new File(restored, "file7")));
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * A full pack is stored and the next files go into a new pack. A changed
+     * file is appended to a new pack and the old pack keeps its data until
+     * more than half of it is unused. Unused packs are removed.
+     */
+    @Test
+    public void testRepack() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "65536");
+        try {
+            for (int i = 0; i < 10; i++) {
+                create(backup, "file" + i, 10000);
+            }
+            backup.backup();
+            long[] objects = backup.remoteObjects();
+            assertEquals(4, objects[1]);
+
+            modify(new File(backup.source, "file0"), 10000);
+            backup.backup();
+            long[] changed = backup.remoteObjects();
+            assertEquals(6, changed[1]);
+
+            for (int i = 1; i < 6; i++) {
+                new File(backup.source, "file" + i).delete();
+            }
+            backup.backup();
+            // only the first pack is repacked. its last file moves to a new pack
+            long[] repacked = backup.remoteObjects();
+            assertEquals(6, repacked[1]);
+            assertTrue(changed[0] - repacked[0] > 5 * 10000);
+            assertRestored(backup, backup.restore());
+
+            for (int i = 0; i < 10; i++) {
+                new File(backup.source, "file" + i).delete();
+            }
+            backup.backup();
+            assertEquals(0, backup.remoteObjects()[1]);
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * A packed file which outgrows the pack size limit is uploaded as a
+     * remote object and its data in the pack is unused.
+     */
+    @Test
+    public void testOutgrownFile() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "1048576");
+        try {
+            create(backup, "small", 1000);
+            create(backup, "growing", 1000);
+            backup.backup();
+            assertEquals(2, backup.remoteObjects()[1]);
+
+            modify(new File(backup.source, "growing"), (int) PackStore.MAX_FILE_SIZE + 1000);
+            backup.backup();
+            assertEquals(3, backup.remoteObjects()[1]);
+
+            assertRestored(backup, backup.restore());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    /**
+     * With folders loaded on demand the files of a pack are only looked up in
+     * its folder once the pack changes. The packs of a removed folder are
+     * removed and untouched packs are kept.
+     */
+    @Test
+    public void testOffheap() throws Exception {
+        LocalRemoteBackup backup = new LocalRemoteBackup("PackTest", "--packing", "1048576", "--offheap");
+        try {
+            for (String folder : new String[] { "a", "b", "c" }) {
+                new File(backup.source, folder).mkdir();
+                for (int i = 0; i < 3; i++) {
+                    create(backup, folder + "/file" + i, 1000 + i);
+                }
+            }
+            backup.backup();
+            assertEquals(6, backup.remoteObjects()[1]);
+
+            FileUtils.deleteDirectory(new File(backup.source, "a"));
+            new File(backup.source, "b/file0").delete();
+            modify(new File(backup.source, "b/file1"), 2000);
+            backup.backup();
+            // the pack of 'a' is removed. file2 of 'b' is repacked, the changed file is in a new pack
+            assertEquals(6, backup.remoteObjects()[1]);
+
+            new File(backup.source, "b/file2").delete();
+            backup.backup();
+            assertEquals(4, backup.remoteObjects()[1]);
+
+            assertRestored(backup, backup.restore());
+        } finally {
+            backup.delete();
+        }
+    }
+
+    private void create(LocalRemoteBackup backup, String name, int size) throws Exception {
+        modify(new File(backup.source, name), size);
+    }
+
+    // every change gets a new modify time, so it is found without a checksum
+    private void modify(File file, int size) throws Exception {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        Files.write(file.toPath(), data);
+        modified += 10000;
+        assertTrue(file.setLastModified(modified));
+    }
+
+    private static void assertRestored(LocalRemoteBackup backup, File restored) throws Exception {
+        for (File file : FileUtils.listFiles(backup.source, null, true)) {
+            String path = backup.source.toPath().relativize(file.toPath()).toString();
+            assertTrue(path, FileUtils.contentEquals(file, new File(restored, path)));
+        }
+        assertEquals(FileUtils.listFiles(backup.source, null, true).size(), FileUtils.listFiles(restored, null, true).size());
+    }
+}
@@ -0,0 +1,110 @@
+package cloudsync.helper;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+
+public class PathMatcherBenchmarkTest {
+
+    private static final int PATHS = Integer.getInteger("cloudsync.benchmark.paths", 100000);
+
+    private static final String[] EXTENSIONS = { "java", "class", "txt", "jpg", "tmp", "log", "o", "pdf", "bak", "swp" };
+
+    /**
+     * 50 exclude patterns of folders, extensions and single files checked
+     * against 'PATHS' absolute paths, once with String.matches per pattern like
+     * before and once with the compiled matcher.
+     */
+    @Test
+    public void benchmarkExcludePatterns() {
+        // run with -Dcloudsync.benchmark=true
+        assumeTrue(Boolean.getBoolean("cloudsync.benchmark"));
+
+        String[] patterns = patterns();
+        List<String> paths = paths();
+
+        PathMatcher matcher = new PathMatcher(null, patterns);
+
+        // warmup
+        int expected = countMatches(paths.subList(0, Math.min(paths.size(), 20000)), patterns);
+        int selected = countMatches(paths.subList(0, Math.min(paths.size(), 20000)), matcher);
+        assertEquals(expected, selected);
+
+        long start = System.nanoTime();
+        expected = countMatches(paths, patterns);
+        double regexTime = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        selected = countMatches(paths, matcher);
+        double matcherTime = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(expected, selected);
+
+        System.out.println("exclude " + patterns.length + " patterns from " + paths.size() + " paths (" + selected + " selected)");
+        System.out.println("  String.matches: " + Math.round(paths.size() / regexTime) + " paths/s");
+        System.out.println("  PathMatcher:    " + Math.round(paths.size() / matcherTime) + " paths/s");
+    }
+
+    private static int countMatches(List<String> paths, String[] patterns) {
+        int count = 0;
+        for (String path : paths) {
+            boolean excluded = false;
+            for (String pattern : patterns) {
+                if (path.matches("^" + pattern + "$")) {
+                    excluded = true;
+                    break;
+                }
+            }
+            if (!excluded) count++;
+        }
+        return count;
+    }
+
+    private static int countMatches(List<String> paths, PathMatcher matcher) {
+        int count = 0;
+        for (String path : paths) {
+            if (matcher.matches(path)) count++;
+        }
+        return count;
+    }
+
+    private static String[] patterns() {
+        List<String> patterns = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            patterns.add("/home/user/project_" + i + "/build/.*");
+        }
+        for (int i = 0; i < 10; i++) {
+            patterns.add(".*\\.tmp" + i);
+        }
+        patterns.add(".*\\.tmp");
+        patterns.add(".*\\.swp");
+        patterns.add(".*\\.bak");
+        patterns.add(".*/\\.git/.*");
+        patterns.add(".*/node_modules/.*");
+        for (int i = 0; i < 10; i++) {
+            patterns.add("/home/user/project_" + i + "/notes_" + i + "\\.txt");
+        }
+        patterns.add(".*/[Tt]humbs\\.db");
+        patterns.add("(?i).*\\.DS_STORE");
+        patterns.add("/home/user/project_\\d+/cache/.*");
+        patterns.add("/home/user/[^/]+/target/.*");
+        patterns.add(".*\\.(o|class)");
+        return patterns.toArray(new String[patterns.size()]);
+    }
+
+    private static List<String> paths() {
+        Random random = new Random(42);
+        String[] folders = { "src", "src/main/java/cloudsync", "build", "target", "docs/2024", ".git/objects", "cache", "node_modules/lib" };
+        List<String> paths = new ArrayList<>(PATHS);
+        for (int i = 0; i < PATHS; i++) {
+            paths.add("/home/user/project_" + random.nextInt(40) + "/" + folders[random.nextInt(folders.length)] + "/file_" + i + "."
+                    + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,58 @@
+package cloudsync.helper;
+
+
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class PathMatcherTest {
+
+    private static final String[] PATTERNS = {
+        "/home/user/cache/.*", ".*\\.tmp", "/home/user/notes\\.txt", "/home/user/a+b/.*", "/home/user/opt?/.*",
+        ".*/[Tt]humbs\\.db", "(?i).*\\.LOG", "/home/user/x\\Qy.z\\E.*", "/home/user/d\\d+/.*", ".*\\.(jpg|png)",
+        "/home/user/abc\\", ".*\\.tmp\\"
+    };
+
+    private static final String[] PATHS = {
+        "/home/user/cache/file", "/home/user/cache", "/home/user/cache2/file", "/home/user/a.tmp", "/home/user/a.tmpx",
+        "/home/user/notes.txt", "/home/user/notesXtxt", "/home/user/aab/file", "/home/user/ab/file", "/home/user/b/file",
+        "/home/user/op/file", "/home/user/opt/file", "/home/user/thumbs.db", "/home/user/Thumbs.db", "/home/user/app.log",
+        "/home/user/app.Log", "/home/user/xy.z1", "/home/user/xyaz", "/home/user/d12/file", "/home/user/d/file",
+        "/home/user/image.png", "/home/user/image.gif", "/home/user/cache/\nfile",
+        "/home/user/abc$", "/home/user/abc", "/home/user/a.tmp$"
+    };
+
+    /**
+     * Every single pattern selects the same paths as String.matches did.
+     */
+    @Test
+    public void testSameAsRegex() {
+        for (String pattern : PATTERNS) {
+            PathMatcher include = new PathMatcher(new String[]{ pattern }, null);
+            PathMatcher exclude = new PathMatcher(null, new String[]{ pattern });
+            for (String path : PATHS) {
+                boolean expected = path.matches("^" + pattern + "$");
+                assertEquals(pattern + " on " + path, expected, include.matches(path));
+                assertEquals(pattern + " on " + path, !expected, exclude.matches(path));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesBelow() {
+        String sep = File.separator;
+        PathMatcher exclude = new PathMatcher(null, new String[]{ "data" + sep + "cache" + sep + ".*", ".*\\.tmp" });
+        assertFalse(exclude.matchesBelow("data" + sep + "cache"));
+        assertFalse(exclude.matchesBelow("data" + sep + "cache" + sep + "sub"));
+        assertTrue(exclude.matchesBelow("data"));
+        assertTrue(exclude.matchesBelow("data" + sep + "cache2"));
+
+        PathMatcher include = new PathMatcher(new String[]{ "docs", "docs" + sep + "2024" + sep + ".*" }, null);
+        assertTrue(include.matchesBelow(""));
+        assertTrue(include.matchesBelow("docs"));
+        assertTrue(include.matchesBelow("docs" + sep + "2024"));
+        assertFalse(include.matchesBelow("docs" + sep + "2023"));
+        assertFalse(include.matchesBelow("music"));
+    }
+}
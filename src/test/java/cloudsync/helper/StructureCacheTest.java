@@ -0,0 +1,85 @@
+package cloudsync.helper;
+
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import cloudsync.model.ChecksumType;
+import cloudsync.model.Item;
+import cloudsync.model.ItemType;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class StructureCacheTest {
+
+    /**
+     * A lazy read only loads the root folder. Unchanged folders can be unloaded
+     * and are loaded again, changed folders stay until they are written.
+     */
+    @Test
+    public void testLazyFolders() throws IOException {
+        Path path = Files.createTempFile("cloudsync", ".cache");
+        try {
+            Item root = Item.getDummyRoot();
+            Item folder = add(root, "folder", ItemType.FOLDER);
+            Item subfolder = add(folder, "subfolder", ItemType.FOLDER);
+            add(subfolder, "file.txt", ItemType.FILE).setChecksum(ChecksumType.SHA256, "abc");
+            add(root, "other", ItemType.FOLDER);
+            add(add(root, "removed", ItemType.FOLDER), "file.txt", ItemType.FILE);
+            StructureCache.write(path, root, null, false);
+
+            Item lazyRoot = Item.getDummyRoot();
+            StructureCache cache = StructureCache.read(path, lazyRoot, true);
+            try {
+                Item lazyFolder = lazyRoot.getChildByName("folder");
+                assertFalse(lazyFolder.isChildrenLoaded());
+
+                Item file = lazyFolder.getChildByName("subfolder").getChildByName("file.txt");
+                assertEquals(ChecksumType.SHA256, file.getChecksumType());
+                assertEquals("abc", file.getChecksum());
+                assertSame(lazyFolder, file.getParent().getParent());
+
+                assertTrue(lazyFolder.unloadChildren());
+                assertNotSame(file, lazyFolder.getChildByName("subfolder").getChildByName("file.txt"));
+
+                lazyFolder.getChildByName("subfolder").getChildByName("file.txt").setChecksum("def");
+                assertFalse(lazyFolder.unloadChildren());
+                assertFalse(lazyRoot.getChildByName("other").isChildrenLoaded());
+
+                Item removed = lazyRoot.getChildByName("removed");
+                lazyRoot.removeChild(removed);
+
+                // the previous cache is closed before its file is replaced
+                cache = StructureCache.write(path, lazyRoot, cache, true);
+                assertFalse(lazyFolder.isChildrenLoaded());
+                assertEquals("def", lazyFolder.getChildByName("subfolder").getChildByName("file.txt").getChecksum());
+                try {
+                    removed.getChildren();
+                    fail();
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            } finally {
+                cache.close();
+            }
+
+            Item readRoot = Item.getDummyRoot();
+            assertNull(StructureCache.read(path, readRoot, false));
+            Item readFile = readRoot.getChildByName("folder").getChildByName("subfolder").getChildByName("file.txt");
+            assertEquals("def", readFile.getChecksum());
+            assertEquals(ChecksumType.SHA256, readFile.getChecksumType());
+            assertEquals(0, readRoot.getChildByName("other").getChildren().size());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static Item add(Item parent, String name, ItemType type) {
+        Item item = Item.fromCache(name, "id_" + name, type, type == ItemType.FILE ? 10L : null, 100L, 200L, 300L, ChecksumType.MD5, null,
+                new String[]{ "posix|root|root|420" }, null, null, false);
+        item.setParent(parent);
+        parent.addChild(item);
+        return item;
+    }
+}
@@ -0,0 +1,52 @@
+package cloudsync.model;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+
+public class ChecksumBenchmarkTest {
+
+    private static final long BYTES = Long.getLong("cloudsync.benchmark.bytes", 256L * 1024 * 1024);
+
+    private static final int[] SIZES = { 4 * 1024, 1024 * 1024, 64 * 1024 * 1024 };
+
+    /**
+     * Checksum 'BYTES' of data split into files of different sizes with every
+     * checksum type.
+     */
+    @Test
+    public void benchmarkChecksums() throws IOException {
+        // run with -Dcloudsync.benchmark=true
+        assumeTrue(Boolean.getBoolean("cloudsync.benchmark"));
+
+        for (int size : SIZES) {
+            byte[] data = new byte[size];
+            new Random(42).nextBytes(data);
+
+            System.out.println("checksum files of " + size / 1024 + " KB");
+            for (ChecksumType type : ChecksumType.values()) {
+                // warmup
+                digest(type, data, Math.min(BYTES, 32L * 1024 * 1024));
+                double rate = digest(type, data, BYTES);
+                System.out.println("  " + type.getName() + ": " + Math.round(rate / 1024 / 1024) + " MB/s");
+            }
+        }
+    }
+
+    private double digest(ChecksumType type, byte[] data, long bytes) throws IOException {
+        long count = Math.max(1, bytes / data.length);
+        String checksum = null;
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            String current = type.digestHex(new ByteArrayInputStream(data));
+            if (checksum != null) assertEquals(checksum, current);
+            checksum = current;
+        }
+        return count * data.length / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,69 @@
+package cloudsync.model;
+
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+
+public class ItemHeapBenchmarkTest {
+
+    private static final int ITEMS = Integer.getInteger("cloudsync.benchmark.items", 100000);
+
+    private static final int FILES_PER_FOLDER = 100;
+
+    /**
+     * Heap of a structure tree like it is loaded from the cachefile. Every item
+     * has its own name, remote identifier and checksum. The attribute strings
+     * are shared like the string table of the cachefile shares them.
+     */
+    @Test
+    public void benchmarkHeapPerItem() {
+        // run with -Dcloudsync.benchmark=true
+        assumeTrue(Boolean.getBoolean("cloudsync.benchmark"));
+
+        String[] attributes = new String[]{ "posix|root|root|420" };
+
+        long before = usedHeap();
+
+        Item root = Item.getDummyRoot();
+        Item folder = null;
+        for (int i = 0; i < ITEMS; i++) {
+            if (i % (FILES_PER_FOLDER + 1) == 0) {
+                folder = Item.fromCache("folder_" + i, id(i), ItemType.FOLDER, null, 1792239727L, 1792239727L, 1792239727L, ChecksumType.MD5,
+                        null, attributes.clone(), null, null, false);
+                folder.setParent(root);
+                root.addChild(folder);
+            } else {
+                Item item = Item.fromCache("file_" + i + ".txt", id(i), ItemType.FILE, (long) i, 1792239727L, 1792239727L + i, 1792239727L,
+                        ChecksumType.MD5, checksum(i), attributes.clone(), null, null, false);
+                item.setParent(folder);
+                folder.addChild(item);
+            }
+        }
+
+        long after = usedHeap();
+
+        assertNotNull(root.getChildByName("folder_0").getChildByName("file_1.txt"));
+
+        System.out.println("heap of " + ITEMS + " items");
+        System.out.println("  total:    " + (after - before) / 1024 / 1024 + " MB");
+        System.out.println("  per item: " + (after - before) / ITEMS + " bytes");
+    }
+
+    private static String id(int i) {
+        return String.format("0B%026d", i);
+    }
+
+    private static String checksum(int i) {
+        return String.format("%032x", i);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,114 @@
+package cloudsync.model;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class ItemTest {
+
+    /**
+     * Version 1 metadata has no checksum type and is read as md5 without
+     * forcing a metadata upgrade.
+     */
+    @Test
+    public void testVersion1IsMd5() throws Exception {
+        Item item = Item.fromMetadata("id", false, "file", "1:2:10:100:200:300:abc:posix|root|root|420", null, null);
+
+        assertEquals(ChecksumType.MD5, item.getChecksumType());
+        assertEquals("abc", item.getChecksum());
+        assertFalse(item.isMetadataFormatChanged());
+        assertEquals("2:2:10:100:200:300:md5:abc:posix|root|root|420", item.getMetadata(null));
+    }
+
+    @Test
+    public void testVersion2KeepsChecksumType() throws Exception {
+        String metadata = "2:2:10:100:200:300:sha256:abc:posix|root|root|420:storage|chunks";
+        Item item = Item.fromMetadata("id", false, "file", metadata, null, null);
+
+        assertEquals(ChecksumType.SHA256, item.getChecksumType());
+        assertEquals("abc", item.getChecksum());
+        assertEquals("chunks", item.getStorage());
+        assertEquals(metadata, item.getMetadata(null));
+    }
+
+    @Test
+    public void testDigest() throws IOException {
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", ChecksumType.MD5.digestHex(new ByteArrayInputStream("abc".getBytes())));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                ChecksumType.SHA256.digestHex(new ByteArrayInputStream("abc".getBytes())));
+    }
+
+    @Test
+    public void testChildren() {
+        Item folder = Item.getDummyRoot();
+        Item[] items = new Item[1000];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = Item.getDummyRoot();
+            items[i].setName("child_" + i);
+            folder.addChild(items[i]);
+        }
+
+        Random random = new Random(42);
+        boolean[] removed = new boolean[items.length];
+        for (int i = 0; i < 600; i++) {
+            int index = random.nextInt(items.length);
+            folder.removeChild(items[index]);
+            removed[index] = true;
+        }
+
+        int remaining = 0;
+        for (int i = 0; i < items.length; i++) {
+            assertSame(removed[i] ? null : items[i], folder.getChildByName("child_" + i));
+            if (!removed[i]) remaining++;
+        }
+        assertNull(folder.getChildByName("missing"));
+
+        assertEquals(remaining, folder.getChildren().size());
+        int count = 0;
+        for (Item child : folder.getChildren()) {
+            assertSame(child, folder.getChildByName(child.getName()));
+            count++;
+        }
+        assertEquals(remaining, count);
+
+        Item renamed = folder.getChildren().iterator().next();
+        renamed.setParent(folder);
+        renamed.setName("renamed");
+        assertSame(renamed, folder.getChildByName("renamed"));
+    }
+
+    /**
+     * Folders keep their path until they or one of their parents are renamed
+     * or moved.
+     */
+    @Test
+    public void testPath() {
+        String sep = Item.SEPARATOR;
+        Item root = Item.getDummyRoot();
+        Item folder = child(root, "folder", ItemType.FOLDER);
+        Item subfolder = child(folder, "subfolder", ItemType.FOLDER);
+        Item file = child(subfolder, "file.txt", ItemType.FILE);
+
+        assertEquals("folder" + sep + "subfolder" + sep + "file.txt", file.getPath());
+        assertSame(subfolder.getPath(), subfolder.getPath());
+
+        folder.setName("renamed");
+        assertEquals("renamed" + sep + "subfolder" + sep + "file.txt", file.getPath());
+
+        Item other = child(root, "other", ItemType.FOLDER);
+        subfolder.setParent(other);
+        assertEquals("other" + sep + "subfolder", subfolder.getPath());
+        assertEquals("other" + sep + "subfolder" + sep + "file.txt", file.getPath());
+    }
+
+    private static Item child(Item parent, String name, ItemType type) {
+        Item item = Item.fromCache(name, null, type, null, 1L, 1L, 1L, ChecksumType.MD5, null, null, null, null, false);
+        item.setParent(parent);
+        parent.addChild(item);
+        return item;
+    }
+}